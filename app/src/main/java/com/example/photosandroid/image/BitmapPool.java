@@ -0,0 +1,151 @@
+package com.example.photosandroid.image;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Screen-sized bitmaps that are no longer shown, kept to be decoded into again.
+ *
+ * A bitmap is given back with {@link #put} once nothing draws it any more, and
+ * {@link #decode} takes the smallest one large enough for the next image, so a screen that
+ * shows one large image after another allocates pixel memory only until the pool has
+ * bitmaps of the right size, and the next screen starts with them. Free bitmaps count
+ * against the {@link MemoryBudget} in its lowest tier, so they are the first to go when
+ * memory runs short. Thread-safe.
+ */
+public class BitmapPool implements MemoryBudget.Consumer {
+    private static final String TAG = "BitmapPool";
+    // Free bitmaps kept at most; a slideshow cycles through three
+    private static final int MAX_FREE = 4;
+
+    private static BitmapPool instance;
+
+    private final ContentResolver resolver;
+    private final MemoryBudget budget;
+    private final List<Bitmap> free = new ArrayList<>(); // smallest first
+    private long freeBytes;
+    private int reused;
+    private int allocated;
+
+    private BitmapPool(Context context) {
+        this.resolver = context.getContentResolver();
+        this.budget = MemoryBudget.getInstance(context);
+        budget.register(this, MemoryBudget.TIER_SPARE);
+    }
+
+    public static synchronized BitmapPool getInstance(Context context) {
+        if (instance == null) {
+            instance = new BitmapPool(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Gives back a bitmap for reuse. The caller must make sure nothing draws it any more.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return;
+        synchronized (this) {
+            if (free.contains(bitmap)) return;
+            int i = 0;
+            while (i < free.size() && free.get(i).getAllocationByteCount() < bitmap.getAllocationByteCount()) i++;
+            free.add(i, bitmap);
+            freeBytes += bitmap.getAllocationByteCount();
+            if (free.size() > MAX_FREE) {
+                freeBytes -= free.remove(0).getAllocationByteCount();
+            }
+        }
+        budget.onGrown();
+    }
+
+    /**
+     * Decodes an image so that it still covers a square of the given size, into a pooled
+     * bitmap if one is large enough. Meant for a background thread.
+     * @return the bitmap, or null if the image cannot be read
+     */
+    public Bitmap decode(Uri uri, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        read(uri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sample = ThumbnailCache.sampleSize(options.outWidth, options.outHeight, size, size);
+        long width = (options.outWidth + sample - 1) / sample;
+        long height = (options.outHeight + sample - 1) / sample;
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sample;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap buffer = take(width * height * 4);
+        options.inBitmap = buffer;
+
+        Bitmap bitmap;
+        try {
+            bitmap = read(uri, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder refused the buffer; let it allocate
+            put(buffer);
+            buffer = null;
+            options.inBitmap = null;
+            bitmap = read(uri, options);
+        }
+        synchronized (this) {
+            if (bitmap != null && bitmap == buffer) reused++;
+            else if (bitmap != null) allocated++;
+        }
+        if (bitmap == null) put(buffer);
+        return bitmap;
+    }
+
+    // The smallest free bitmap of at least the given size, or null
+    private synchronized Bitmap take(long bytes) {
+        for (int i = 0; i < free.size(); i++) {
+            if (free.get(i).getAllocationByteCount() >= bytes) {
+                Bitmap bitmap = free.remove(i);
+                freeBytes -= bitmap.getAllocationByteCount();
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private Bitmap read(Uri uri, BitmapFactory.Options options) {
+        try (InputStream in = resolver.openInputStream(uri)) {
+            return BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Cannot decode " + uri, e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized long getBytes() {
+        return freeBytes;
+    }
+
+    @Override
+    public synchronized void trimTo(long bytes) {
+        // Smallest first: they are the least likely to fit the next image
+        while (freeBytes > bytes && !free.isEmpty()) {
+            freeBytes -= free.remove(0).getAllocationByteCount();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "pool: %d free (%d KB), %d decodes reused a bitmap, %d allocated",
+                free.size(), freeBytes >> 10, reused, allocated);
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.photosandroid.image;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Decodes images on a small pool of background threads and delivers them on the main thread.
+ *
+ * Requests for the same key share a single decode. Queued requests run highest priority
+ * first and, within a priority, newest first, so the rows that were bound last (the ones on
+ * screen) are decoded before rows that have already scrolled away. Binding an
+ * {@link ImageView} to a new image cancels its previous request; a request nobody waits for
+ * any more is dropped from the queue. All methods must be called from the main thread.
+ */
+public class ImageLoader {
+
+    /**
+     * Receives a decoded image on the main thread; the bitmap is null if decoding failed.
+     */
+    public interface Callback {
+        void onImageLoaded(Bitmap bitmap);
+    }
+
+    /** Images decoded ahead of time that nobody is looking at yet. */
+    public static final int PRIORITY_PREFETCH = 0;
+    /** Images for views that are on screen. */
+    public static final int PRIORITY_VISIBLE = 1;
+
+    private static final String TAG = "ImageLoader";
+    private static final int POOL_SIZE =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static ImageLoader instance;
+
+    private final ContentResolver resolver;
+    private final ThumbnailCache thumbnails;
+    private final int screenSize;
+    private final ThreadPoolExecutor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Main thread only
+    private final Map<String, Request> inFlight = new HashMap<>();
+    private final Map<ImageView, Binding> bindings = new HashMap<>();
+    private long sequence;
+
+    private ImageLoader(Context context) {
+        this.resolver = context.getContentResolver();
+        this.thumbnails = ThumbnailCache.getInstance(context);
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        this.screenSize = Math.min(metrics.widthPixels, metrics.heightPixels);
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "image-decode-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized ImageLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImageLoader(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Shows a square thumbnail of the given size in the view, straight from memory if it is
+     * cached and otherwise once it has been loaded.
+     */
+    public void loadThumbnail(String uri, int size, ImageView view) {
+        Bitmap cached = thumbnails.getFromMemory(uri, size);
+        if (cached != null) {
+            cancel(view);
+            view.setImageBitmap(cached);
+            return;
+        }
+        bind(view, thumbnailKey(uri, size), () -> thumbnails.load(uri, size));
+    }
+
+    /**
+     * Shows an image decoded at screen resolution in the view. These are too large for the
+     * thumbnail cache and are not cached.
+     */
+    public void loadScreenImage(String uri, ImageView view) {
+        bind(view, screenKey(uri), () -> decodeForScreen(uri));
+    }
+
+    /**
+     * Asks for an image decoded at screen resolution. If the same image is already queued or
+     * decoding, the callback joins that request.
+     */
+    public void requestScreenImage(String uri, int priority, Callback callback) {
+        request(screenKey(uri), priority, () -> decodeForScreen(uri), callback);
+    }
+
+    /**
+     * Withdraws a callback passed to {@link #requestScreenImage}.
+     */
+    public void cancelScreenImage(String uri, Callback callback) {
+        cancel(screenKey(uri), callback);
+    }
+
+    /**
+     * Stops loading into the view, if anything is pending for it.
+     */
+    public void cancel(ImageView view) {
+        Binding binding = bindings.remove(view);
+        if (binding != null) {
+            cancel(binding.key, binding);
+        }
+    }
+
+    private Bitmap decodeForScreen(String uri) {
+        return ThumbnailCache.decodeSampled(resolver, Uri.parse(uri), screenSize, screenSize);
+    }
+
+    private void bind(ImageView view, String key, Supplier<Bitmap> decoder) {
+        Binding current = bindings.get(view);
+        if (current != null) {
+            if (current.key.equals(key)) {
+                return; // rebound to the image it is already waiting for
+            }
+            cancel(view);
+        }
+        // Clear the recycled row's old image until the new one arrives
+        view.setImageDrawable(null);
+        Binding binding = new Binding(view, key);
+        bindings.put(view, binding);
+        request(key, PRIORITY_VISIBLE, decoder, binding);
+    }
+
+    private void request(String key, int priority, Supplier<Bitmap> decoder, Callback callback) {
+        Request request = inFlight.get(key);
+        if (request == null) {
+            request = new Request(key, decoder, priority, ++sequence);
+            request.callbacks.add(callback);
+            inFlight.put(key, request);
+            executor.execute(request);
+            return;
+        }
+        request.callbacks.add(callback);
+        // Requeue so the request is ordered as if it had just been made
+        if (executor.remove(request)) {
+            request.priority = Math.max(request.priority, priority);
+            request.sequence = ++sequence;
+            executor.execute(request);
+        }
+    }
+
+    private void cancel(String key, Callback callback) {
+        Request request = inFlight.get(key);
+        if (request == null) return;
+        request.callbacks.remove(callback);
+        // A decode that has already started is left to finish; its result is cached
+        if (request.callbacks.isEmpty() && executor.remove(request)) {
+            inFlight.remove(key);
+        }
+    }
+
+    private void finish(Request request, Bitmap bitmap) {
+        if (inFlight.get(request.key) == request) {
+            inFlight.remove(request.key);
+        }
+        for (Callback callback : new ArrayList<>(request.callbacks)) {
+            callback.onImageLoaded(bitmap);
+        }
+    }
+
+    private static String thumbnailKey(String uri, int size) {
+        return "thumb:" + size + ':' + uri;
+    }
+
+    private static String screenKey(String uri) {
+        return "screen:" + uri;
+    }
+
+    /**
+     * One pending decode and everyone waiting for it.
+     */
+    private final class Request implements Runnable, Comparable<Request> {
+        final String key;
+        final Supplier<Bitmap> decoder;
+        final List<Callback> callbacks = new ArrayList<>(1); // main thread only
+        // Only changed while the request is out of the queue
+        int priority;
+        long sequence;
+
+        Request(String key, Supplier<Bitmap> decoder, int priority, long sequence) {
+            this.key = key;
+            this.decoder = decoder;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            try {
+                bitmap = decoder.get();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Decoding " + key + " failed", e);
+            }
+            Bitmap result = bitmap;
+            mainHandler.post(() -> finish(this, result));
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(other.sequence, sequence);
+        }
+    }
+
+    /**
+     * Delivers a request's result to a view, unless the view has been rebound since.
+     */
+    private final class Binding implements Callback {
+        final ImageView view;
+        final String key;
+
+        Binding(ImageView view, String key) {
+            this.view = view;
+            this.key = key;
+        }
+
+        @Override
+        public void onImageLoaded(Bitmap bitmap) {
+            if (bindings.get(view) != this) return;
+            bindings.remove(view);
+            if (bitmap != null) {
+                view.setImageBitmap(bitmap);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.example.photosandroid.image;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accounts for every decoded bitmap the app holds on to and keeps the total within one
+ * budget, shared by all screens.
+ *
+ * Holders of bitmaps register as {@link Consumer}s in a tier saying how cheaply their
+ * bitmaps can be given up. When the system asks the app to trim memory, tiers are shed
+ * from the bottom up according to how hard it asks. When the total goes over the budget,
+ * images decoded ahead go first and then cached ones, so the thumbnail cache may grow
+ * into whatever the other tiers leave unused; free bitmaps go last there, as they are
+ * about to be decoded into. Trimming always happens on the main thread.
+ */
+public class MemoryBudget implements ComponentCallbacks2 {
+
+    /**
+     * Something that holds decoded bitmaps. Called on the main thread.
+     */
+    public interface Consumer {
+        /** Bytes of the bitmaps held now. */
+        long getBytes();
+
+        /** Lets go of bitmaps until at most about {@code bytes} are held. */
+        void trimTo(long bytes);
+    }
+
+    /** Free bitmaps kept for reuse; nothing is lost by dropping them. */
+    public static final int TIER_SPARE = 0;
+    /** Images decoded ahead of need, such as the slideshow window. */
+    public static final int TIER_AHEAD = 1;
+    /** Caches of images that can be decoded again, such as thumbnails. */
+    public static final int TIER_CACHE = 2;
+    /** Images on screen; counted, never trimmed. */
+    public static final int TIER_VISIBLE = 3;
+
+    private static final String TAG = "MemoryBudget";
+    // Share of the heap for bitmaps; low-RAM devices get less
+    private static final int HEAP_FRACTION = 4;
+    private static final int LOW_RAM_HEAP_FRACTION = 8;
+
+    private static MemoryBudget instance;
+
+    private final long budget;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Consumer> consumers = new ArrayList<>();
+    private final List<Integer> tiers = new ArrayList<>();
+    private boolean checkPending;
+
+    private MemoryBudget(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        boolean lowRam = am != null && am.isLowRamDevice();
+        this.budget = Runtime.getRuntime().maxMemory() / (lowRam ? LOW_RAM_HEAP_FRACTION : HEAP_FRACTION);
+        context.registerComponentCallbacks(this);
+    }
+
+    public static synchronized MemoryBudget getInstance(Context context) {
+        if (instance == null) {
+            instance = new MemoryBudget(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Bytes all consumers together may hold.
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized void register(Consumer consumer, int tier) {
+        consumers.add(consumer);
+        tiers.add(tier);
+    }
+
+    public synchronized void unregister(Consumer consumer) {
+        int i = consumers.indexOf(consumer);
+        if (i >= 0) {
+            consumers.remove(i);
+            tiers.remove(i);
+        }
+    }
+
+    /**
+     * Bytes held by all consumers. Main thread only.
+     */
+    public long getUsedBytes() {
+        long used = 0;
+        for (Consumer consumer : snapshot()) {
+            used += consumer.getBytes();
+        }
+        return used;
+    }
+
+    /**
+     * Called by a consumer after it took on more bitmaps, from any thread. Checks the
+     * total on the main thread, once for any number of calls made before it runs.
+     */
+    public void onGrown() {
+        synchronized (this) {
+            if (checkPending) return;
+            checkPending = true;
+        }
+        mainHandler.post(() -> {
+            synchronized (this) {
+                checkPending = false;
+            }
+            enforce();
+        });
+    }
+
+    // Trims tiers in order until the total fits the budget
+    private void enforce() {
+        long excess = getUsedBytes() - budget;
+        for (int tier : new int[] {TIER_AHEAD, TIER_CACHE, TIER_SPARE}) {
+            for (Consumer consumer : snapshot(tier)) {
+                if (excess <= 0) break;
+                long before = consumer.getBytes();
+                consumer.trimTo(Math.max(0, before - excess));
+                excess -= before - consumer.getBytes();
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // Next in line to be killed: keep nothing that can be decoded again
+            shed(TIER_CACHE, 0);
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            shed(TIER_CACHE, 0.5f);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            // Includes the UI being hidden: nothing ahead of need will be looked at soon
+            shed(TIER_AHEAD, 0);
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            shed(TIER_SPARE, 0);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        shed(TIER_CACHE, 0);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Empties the tiers below the given one and keeps the given share of that one.
+     */
+    private void shed(int upTo, float keep) {
+        long before = getUsedBytes();
+        for (int tier = TIER_SPARE; tier <= upTo; tier++) {
+            for (Consumer consumer : snapshot(tier)) {
+                consumer.trimTo(tier < upTo ? 0 : (long) (consumer.getBytes() * keep));
+            }
+        }
+        Log.i(TAG, "Trimmed bitmaps from " + (before >> 10) + " KB to " + (getUsedBytes() >> 10) + " KB");
+    }
+
+    private synchronized List<Consumer> snapshot() {
+        return new ArrayList<>(consumers);
+    }
+
+    private synchronized List<Consumer> snapshot(int tier) {
+        List<Consumer> inTier = new ArrayList<>();
+        for (int i = 0; i < consumers.size(); i++) {
+            if (tiers.get(i) == tier) inTier.add(consumers.get(i));
+        }
+        return inTier;
+    }
+}
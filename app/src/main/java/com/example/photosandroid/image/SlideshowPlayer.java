@@ -0,0 +1,266 @@
+package com.example.photosandroid.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.example.photosandroid.model.Photo;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Plays a slideshow on a timer, decoding one photo ahead into bitmaps that are reused.
+ *
+ * The view shows one bitmap while the next photo is decoded into another, and they swap
+ * when the photo changes. The render thread may still be drawing the bitmap the view
+ * lets go of, so it is held for one more turn and goes back to the {@link BitmapPool} at
+ * the next swap, when it has long been off screen. The pool decodes with
+ * {@code inBitmap} (ImageDecoder, used by
+ * {@link ImageLoader}, cannot decode into an existing bitmap), so once the pool holds
+ * bitmaps large enough a long slideshow allocates no pixel memory and gives the garbage
+ * collector nothing to pause for. The player's bitmaps count against the
+ * {@link MemoryBudget} as visible; they go back to the pool on release.
+ *
+ * How late photos appear and how long they take to decode is counted in {@link Stats}.
+ * Methods must be called from the main thread.
+ */
+public class SlideshowPlayer implements MemoryBudget.Consumer {
+
+    /**
+     * Told about every photo the player shows.
+     */
+    public interface Listener {
+        void onPhotoShown(int index);
+    }
+
+    /** How long each photo stays on screen. */
+    public static final long INTERVAL_MS = 3000;
+
+    private static final String TAG = "SlideshowPlayer";
+
+    // One decode at a time, in order; there is never more than one photo ahead
+    private static final Executor DECODER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, "slideshow-decode");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final BitmapPool pool;
+    private final MemoryBudget budget;
+    private final List<Photo> photos;
+    private final ImageView view;
+    private final Listener listener;
+    private final int screenSize;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable tick = this::onTick;
+    private final Stats stats = new Stats();
+
+    private Bitmap shown;  // the bitmap in the view, null until the first swap
+    private Bitmap retired; // the bitmap shown before; the last frame drawn may still use it
+    private Frame ready;   // the next photo, decoded and waiting for its turn
+    private int index;     // photo on screen
+    private int generation; // bumped on stop; decodes started before are dropped
+    private boolean playing;
+    private boolean late;  // the timer ran out before the next photo was ready
+    private long dueAt;    // uptime at which the next photo should appear
+    private int failures;  // unreadable photos in a row
+
+    public SlideshowPlayer(Context context, List<Photo> photos, ImageView view, Listener listener) {
+        this.pool = BitmapPool.getInstance(context);
+        this.budget = MemoryBudget.getInstance(context);
+        this.photos = photos;
+        this.view = view;
+        this.listener = listener;
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        this.screenSize = Math.min(metrics.widthPixels, metrics.heightPixels);
+        budget.register(this, MemoryBudget.TIER_VISIBLE);
+    }
+
+    /**
+     * Starts playing from the photo at the given index, which is assumed to be on screen.
+     */
+    public void start(int from) {
+        if (playing) return;
+        playing = true;
+        index = from;
+        late = false;
+        failures = 0;
+        dueAt = SystemClock.uptimeMillis() + INTERVAL_MS;
+        decode(Math.floorMod(from + 1, photos.size()));
+        mainHandler.postDelayed(tick, INTERVAL_MS);
+    }
+
+    /**
+     * Stops playing, leaving the current photo on screen.
+     * @return the index of the photo on screen
+     */
+    public int stop() {
+        if (playing) {
+            playing = false;
+            generation++;
+            mainHandler.removeCallbacks(tick);
+            if (ready != null) {
+                pool.put(ready.bitmap);
+                ready = null;
+            }
+            Log.i(TAG, stats + "; " + pool);
+        }
+        return index;
+    }
+
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    /**
+     * Counts for this player since it was created.
+     */
+    public Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * Stops playing and gives the bitmaps back to the pool. Call from onDestroy.
+     */
+    public void release() {
+        stop();
+        budget.unregister(this);
+        pool.put(retired);
+        retired = null;
+        if (shown != null) {
+            view.setImageDrawable(null);
+            pool.put(shown);
+            shown = null;
+        }
+    }
+
+    @Override
+    public long getBytes() {
+        long bytes = 0;
+        for (Bitmap bitmap : new Bitmap[] {shown, retired, ready != null ? ready.bitmap : null}) {
+            if (bitmap != null) bytes += bitmap.getAllocationByteCount();
+        }
+        return bytes;
+    }
+
+    @Override
+    public void trimTo(long bytes) {
+        // Visible; never asked to
+    }
+
+    private void onTick() {
+        if (!playing) return;
+        if (ready != null) {
+            show();
+        } else {
+            // Shown as soon as it is decoded
+            late = true;
+            stats.missed++;
+        }
+    }
+
+    private void show() {
+        long lateness = Math.max(0, SystemClock.uptimeMillis() - dueAt);
+        stats.shown++;
+        stats.totalLateMillis += lateness;
+        stats.maxLateMillis = Math.max(stats.maxLateMillis, lateness);
+
+        // The bitmap replaced a turn ago is no longer drawn; the next photo can be decoded into it
+        pool.put(retired);
+        retired = shown;
+        shown = ready.bitmap;
+        view.setImageBitmap(shown);
+        index = ready.index;
+        ready = null;
+        late = false;
+        listener.onPhotoShown(index);
+
+        dueAt = SystemClock.uptimeMillis() + INTERVAL_MS;
+        decode(Math.floorMod(index + 1, photos.size()));
+        mainHandler.postDelayed(tick, INTERVAL_MS);
+    }
+
+    private void decode(int target) {
+        Uri uri = Uri.parse(photos.get(target).getFilePath());
+        int started = generation;
+        DECODER.execute(() -> {
+            long start = SystemClock.elapsedRealtime();
+            Bitmap bitmap = pool.decode(uri, screenSize);
+            long millis = SystemClock.elapsedRealtime() - start;
+            mainHandler.post(() -> onDecoded(started, target, bitmap, millis));
+        });
+    }
+
+    private void onDecoded(int started, int target, Bitmap bitmap, long millis) {
+        if (started != generation) {
+            pool.put(bitmap);
+            return;
+        }
+        if (bitmap == null) {
+            // Skip photos that cannot be read, unless none can
+            stats.failed++;
+            if (++failures < photos.size()) {
+                decode(Math.floorMod(target + 1, photos.size()));
+            } else {
+                stop();
+            }
+            return;
+        }
+        failures = 0;
+        stats.decoded++;
+        stats.totalDecodeMillis += millis;
+        stats.maxDecodeMillis = Math.max(stats.maxDecodeMillis, millis);
+
+        ready = new Frame(target, bitmap);
+        if (late) show();
+    }
+
+    /**
+     * A decoded photo waiting to be shown.
+     */
+    private static final class Frame {
+        final int index;
+        final Bitmap bitmap;
+
+        Frame(int index, Bitmap bitmap) {
+            this.index = index;
+            this.bitmap = bitmap;
+        }
+    }
+
+    /**
+     * Timing of the photos shown and the decodes behind them. A photo is missed when the
+     * timer runs out before it is decoded; it then appears late.
+     */
+    public static final class Stats {
+        public int shown;
+        public int missed;
+        public long totalLateMillis;
+        public long maxLateMillis;
+        public int decoded;
+        public int failed;
+        public long totalDecodeMillis;
+        public long maxDecodeMillis;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d shown, %d missed, late avg %d ms max %d ms; decode avg %d ms max %d ms, %d failed",
+                    shown, missed, shown == 0 ? 0 : totalLateMillis / shown, maxLateMillis,
+                    decoded == 0 ? 0 : totalDecodeMillis / decoded, maxDecodeMillis, failed);
+        }
+    }
+}
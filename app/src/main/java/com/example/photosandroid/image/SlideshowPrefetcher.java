@@ -0,0 +1,215 @@
+package com.example.photosandroid.image;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.DisplayMetrics;
+import android.widget.ImageView;
+
+import com.example.photosandroid.model.Photo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the photos around the current slideshow position decoded, so that stepping to
+ * the next or previous photo shows an image that is already in memory.
+ *
+ * The window reaches further in the direction the user is moving than behind it; photos
+ * that fall out of the window (those furthest behind first) are released and their pending
+ * decodes cancelled. The window size is derived from the {@link MemoryBudget}, which
+ * counts the window as decoded ahead of need and may shrink it down to the current photo.
+ * Methods must be called from the main thread.
+ */
+public class SlideshowPrefetcher implements MemoryBudget.Consumer {
+    /** Upper bound on photos decoded ahead of the current one. */
+    private static final int MAX_AHEAD = 4;
+    /** Share of the memory budget the window may use. */
+    private static final int BUDGET_FRACTION = 2;
+
+    private final ImageLoader loader;
+    private final MemoryBudget budget;
+    private final List<Photo> photos;
+    private final ImageView view;
+    private final int ahead;
+    private final int behind;
+
+    private final Map<String, Bitmap> decoded = new HashMap<>();
+    private final Map<String, Slot> pending = new HashMap<>();
+    private List<String> window = new ArrayList<>(); // most important first
+    private int current = -1;
+    private boolean released;
+
+    public SlideshowPrefetcher(Context context, List<Photo> photos, ImageView view) {
+        this.loader = ImageLoader.getInstance(context);
+        this.budget = MemoryBudget.getInstance(context);
+        this.photos = photos;
+        this.view = view;
+        this.ahead = windowAhead(context, budget.getBudget() / BUDGET_FRACTION);
+        this.behind = Math.max(1, ahead / 2);
+        budget.register(this, MemoryBudget.TIER_AHEAD);
+    }
+
+    /**
+     * Shows the photo at the given index and moves the window there.
+     */
+    public void show(int index) {
+        int step = direction(current, index, photos.size());
+        current = index;
+        window = window(index, step);
+
+        // Drop what is no longer in the window
+        decoded.keySet().retainAll(window);
+        Iterator<Map.Entry<String, Slot>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Slot> entry = it.next();
+            if (!window.contains(entry.getKey())) {
+                loader.cancelScreenImage(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+
+        String uri = window.get(0);
+        Bitmap bitmap = decoded.get(uri);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+        } else {
+            view.setImageDrawable(null);
+            // A prefetch already queued for this photo moves to the front
+            Slot slot = pending.remove(uri);
+            if (slot != null) loader.cancelScreenImage(uri, slot);
+            request(uri, ImageLoader.PRIORITY_VISIBLE);
+        }
+
+        // The loader runs the newest request first, so queue the furthest photos first
+        for (int i = window.size() - 1; i > 0; i--) {
+            String next = window.get(i);
+            if (!decoded.containsKey(next) && !pending.containsKey(next)) {
+                request(next, ImageLoader.PRIORITY_PREFETCH);
+            }
+        }
+    }
+
+    /**
+     * Cancels outstanding decodes and drops the decoded photos. Call from onDestroy.
+     */
+    public void release() {
+        released = true;
+        budget.unregister(this);
+        for (Map.Entry<String, Slot> entry : pending.entrySet()) {
+            loader.cancelScreenImage(entry.getKey(), entry.getValue());
+        }
+        pending.clear();
+        decoded.clear();
+    }
+
+    @Override
+    public long getBytes() {
+        long bytes = 0;
+        for (Bitmap bitmap : decoded.values()) {
+            bytes += bitmap.getAllocationByteCount();
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops decoded photos, furthest from the current one first, and stops decoding ahead
+     * until the next {@link #show}. The current photo stays in its view, or is still
+     * decoded for it.
+     */
+    @Override
+    public void trimTo(long bytes) {
+        Iterator<Map.Entry<String, Slot>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Slot> entry = it.next();
+            if (!entry.getKey().equals(window.get(0))) {
+                loader.cancelScreenImage(entry.getKey(), entry.getValue());
+                it.remove();
+            }
+        }
+        long held = getBytes();
+        for (int i = window.size() - 1; i >= 0 && held > bytes; i--) {
+            Bitmap bitmap = decoded.remove(window.get(i));
+            if (bitmap != null) held -= bitmap.getAllocationByteCount();
+        }
+    }
+
+    private void request(String uri, int priority) {
+        Slot slot = new Slot(uri);
+        pending.put(uri, slot);
+        loader.requestScreenImage(uri, priority, slot);
+    }
+
+    /**
+     * Photo paths in the window, most important first: the current photo, then
+     * alternately ahead and behind, with the ahead side reaching further.
+     */
+    private List<String> window(int index, int step) {
+        int n = photos.size();
+        List<String> window = new ArrayList<>();
+        window.add(photos.get(index).getFilePath());
+        for (int d = 1; d <= ahead; d++) {
+            addOnce(window, photos.get(Math.floorMod(index + d * step, n)).getFilePath());
+            if (d <= behind) {
+                addOnce(window, photos.get(Math.floorMod(index - d * step, n)).getFilePath());
+            }
+        }
+        return window;
+    }
+
+    private static void addOnce(List<String> list, String s) {
+        if (!list.contains(s)) list.add(s);
+    }
+
+    /**
+     * +1 when moving forward (including wrapping from the last photo to the first), -1 backward.
+     */
+    static int direction(int from, int to, int count) {
+        if (from < 0 || from == to) return 1;
+        if (Math.floorMod(from + 1, count) == to) return 1;
+        if (Math.floorMod(from - 1, count) == to) return -1;
+        return to > from ? 1 : -1;
+    }
+
+    /**
+     * How many photos to decode ahead, given roughly what one screen-sized photo costs.
+     */
+    private static int windowAhead(Context context, long budget) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null || am.isLowRamDevice()) return 1;
+
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        long side = Math.min(metrics.widthPixels, metrics.heightPixels);
+        // Power-of-two sampling leaves decodes up to twice the target per side
+        long bytesPerPhoto = side * side * 4 * 2;
+        // The window holds ahead + ahead / 2 + 1 photos
+        long fits = budget / Math.max(1, bytesPerPhoto);
+        return (int) Math.max(1, Math.min(MAX_AHEAD, (fits - 1) * 2 / 3));
+    }
+
+    /**
+     * Receives one decoded photo of the window.
+     */
+    private final class Slot implements ImageLoader.Callback {
+        final String uri;
+
+        Slot(String uri) {
+            this.uri = uri;
+        }
+
+        @Override
+        public void onImageLoaded(Bitmap bitmap) {
+            if (released || pending.get(uri) != this) return;
+            pending.remove(uri);
+            if (bitmap == null) return;
+            decoded.put(uri, bitmap);
+            budget.onGrown();
+            if (photos.get(current).getFilePath().equals(uri)) {
+                view.setImageBitmap(bitmap);
+            }
+        }
+    }
+}
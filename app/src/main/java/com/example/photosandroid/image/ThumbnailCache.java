@@ -0,0 +1,225 @@
+package com.example.photosandroid.image;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.Size;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Decodes photo thumbnails at the size they are displayed and caches them in two tiers:
+ * a byte-budgeted LRU of bitmaps in memory and JPEG files in the app's cache directory.
+ *
+ * Memory entries are keyed by URI and size. Disk entries are additionally keyed by the
+ * document's last-modified time, so an edited image gets a fresh thumbnail. The memory
+ * tier may use the whole {@link MemoryBudget} and is trimmed when other bitmaps need room.
+ */
+public class ThumbnailCache implements MemoryBudget.Consumer {
+    private static final String TAG = "ThumbnailCache";
+    private static final String DIRECTORY = "thumbnails";
+
+    /** Upper bound for the on-disk cache; the oldest files are dropped beyond it. */
+    private static final long DISK_BUDGET_BYTES = 64L * 1024 * 1024;
+    /** How many thumbnails are written between two disk trims. */
+    private static final int TRIM_INTERVAL = 50;
+
+    private static ThumbnailCache instance;
+
+    private final ContentResolver resolver;
+    private final File diskDir;
+    private final LruCache<String, Bitmap> memory;
+    private final MemoryBudget budget;
+    private int writesSinceTrim;
+
+    private ThumbnailCache(Context context) {
+        this.resolver = context.getContentResolver();
+        this.diskDir = new File(context.getCacheDir(), DIRECTORY);
+        diskDir.mkdirs();
+
+        // Bounded by the whole budget; other bitmaps make room by trimming it
+        this.budget = MemoryBudget.getInstance(context);
+        int maxBytes = (int) Math.min(budget.getBudget(), Integer.MAX_VALUE);
+        this.memory = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+        };
+        budget.register(this, MemoryBudget.TIER_CACHE);
+    }
+
+    public static synchronized ThumbnailCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new ThumbnailCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Returns a cached thumbnail without doing any I/O.
+     * @return the bitmap, or null if it is not in memory
+     */
+    public Bitmap getFromMemory(String uri, int size) {
+        return memory.get(memoryKey(uri, size));
+    }
+
+    /**
+     * Returns a thumbnail whose shorter side is at least {@code size} pixels, from memory,
+     * from disk, or by decoding the original at reduced resolution.
+     * @return the bitmap, or null if the image cannot be read
+     */
+    public Bitmap load(String uri, int size) {
+        String key = memoryKey(uri, size);
+        Bitmap bitmap = memory.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        Uri parsed = Uri.parse(uri);
+        File file = new File(diskDir, diskName(uri, lastModified(parsed), size));
+        if (file.exists()) {
+            bitmap = BitmapFactory.decodeFile(file.getPath());
+        }
+        if (bitmap == null) {
+            bitmap = decodeSampled(resolver, parsed, size, size);
+            if (bitmap == null) {
+                return null;
+            }
+            writeToDisk(file, bitmap);
+        }
+        memory.put(key, bitmap);
+        budget.onGrown();
+        return bitmap;
+    }
+
+    @Override
+    public long getBytes() {
+        return memory.size();
+    }
+
+    @Override
+    public void trimTo(long bytes) {
+        // Shown thumbnails stay in their views; only the cache lets go of them
+        memory.trimToSize((int) Math.min(bytes, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Decodes an image so that it still covers {@code width} x {@code height}, skipping
+     * as much of the full resolution as possible (power-of-two subsampling in the decoder).
+     * @return the bitmap, or null if the image cannot be read
+     */
+    public static Bitmap decodeSampled(ContentResolver resolver, Uri uri, int width, int height) {
+        try {
+            ImageDecoder.Source source = ImageDecoder.createSource(resolver, uri);
+            return ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+                Size full = info.getSize();
+                decoder.setTargetSampleSize(sampleSize(full.getWidth(), full.getHeight(), width, height));
+                // Software bitmaps can be compressed to the disk cache and reused
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+            });
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Cannot decode " + uri, e);
+            return null;
+        }
+    }
+
+    /**
+     * Largest power of two by which the image can be shrunk while still covering the target.
+     */
+    static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sample = 1;
+        while (width / (sample * 2) >= targetWidth && height / (sample * 2) >= targetHeight) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    /**
+     * Reads the document's last-modified time, or 0 if the provider does not report one.
+     */
+    private long lastModified(Uri uri) {
+        String[] projection = {DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+        try (Cursor cursor = resolver.query(uri, projection, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (RuntimeException e) {
+            // provider without that column, or permission revoked
+        }
+        return 0;
+    }
+
+    private static String memoryKey(String uri, int size) {
+        return uri + '@' + size;
+    }
+
+    // The URI's SHA-1, so that no two photos share a file
+    private static String diskName(String uri, long lastModified, int size) {
+        return sha1Hex(uri) + '_' + Long.toHexString(lastModified) + '_' + size + ".jpg";
+    }
+
+    private static String sha1Hex(String s) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every Android version has SHA-1
+        }
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private void writeToDisk(File file, Bitmap bitmap) {
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write thumbnail", e);
+            temp.delete();
+            return;
+        }
+        temp.renameTo(file);
+
+        synchronized (this) {
+            if (++writesSinceTrim < TRIM_INTERVAL) return;
+            writesSinceTrim = 0;
+        }
+        trimDisk();
+    }
+
+    /**
+     * Deletes the least recently written thumbnails until the cache fits its budget.
+     */
+    private void trimDisk() {
+        File[] files = diskDir.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File f : files) total += f.length();
+        if (total <= DISK_BUDGET_BYTES) return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (total <= DISK_BUDGET_BYTES * 3 / 4) break;
+            total -= f.length();
+            f.delete();
+        }
+    }
+}
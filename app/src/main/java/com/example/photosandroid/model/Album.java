@@ -1,18 +1,62 @@
 package com.example.photosandroid.model;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
 
+/**
+ * A named, ordered collection of photos.
+ *
+ * The photos are kept in an insertion-ordered map by file path, so checking for,
+ * finding and removing a photo take constant time while the display order is kept.
+ * {@link #getPhotos()} lists them by position through an array that is rebuilt on the
+ * first positional access after a change; {@link #getPhotosBetween} likewise searches an
+ * array sorted by date. The album's {@link AlbumStats} are kept up to date as photos come
+ * and go and as their tags change, so they never need a pass over the photos: when the
+ * oldest or newest photo leaves, the next one is read off the ends of the date order.
+ * Removals leave that array in place, skipping removed photos, so removing photos one by
+ * one from the ends of the date range does not sort again each time.
+ */
 public class Album implements Serializable {
     private static final long serialVersionUID = 1L;
 
     private String name;
-    private List<Photo> photos;
+    private List<Photo> photos;      // only set during Java serialization, see writeObject
+    private int id;                  // Stable storage id, names the album's shard file (0 = not yet assigned)
+    // Photo changes made, and how many of them the shard on disk has; dirty while they differ
+    private transient int changes;
+    private transient int savedChanges;
+
+    // While unloaded only the manifest entry is in memory; photos are read from the shard on demand
+    private transient boolean unloaded;
+    private transient AlbumStats indexedStats;
+
+    // Aggregates of the loaded photos, changed along with them
+    private transient Map<Tag, Integer> tagCounts = new HashMap<>();
+    private transient long earliestDate = Long.MAX_VALUE;
+    private transient long latestDate = Long.MIN_VALUE;
+    private transient AlbumStats stats; // snapshot of the above, null when out of date
+
+    private transient LinkedHashMap<String, Photo> byPath = new LinkedHashMap<>();
+    private transient Photo[] ordered; // byPath in order, null when out of date
+    private transient Photo[] byDate;  // byPath sorted by date, null after an add; see byDate()
+    private transient int dateStart;   // byDate[dateStart, dateEnd) holds every photo, plus
+    private transient int dateEnd;     // those removed since it was sorted
+    private transient List<Photo> view = new PhotoList();
 
     public Album(String name) {
         this.name = name;
-        this.photos = new ArrayList<>();
     }
 
     public String getName() {
@@ -23,30 +67,367 @@ public class Album implements Serializable {
         this.name = name;
     }
 
+    /**
+     * Returns the album's photos as a read-only list that follows later changes.
+     * For an album that is not loaded (see {@link #isLoaded()}) this is empty; open it
+     * through {@link AlbumRepository#openAlbum} first.
+     */
     public List<Photo> getPhotos() {
-        return photos;
+        return view;
+    }
+
+    /**
+     * Number of photos, available even when the photos themselves are not loaded.
+     */
+    public int getPhotoCount() {
+        return unloaded ? indexedStats.getPhotoCount() : byPath.size();
+    }
+
+    /**
+     * Path of the photo that represents this album, or null if it is empty.
+     */
+    public String getCoverPath() {
+        if (unloaded) return indexedStats.getCoverPath();
+        return byPath.isEmpty() ? null : byPath.values().iterator().next().getFilePath();
+    }
+
+    /**
+     * How many of the album's photos carry each tag. Read-only. When the photos are not
+     * loaded, only the most common tags are known (see {@link AlbumStats#TOP_TAGS}).
+     */
+    public Map<Tag, Integer> getTagCounts() {
+        return getStats().getTagCounts();
+    }
+
+    /**
+     * Returns the album's summary, available even when the photos themselves are not
+     * loaded. While they are, the snapshot is taken again after each change, from
+     * numbers that are kept up to date; this never goes through the photos.
+     */
+    public AlbumStats getStats() {
+        if (unloaded) return indexedStats;
+        AlbumStats snapshot = stats;
+        if (snapshot == null) {
+            boolean empty = byPath.isEmpty();
+            snapshot = new AlbumStats(byPath.size(), getCoverPath(),
+                    empty ? 0 : earliestDate, empty ? 0 : latestDate, new HashMap<>(tagCounts), false);
+            stats = snapshot;
+        }
+        return snapshot;
     }
 
+    public boolean isLoaded() {
+        return !unloaded;
+    }
+
+    /**
+     * Adds a photo at the end, unless the album already has a photo with its path.
+     */
     public void addPhoto(Photo photo) {
-        photos.add(photo);
+        if (byPath.putIfAbsent(photo.getFilePath(), photo) == null) {
+            ordered = null;
+            byDate = null;
+            photo.addAlbum(id);
+            changes++;
+            count(photo);
+        }
     }
 
     public void removePhoto(Photo photo) {
-        photos.remove(photo);
+        Photo removed = byPath.remove(photo.getFilePath());
+        if (removed != null) {
+            ordered = null;
+            removed.removeAlbum(id);
+            changes++;
+            uncount(removed);
+        }
+    }
+
+    /**
+     * Updates the tag counts of the albums containing the photo after one of its tags was
+     * added (delta 1) or removed (delta -1). Unloaded albums are found through the
+     * photo's album ids and update the counts kept in their manifest entry (see
+     * {@link AlbumStats#withTagCounted}), so no photos need to be read.
+     */
+    static void tagChanged(List<Album> albums, Photo photo, String tagName, String tagValue, int delta) {
+        int tagId = TagDictionary.find(tagName, tagValue);
+        if (tagId < 0) return;
+        Tag tag = TagDictionary.get(tagId);
+        for (Album album : albums) {
+            if (album.unloaded) {
+                if (photo.isInAlbum(album.id)) {
+                    album.indexedStats = album.indexedStats.withTagCounted(tag, delta);
+                }
+            } else if (album.byPath.get(photo.getFilePath()) == photo) {
+                album.countTag(tag, delta);
+            }
+        }
+    }
+
+    private void count(Photo photo) {
+        for (int tagId : photo.getTagIds()) {
+            countTag(TagDictionary.get(tagId), 1);
+        }
+        long date = photo.getDateMillis();
+        earliestDate = Math.min(earliestDate, date);
+        latestDate = Math.max(latestDate, date);
+        stats = null;
+    }
+
+    private void uncount(Photo photo) {
+        for (int tagId : photo.getTagIds()) {
+            countTag(TagDictionary.get(tagId), -1);
+        }
+        long date = photo.getDateMillis();
+        if (date == earliestDate || date == latestDate) {
+            // The only case that needs the other photos: the new oldest and newest are at
+            // the ends of the date order, once removed photos are skipped there
+            Photo[] array = byDate();
+            while (dateStart < dateEnd && !byPath.containsKey(array[dateStart].getFilePath())) dateStart++;
+            while (dateEnd > dateStart && !byPath.containsKey(array[dateEnd - 1].getFilePath())) dateEnd--;
+            earliestDate = dateStart < dateEnd ? array[dateStart].getDateMillis() : Long.MAX_VALUE;
+            latestDate = dateStart < dateEnd ? array[dateEnd - 1].getDateMillis() : Long.MIN_VALUE;
+        }
+        stats = null;
+    }
+
+    private void countTag(Tag tag, int delta) {
+        Integer count = tagCounts.get(tag);
+        int updated = (count == null ? 0 : count) + delta;
+        if (updated > 0) tagCounts.put(tag, updated);
+        else tagCounts.remove(tag);
+        stats = null;
+    }
+
+    // Starts the aggregates over from the photos now in the album
+    private void recount() {
+        tagCounts = new HashMap<>();
+        earliestDate = Long.MAX_VALUE;
+        latestDate = Long.MIN_VALUE;
+        for (Photo photo : byPath.values()) {
+            count(photo);
+        }
+        stats = null;
+    }
+
+    /**
+     * @return the album's photo with the given path, or null if it has none
+     */
+    public Photo getPhoto(String filePath) {
+        return byPath.get(filePath);
+    }
+
+    // Empties the album, for deleting it; returns the photos it held
+    List<Photo> clearPhotos() {
+        List<Photo> removed = new ArrayList<>(byPath.values());
+        for (Photo photo : removed) {
+            photo.removeAlbum(id);
+        }
+        byPath.clear();
+        ordered = null;
+        byDate = null;
+        changes++;
+        recount();
+        return removed;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    // An id no album in the list has; albums get theirs when created, before any photos
+    static int nextId(List<Album> albums) {
+        int next = 1;
+        for (Album album : albums) next = Math.max(next, album.id + 1);
+        return next;
+    }
+
+    // Renames do not dirty an album: the name lives in the manifest, not in the shard
+    boolean isDirty() {
+        return changes != savedChanges;
+    }
+
+    // Called for changes the album cannot see itself, such as a shard rewritten in a newer format
+    void markDirty() {
+        changes++;
+    }
+
+    void clearDirty() {
+        savedChanges = changes;
+    }
+
+    // Identifies the album's photos as of now, for a checkpoint written in the background
+    int getChangeCount() {
+        return changes;
+    }
+
+    // After a shard written with the photos of the given change count reached disk
+    void markSaved(int changeCount) {
+        savedChanges = changeCount;
+    }
+
+    // Puts the album in the unloaded state described by its manifest entry
+    void setIndexEntry(AlbumStats entry) {
+        byPath = new LinkedHashMap<>();
+        ordered = null;
+        byDate = null;
+        unloaded = true;
+        indexedStats = entry;
+        tagCounts = new HashMap<>();
+        stats = null;
+    }
+
+    // True for an unloaded album whose manifest entry predates some of its statistics
+    boolean hasPartialStats() {
+        return unloaded && indexedStats.isPartial();
+    }
+
+    // Installs photos read from the album's shard; they already count this album as containing them
+    void adoptPhotos(List<Photo> loaded) {
+        byPath = new LinkedHashMap<>(loaded.size() * 4 / 3 + 1);
+        for (Photo photo : loaded) {
+            byPath.putIfAbsent(photo.getFilePath(), photo);
+        }
+        ordered = null;
+        byDate = null;
+        unloaded = false;
+        indexedStats = null;
+        recount();
+    }
+
+    void markLoaded() {
+        unloaded = false;
+        indexedStats = null;
+        recount();
+    }
+
+    // Releases the photos of a clean album, keeping what the manifest needs
+    void unload() {
+        setIndexEntry(getStats().withTopTagsOnly());
+    }
+
+    /**
+     * Photos dated from {@code from} (inclusive) to {@code to} (exclusive), oldest first.
+     * After the first call following a change, this is a binary search.
+     */
+    public List<Photo> getPhotosBetween(long from, long to) {
+        Photo[] array = byDate();
+        int start = firstDatedFrom(array, dateStart, dateEnd, from);
+        int end = Math.max(start, firstDatedFrom(array, dateStart, dateEnd, to));
+        if (dateEnd - dateStart == byPath.size()) {
+            return Collections.unmodifiableList(Arrays.asList(array).subList(start, end));
+        }
+        List<Photo> photos = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            if (byPath.containsKey(array[i].getFilePath())) photos.add(array[i]);
+        }
+        return Collections.unmodifiableList(photos);
+    }
+
+    /**
+     * The photos sorted by date in {@code byDate[dateStart, dateEnd)}, sorting them if a
+     * photo was added since. Photos removed since are still there; once they outnumber
+     * the others they are filtered out, which keeps the order.
+     */
+    private Photo[] byDate() {
+        Photo[] array = byDate;
+        if (array == null) {
+            array = byPath.values().toArray(new Photo[0]);
+            Arrays.sort(array, Comparator.comparingLong(Photo::getDateMillis));
+            byDate = array;
+            dateStart = 0;
+            dateEnd = array.length;
+        } else if (dateEnd - dateStart > 2 * byPath.size()) {
+            Photo[] live = new Photo[byPath.size()];
+            int n = 0;
+            for (int i = dateStart; i < dateEnd; i++) {
+                if (byPath.containsKey(array[i].getFilePath())) live[n++] = array[i];
+            }
+            array = live;
+            byDate = array;
+            dateStart = 0;
+            dateEnd = n;
+        }
+        return array;
+    }
+
+    private static int firstDatedFrom(Photo[] array, int lo, int hi, long date) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (array[mid].getDateMillis() < date) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
     }
 
     // Used to determine if a photo already exists in an album (based on the path)
     public boolean containsPhoto(Photo photo) {
-        for (Photo p : photos) {
-            if (p.getFilePath().equals(photo.getFilePath())) {
-                return true;
+        return byPath.containsKey(photo.getFilePath());
+    }
+
+    public boolean containsPhoto(String filePath) {
+        return byPath.containsKey(filePath);
+    }
+
+    private Photo[] ordered() {
+        Photo[] array = ordered;
+        if (array == null) {
+            array = byPath.values().toArray(new Photo[0]);
+            ordered = array;
+        }
+        return array;
+    }
+
+    // The serialized form keeps the photo list of older versions
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        photos = new ArrayList<>(byPath.values());
+        try {
+            out.defaultWriteObject();
+        } finally {
+            photos = null;
+        }
+    }
+
+    // Albums serialized by older versions keep their photos in a list
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        byPath = new LinkedHashMap<>();
+        view = new PhotoList();
+        if (photos != null) {
+            for (Photo photo : photos) {
+                byPath.putIfAbsent(photo.getFilePath(), photo);
             }
+            photos = null;
+        }
+        recount();
+    }
+
+    /**
+     * Positional, read-only view of the photos.
+     */
+    private class PhotoList extends AbstractList<Photo> implements RandomAccess {
+        @Override
+        public Photo get(int index) {
+            return ordered()[index];
+        }
+
+        @Override
+        public int size() {
+            return byPath.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Photo && byPath.containsKey(((Photo) o).getFilePath());
         }
-        return false;
     }
 
     @Override
     public String toString() {
-        return name + " (" + photos.size() + " photos)";
+        return name + " (" + getPhotoCount() + " photos)";
     }
 }
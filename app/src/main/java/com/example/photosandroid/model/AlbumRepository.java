@@ -0,0 +1,650 @@
+package com.example.photosandroid.model;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide owner of the album library.
+ *
+ * The album index is loaded from {@link FileStorage} once, on first use, on a background
+ * thread; until it is installed the library looks empty, and {@link #whenLoaded} runs
+ * work once it is there. Every screen works on the same {@link Album} and {@link Photo}
+ * objects. Photos are shared between albums through a {@link PhotoRegistry}, so a photo
+ * added to a second album, or moved, is the same object with the same tags. An album's
+ * photos, and the registry buckets they are in, are read in the background when it is
+ * opened ({@link #openAlbum(Album, Runnable)}), or a page at a time for large albums
+ * shown without being opened ({@link #getPhotos}); the rest of the registry is only read
+ * for searching and adding photos. The most recently opened albums stay resident and older,
+ * unchanged ones are released again. All changes go through this
+ * class so that they are journaled and observers are told about them. Journal writes
+ * happen in the background through a {@link WriteBehindPersister}. The photos of the
+ * registry read so far are indexed by tag in a {@link TagIndex}; tag value suggestions
+ * for the whole library come from {@link TagCompletions}, built from the tag counts in
+ * the album index. Methods must be called from the main thread, which alone touches the
+ * library; background threads only read files and hand what they read to it, and
+ * {@link #search} queries a snapshot of the index, so nothing is locked.
+ */
+public class AlbumRepository {
+
+    /**
+     * Callback for screens that display library contents.
+     */
+    public interface Listener {
+        void onLibraryChanged();
+    }
+
+    /**
+     * Receives a page of an album's photos read with {@link #getPhotos}.
+     */
+    public interface PageCallback {
+        void onPage(List<Photo> photos);
+    }
+
+    /** Number of recently opened albums whose photos are kept in memory. */
+    private static final int RESIDENT_ALBUMS = 8;
+
+    private static AlbumRepository instance;
+
+    private final Context context;
+    private final ArrayList<Album> albums = new ArrayList<>();
+    private final WriteBehindPersister persister;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final PhotoRegistry registry = new PhotoRegistry();
+    private TagIndex tagIndex = new TagIndex(); // replaced by the one built as the registry is read
+    private final TagCompletions tagCompletions = new TagCompletions();
+    // Loaded albums in least-recently-opened order
+    private final LinkedHashMap<Album, Boolean> residentAlbums = new LinkedHashMap<>(16, 0.75f, true);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Reads library files, one at a time, so that the main thread never waits for them
+    private final ExecutorService reader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "library-reader");
+        t.setDaemon(true);
+        return t;
+    });
+    private boolean loaded;
+    private final List<Runnable> waitingForLoad = new ArrayList<>();
+    private final List<Runnable> waitingForRegistry = new ArrayList<>();
+    // Albums being opened in the background, with what to run once they are
+    private final Map<Album, List<Runnable>> opening = new HashMap<>();
+    // Shard photo ids of albums read a page at a time without being opened
+    private final Map<Album, int[]> pagedIds = new HashMap<>();
+    private boolean checkpointing; // a checkpoint is being written in the background
+    private boolean damaged; // the manifest could not be read, so the files must not be rewritten
+
+    private AlbumRepository(Context context) {
+        this.context = context;
+        this.persister = new WriteBehindPersister(context);
+        // Nothing else touches the registry, index or albums until they are installed
+        reader.execute(() -> {
+            FileStorage.Library library = FileStorage.loadAlbums(context, registry, tagCompletions);
+            // Journal replay (or migration) may have read some of the registry
+            tagIndex.addPhotos(registry.photos(), byId(library.albums));
+            mainHandler.post(() -> install(library));
+        });
+    }
+
+    /**
+     * Returns the shared repository. On first access the library starts loading in the
+     * background; see {@link #whenLoaded}.
+     */
+    public static synchronized AlbumRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new AlbumRepository(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return whether the album index has been loaded; until then there are no albums
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Runs the given code on the main thread once the album index is loaded: right away
+     * if it already is. Listeners are also told when it arrives.
+     */
+    public void whenLoaded(Runnable action) {
+        if (loaded) {
+            action.run();
+        } else {
+            waitingForLoad.add(action);
+        }
+    }
+
+    // Takes over what the background load read; on the main thread
+    private void install(FileStorage.Library library) {
+        albums.addAll(library.albums);
+        for (Album album : albums) {
+            if (album.isLoaded()) residentAlbums.put(album, Boolean.TRUE);
+        }
+        persister.setJournalLength(library.journalLength);
+        damaged = library.damaged;
+        loaded = true;
+        for (Runnable action : waitingForLoad) {
+            action.run();
+        }
+        waitingForLoad.clear();
+        notifyListeners();
+    }
+
+    /**
+     * Returns all albums in display order (read-only; use the mutators below to change it).
+     * The list is empty until the album index is loaded, and fills in place then.
+     */
+    public List<Album> getAlbums() {
+        return Collections.unmodifiableList(albums);
+    }
+
+    /**
+     * Finds an album by its exact name.
+     * @return the album, or null if there is none
+     */
+    public Album findAlbum(String name) {
+        for (Album a : albums) {
+            if (a.getName().equals(name)) {
+                return a;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Makes sure an album's photos are in memory, reading them in the background if they
+     * are not, and then runs the given code on the main thread; right away if there was
+     * nothing to read. The code runs even if the album was deleted in the meantime, so it
+     * should check that if it matters.
+     */
+    public void openAlbum(Album album, Runnable onOpen) {
+        whenLoaded(() -> {
+            if (album.isLoaded()) {
+                if (albums.contains(album)) ensureLoaded(album);
+                onOpen.run();
+                return;
+            }
+            List<Runnable> waiting = opening.get(album);
+            if (waiting != null) {
+                waiting.add(onOpen);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(onOpen);
+            opening.put(album, waiting);
+            readAlbum(album);
+        });
+    }
+
+    /**
+     * Opens an album as {@link #openAlbum(Album, Runnable)} does, and reads the rest of
+     * the registry too, which adding photos needs to find those the library already has.
+     */
+    public void openAlbumForAdding(Album album, Runnable onOpen) {
+        openAlbum(album, () -> openRegistry(onOpen));
+    }
+
+    // Reads the shard of an album being opened, and the registry buckets its photos are
+    // in, in the background
+    private void readAlbum(Album album) {
+        int changes = album.getChangeCount();
+        Set<Integer> loadedBuckets = registry.getLoadedBuckets();
+        reader.execute(() -> {
+            int[] ids = FileStorage.readPhotoIds(context, album);
+            PhotoRegistry read = FileStorage.readPhotos(context, ids, loadedBuckets);
+            mainHandler.post(() -> finishOpening(album, ids, read, changes));
+        });
+    }
+
+    private void finishOpening(Album album, int[] ids, PhotoRegistry read, int changes) {
+        addToRegistry(read);
+        if (albums.contains(album) && !album.isLoaded()) {
+            if (album.getChangeCount() != changes) {
+                // Loaded, changed and released again since: the shard read may be older
+                readAlbum(album);
+                return;
+            }
+            if (ids != null) {
+                album.adoptPhotos(registry.resolve(ids));
+            } else {
+                album.markLoaded(); // a damaged shard only loses that album's photos
+            }
+        }
+        if (albums.contains(album)) {
+            ensureLoaded(album);
+        }
+        for (Runnable action : opening.remove(album)) {
+            action.run();
+        }
+    }
+
+    // Makes sure every registry bucket is in memory, reading the rest in the background
+    // if they are not, and then runs the given code on the main thread
+    private void openRegistry(Runnable onOpen) {
+        if (registry.isLoaded()) {
+            onOpen.run();
+            return;
+        }
+        waitingForRegistry.add(onOpen);
+        if (waitingForRegistry.size() > 1) return; // already being read
+        Set<Integer> loadedBuckets = registry.getLoadedBuckets();
+        // With no photos in memory yet, the whole index can be built in the background too
+        Map<Integer, Album> albumsById = registry.size() == 0 ? byId(albums) : null;
+        reader.execute(() -> {
+            PhotoRegistry read = FileStorage.readRegistry(context, loadedBuckets);
+            TagIndex index = null;
+            if (albumsById != null) {
+                index = new TagIndex();
+                index.addPhotos(read.photos(), albumsById);
+            }
+            TagIndex built = index;
+            mainHandler.post(() -> installRegistry(read, built));
+        });
+    }
+
+    private void installRegistry(PhotoRegistry read, TagIndex index) {
+        if (index != null && registry.size() == 0) {
+            // Nothing was indexed, so the index built with the photos has all of them
+            registry.addAll(read);
+            tagIndex = index;
+        } else {
+            addToRegistry(read);
+        }
+        List<Runnable> waiting = new ArrayList<>(waitingForRegistry);
+        waitingForRegistry.clear();
+        for (Runnable action : waiting) {
+            action.run();
+        }
+    }
+
+    // Takes over registry buckets read in the background and indexes their photos
+    private void addToRegistry(PhotoRegistry read) {
+        List<Photo> added = registry.addAll(read);
+        if (!added.isEmpty()) {
+            tagIndex.addPhotos(added, byId(albums));
+        }
+    }
+
+    private static Map<Integer, Album> byId(List<Album> albums) {
+        Map<Integer, Album> result = new HashMap<>();
+        for (Album album : albums) {
+            result.put(album.getId(), album);
+        }
+        return result;
+    }
+
+    /**
+     * Reads part of an album's photos, for screens that show large albums a page at a
+     * time, and passes them to the callback on the main thread. An album in memory is
+     * copied from right away; for one that is not, only its shard's photo ids and the
+     * registry buckets the page's photos are in are read, in the background, so the
+     * album can be shown without being opened.
+     * @param start position of the first photo wanted
+     * @param count number of photos wanted; fewer are passed at the end of the album
+     */
+    public void getPhotos(Album album, int start, int count, PageCallback callback) {
+        whenLoaded(() -> {
+            if (album.isLoaded()) {
+                List<Photo> photos = album.getPhotos();
+                int end = Math.min(photos.size(), start + count);
+                callback.onPage(new ArrayList<>(photos.subList(Math.min(start, end), end)));
+                return;
+            }
+            int[] ids = pagedIds.get(album);
+            if (ids != null) {
+                int[] page = slice(ids, start, count);
+                if (bucketsLoaded(page)) {
+                    callback.onPage(registry.resolve(page));
+                    return;
+                }
+            }
+            int changes = album.getChangeCount();
+            Set<Integer> loadedBuckets = registry.getLoadedBuckets();
+            reader.execute(() -> {
+                int[] all = ids != null ? ids : FileStorage.readPhotoIds(context, album);
+                int[] page = slice(all, start, count);
+                PhotoRegistry read = FileStorage.readPhotos(context, page, loadedBuckets);
+                mainHandler.post(() -> finishPage(album, all, page, read, changes, start, count, callback));
+            });
+        });
+    }
+
+    private void finishPage(Album album, int[] ids, int[] page, PhotoRegistry read, int changes,
+                            int start, int count, PageCallback callback) {
+        addToRegistry(read);
+        if (album.isLoaded() || album.getChangeCount() != changes) {
+            // Opened, or loaded and released again, since: the shard read may be older
+            getPhotos(album, start, count, callback);
+            return;
+        }
+        if (ids != null && albums.contains(album)) {
+            pagedIds.put(album, ids);
+        }
+        callback.onPage(registry.resolve(page));
+    }
+
+    // The ids from position start on, at most count of them; none if the shard could not be read
+    private static int[] slice(int[] ids, int start, int count) {
+        if (ids == null) return new int[0];
+        int end = Math.min(ids.length, start + count);
+        return Arrays.copyOfRange(ids, Math.min(start, end), end);
+    }
+
+    private boolean bucketsLoaded(int[] ids) {
+        for (int id : ids) {
+            if (!registry.isLoaded(PhotoRegistry.bucketOf(id))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the tag index, for use on the main thread. It covers the photos of the
+     * registry buckets read so far, which include those of every album opened; every
+     * photo once {@link #search} has run.
+     */
+    public TagIndex getTagIndex() {
+        return tagIndex;
+    }
+
+    /**
+     * Returns tag value suggestions covering every album, loaded or not.
+     */
+    public TagCompletions getTagCompletions() {
+        return tagCompletions;
+    }
+
+    /**
+     * Receives search matches (see {@link SearchCursor#read}), each photo once with the
+     * names of every album containing it at the time of the search.
+     */
+    public interface MatchCollector {
+        void onMatch(Photo photo, List<String> albumNames);
+    }
+
+    /**
+     * Runs a query over the whole library without loading any album. Meant for a
+     * background thread: the main thread has the rest of the registry read if needed,
+     * and hands over a snapshot of the tag index (see {@link TagIndex#snapshot}), which the
+     * query then runs on here while the library goes on changing.
+     * @return the matching photos, or null if the thread was interrupted before the query ran
+     */
+    public SearchCursor search(TagQuery query) {
+        BlockingQueue<TagIndex> snapshot = new ArrayBlockingQueue<>(1);
+        mainHandler.post(() -> whenLoaded(() -> openRegistry(() -> snapshot.add(tagIndex.snapshot()))));
+        TagIndex index;
+        try {
+            index = snapshot.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return new SearchCursor(index, query.execute(index).toArray());
+    }
+
+    /**
+     * Check if an album with the same name already exists (case-insensitive).
+     */
+    public boolean albumExists(String name) {
+        for (Album a : albums) {
+            if (a.getName().equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Album addAlbum(String name) {
+        Album album = new Album(name);
+        album.setId(Album.nextId(albums));
+        // Dirty, so that its shard is written even while empty, over any a deleted album left
+        album.markDirty();
+        albums.add(album);
+        record(Mutation.addAlbum(name, album.getId()));
+        return album;
+    }
+
+    public void renameAlbum(Album album, String newName) {
+        String oldName = album.getName();
+        album.setName(newName);
+        record(Mutation.renameAlbum(oldName, newName));
+    }
+
+    /**
+     * Deletes an album. Its photos are needed to take it out of their album ids, so an
+     * album that is not open is opened first, and goes away once it is; then the given
+     * code runs on the main thread, unless the album was already gone.
+     */
+    public void deleteAlbum(Album album, Runnable onDeleted) {
+        openAlbum(album, () -> {
+            if (removeAlbum(album)) onDeleted.run();
+        });
+    }
+
+    // False if the album was deleted already
+    private boolean removeAlbum(Album album) {
+        if (!albums.contains(album)) return false;
+        residentAlbums.remove(album);
+        pagedIds.remove(album);
+        tagCompletions.addAll(album.getTagCounts(), -1);
+        tagIndex.removeAlbum(album);
+        for (Photo photo : album.clearPhotos()) {
+            registry.release(photo);
+        }
+        albums.remove(album);
+        record(Mutation.removeAlbum(album.getName()));
+        return true;
+    }
+
+    /**
+     * Adds a photo to an album unless a photo with the same path is already there.
+     * If the library already has a photo with that path, the album gets that photo,
+     * with its tags, rather than the one passed in. The album must be open for adding
+     * (see {@link #openAlbumForAdding}).
+     * @return true if the photo was added
+     */
+    public boolean addPhoto(Album album, Photo photo) {
+        requireOpenForAdding(album);
+        photo = registry.intern(photo);
+        if (album.containsPhoto(photo)) {
+            return false;
+        }
+        album.addPhoto(photo);
+        registry.markDirty(photo);
+        tagIndex.addPhoto(album, photo);
+        tagCompletions.addPhoto(photo, 1);
+        record(Mutation.addPhoto(album.getName(), photo));
+        return true;
+    }
+
+    /**
+     * Adds many photos to an album at once, as {@link #addPhoto} would one by one, but
+     * with a single journal write and a single listener notification. The album must be
+     * open for adding, unless it has been deleted.
+     * @return the number of photos added
+     */
+    public int addPhotos(Album album, List<Photo> photos) {
+        if (!albums.contains(album)) return 0; // deleted while the photos were being read
+        requireOpenForAdding(album);
+        List<Mutation> mutations = new ArrayList<>(photos.size());
+        for (Photo photo : photos) {
+            photo = registry.intern(photo);
+            if (album.containsPhoto(photo)) continue;
+            album.addPhoto(photo);
+            registry.markDirty(photo);
+            tagIndex.addPhoto(album, photo);
+            tagCompletions.addPhoto(photo, 1);
+            mutations.add(Mutation.addPhoto(album.getName(), photo));
+        }
+        if (!mutations.isEmpty()) {
+            persister.enqueueAll(mutations);
+            notifyListeners();
+        }
+        return mutations.size();
+    }
+
+    /**
+     * Removes a photo from an album, which must be open (see
+     * {@link #openAlbum(Album, Runnable)}). Nothing happens if the album is not loaded or
+     * no longer has that photo, as when two delete dialogs overlapped.
+     * @return whether the photo was removed
+     */
+    public boolean removePhoto(Album album, Photo photo) {
+        if (!album.isLoaded() || album.getPhoto(photo.getFilePath()) != photo) {
+            return false;
+        }
+        album.removePhoto(photo);
+        tagIndex.removePhoto(album, photo);
+        tagCompletions.addPhoto(photo, -1);
+        registry.release(photo);
+        record(Mutation.removePhoto(album.getName(), photo.getFilePath()));
+        return true;
+    }
+
+    /**
+     * Moves a photo between albums, which must both be open (see
+     * {@link #openAlbum(Album, Runnable)}); opening one may release the other, so open
+     * the source last.
+     * @return false if the target album already contains the photo
+     */
+    public boolean movePhoto(Photo photo, Album from, Album to) {
+        requireOpen(from);
+        requireOpen(to);
+        if (to.containsPhoto(photo)) {
+            return false;
+        }
+        to.addPhoto(photo);
+        from.removePhoto(photo);
+        registry.markDirty(photo);
+        tagIndex.movePhoto(photo, from, to);
+        record(Mutation.movePhoto(from.getName(), to.getName(), photo.getFilePath()));
+        return true;
+    }
+
+    /**
+     * Adds a tag to a photo of the given album, and so in every album that has the photo.
+     * @return false if the tag is a duplicate or not allowed (see {@link Photo#addTag})
+     */
+    public boolean addTag(Album album, Photo photo, String tagName, String tagValue) {
+        if (!photo.addTag(tagName, tagValue)) {
+            return false;
+        }
+        registry.markDirty(photo);
+        tagIndex.addTag(photo, tagName, tagValue);
+        // Suggestions count a tag once per album the photo is in, like the album tag counts
+        tagCompletions.add(tagName, tagValue.toLowerCase(), photo.getAlbumCount());
+        Album.tagChanged(albums, photo, tagName, tagValue, 1);
+        record(Mutation.addTag(album.getName(), photo.getFilePath(), tagName, tagValue));
+        return true;
+    }
+
+    public void removeTag(Album album, Photo photo, Tag tag) {
+        if (!photo.removeTag(tag.getName(), tag.getValue())) {
+            return;
+        }
+        tagCompletions.add(tag.getName(), tag.getValue(), -photo.getAlbumCount());
+        Album.tagChanged(albums, photo, tag.getName(), tag.getValue(), -1);
+        registry.markDirty(photo);
+        tagIndex.removeTag(photo, tag.getName(), tag.getValue());
+        record(Mutation.removeTag(album.getName(), photo.getFilePath(), tag.getName(), tag.getValue()));
+    }
+
+    /**
+     * Blocks until every change made so far is in the journal. Call from onStop;
+     * this is a no-op when nothing changed. Once the journal has grown long it is
+     * folded into the library files, which rewrites only the albums that changed: the
+     * checkpoint is taken here and written on the journal's thread, and what it wrote
+     * is marked saved back on the main thread. A journal write that failed makes the
+     * next flush fold the journal in whatever its length. Nothing is folded in while the
+     * manifest could not be read, as the checkpoint would drop every album it lost.
+     */
+    public void flush() {
+        persister.flush();
+        if (checkpointing || damaged) return;
+        if (persister.getJournalLength() < FileStorage.CHECKPOINT_THRESHOLD && !persister.hasFailedAppend()) {
+            return;
+        }
+        checkpointing = true;
+        FileStorage.Checkpoint checkpoint = FileStorage.prepareCheckpoint(albums, registry, tagCompletions);
+        persister.checkpoint(() -> {
+            boolean written = checkpoint.write(context);
+            mainHandler.post(() -> {
+                if (written) checkpoint.markSaved();
+                checkpointing = false;
+            });
+            return written;
+        });
+    }
+
+    /**
+     * Marks an album whose photos are loaded as recently used and releases the least
+     * recently opened albums beyond {@link #RESIDENT_ALBUMS}. Albums with changes not yet
+     * checkpointed into their shard are never released.
+     */
+    private void ensureLoaded(Album album) {
+        residentAlbums.put(album, Boolean.TRUE);
+        pagedIds.remove(album);
+
+        int excess = residentAlbums.size() - RESIDENT_ALBUMS;
+        Iterator<Map.Entry<Album, Boolean>> it = residentAlbums.entrySet().iterator();
+        while (excess > 0 && it.hasNext()) {
+            Album eldest = it.next().getKey();
+            if (eldest != album && !eldest.isDirty()) {
+                eldest.unload();
+                it.remove();
+                excess--;
+            }
+        }
+    }
+
+    // Changes to an album's photos need them in memory
+    private void requireOpen(Album album) {
+        if (!album.isLoaded()) {
+            throw new IllegalStateException("Album is not open: " + album.getName());
+        }
+    }
+
+    // Adding photos also needs the whole registry, to find those already in the library
+    private void requireOpenForAdding(Album album) {
+        requireOpen(album);
+        if (!registry.isLoaded()) {
+            throw new IllegalStateException("Album is not open for adding: " + album.getName());
+        }
+    }
+
+    /**
+     * Queues a change that has already been applied for writing and notifies listeners.
+     */
+    private void record(Mutation mutation) {
+        persister.enqueue(mutation);
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        for (Listener l : listeners) {
+            l.onLibraryChanged();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.photosandroid.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Summary of an album for screens that list albums: photo count, date range, cover and
+ * tag counts.
+ *
+ * Snapshots are immutable. A loaded album keeps the numbers behind them up to date as
+ * photos and tags change (see {@link Album#getStats}); an unloaded one has the snapshot
+ * stored in the manifest, so listing albums never reads their photos. To keep the
+ * manifest small, that snapshot has only the album's {@link #TOP_TAGS} most common tags.
+ */
+public final class AlbumStats {
+    /** Number of tags kept for albums whose photos are not loaded, and shown per album. */
+    public static final int TOP_TAGS = 3;
+
+    private final int photoCount;
+    private final String coverPath;
+    private final long earliestDate;
+    private final long latestDate;
+    private final Map<Tag, Integer> tagCounts;
+    private final boolean partial;
+    private List<Tag> tagsByCount; // built on first use
+
+    AlbumStats(int photoCount, String coverPath, long earliestDate, long latestDate,
+               Map<Tag, Integer> tagCounts, boolean partial) {
+        this.photoCount = photoCount;
+        this.coverPath = coverPath;
+        this.earliestDate = earliestDate;
+        this.latestDate = latestDate;
+        this.tagCounts = Collections.unmodifiableMap(tagCounts);
+        this.partial = partial;
+    }
+
+    public int getPhotoCount() {
+        return photoCount;
+    }
+
+    /**
+     * Path of the photo that represents the album, or null if it is empty.
+     */
+    public String getCoverPath() {
+        return coverPath;
+    }
+
+    /**
+     * Date of the oldest photo in milliseconds since the epoch; 0 if the album is empty.
+     */
+    public long getEarliestDate() {
+        return earliestDate;
+    }
+
+    /**
+     * Date of the newest photo in milliseconds since the epoch; 0 if the album is empty.
+     */
+    public long getLatestDate() {
+        return latestDate;
+    }
+
+    /**
+     * How many of the album's photos carry each tag; for an album whose photos are not
+     * loaded, only the {@link #TOP_TAGS} most common ones.
+     */
+    public Map<Tag, Integer> getTagCounts() {
+        return tagCounts;
+    }
+
+    /**
+     * The most common tags of the album, most common first, ties in name order.
+     */
+    public synchronized List<Tag> getTopTags(int limit) {
+        if (tagsByCount == null) {
+            List<Tag> tags = new ArrayList<>(tagCounts.keySet());
+            tags.sort((a, b) -> {
+                int byCount = Integer.compare(tagCounts.get(b), tagCounts.get(a));
+                return byCount != 0 ? byCount : a.toString().compareTo(b.toString());
+            });
+            tagsByCount = Collections.unmodifiableList(tags);
+        }
+        return tagsByCount.subList(0, Math.min(limit, tagsByCount.size()));
+    }
+
+    // The same summary with only the TOP_TAGS most common tags, as the manifest keeps it
+    AlbumStats withTopTagsOnly() {
+        if (tagCounts.size() <= TOP_TAGS) return this;
+        Map<Tag, Integer> top = new HashMap<>();
+        for (Tag tag : getTopTags(TOP_TAGS)) {
+            top.put(tag, tagCounts.get(tag));
+        }
+        return new AlbumStats(photoCount, coverPath, earliestDate, latestDate, top, partial);
+    }
+
+    // The same summary after one of the album's photos gained (delta 1) or lost (delta -1)
+    // a tag, for an album whose photos are not loaded. A tag not among the kept ones is
+    // only counted while there is room, as it then had no photos before; so until the
+    // album is next loaded, a tag that came close may be missing from its top tags.
+    AlbumStats withTagCounted(Tag tag, int delta) {
+        Integer count = tagCounts.get(tag);
+        if (count == null && (delta < 0 || tagCounts.size() >= TOP_TAGS)) return this;
+        Map<Tag, Integer> counts = new HashMap<>(tagCounts);
+        int updated = (count == null ? 0 : count) + delta;
+        if (updated > 0) counts.put(tag, updated);
+        else counts.remove(tag);
+        return new AlbumStats(photoCount, coverPath, earliestDate, latestDate, counts, partial);
+    }
+
+    // Read from a manifest that predates some of the numbers; only count and cover are known
+    boolean isPartial() {
+        return partial;
+    }
+}
@@ -3,35 +3,652 @@ package com.example.photosandroid.model;
 import android.content.Context;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
+/**
+ * Persists the album library as a small manifest ({@code library/manifest.bin}), the
+ * {@link PhotoRegistry} in buckets of photo ids ({@code library/photos_<n>.bin}) and one
+ * shard per album listing its photo ids ({@code library/album_<id>.bin}), see
+ * {@link LibraryCodec}, plus an append-only journal of {@link Mutation}s
+ * ({@code albums.journal}).
+ *
+ * Individual edits are appended to the journal, so their cost is proportional to the
+ * change. Loading reads only the manifest; an album's shard, and the registry buckets its
+ * photos are in, are read when its photos are first needed ({@link #readPhotoIds} and
+ * {@link #readPhotos}, on a background thread), and the
+ * journal is replayed on top, reading just what the records it holds touch. A checkpoint
+ * folds the journal back into the files, rewriting only the registry buckets whose photos
+ * changed and the shards of albums whose membership changed; renaming or deleting an
+ * album only touches the manifest. A {@link Checkpoint} is taken on the main thread and written on another, so
+ * that the main thread only pays for copying what changed.
+ */
 public class FileStorage {
-    private static final String FILENAME = "albums.dat";
+    private static final String DIRECTORY = "library";
+    private static final String MANIFEST_FILENAME = "manifest.bin";
+    private static final String SHARD_PREFIX = "album_";
+    private static final String FILE_SUFFIX = ".bin";
+    private static final String BUCKET_PREFIX = "photos_";
+    private static final String REGISTRY_FILENAME = "photos.bin"; // the whole registry, as earlier versions kept it
+    private static final String SINGLE_FILE_FILENAME = "library.bin";
+    private static final String LEGACY_FILENAME = "albums.dat";
+    private static final String JOURNAL_FILENAME = "albums.journal";
 
-    public static void saveAlbums(Context context, ArrayList<Album> albums) {
+    /** Number of journal records after which the journal is folded into the shards. */
+    static final int CHECKPOINT_THRESHOLD = 256;
+
+    /** Upper bound on a single journal record, used to reject corrupt length fields. */
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+    /**
+     * Writes a checkpoint right away, on the calling thread.
+     * @return whether it was written
+     */
+    public static boolean saveAlbums(Context context, List<Album> albums, PhotoRegistry registry,
+                                     TagCompletions completions) {
+        Checkpoint checkpoint = prepareCheckpoint(albums, registry, completions);
+        if (!checkpoint.write(context)) return false;
+        checkpoint.markSaved();
+        return true;
+    }
+
+    /**
+     * Takes what a checkpoint writes: the manifest entries and tag counts, the photo ids
+     * of albums whose shard changed and the photos of registry buckets that changed.
+     * Must be called where the albums are changed; nothing is marked saved until
+     * {@link Checkpoint#markSaved}.
+     */
+    public static Checkpoint prepareCheckpoint(List<Album> albums, PhotoRegistry registry,
+                                               TagCompletions completions) {
+        return new Checkpoint(albums, registry, completions);
+    }
+
+    /**
+     * The library as of a moment, as a checkpoint writes it: the changed registry
+     * buckets, the shards of dirty albums, then the manifest, after which the journal is
+     * cleared and the shards of albums that no longer exist are deleted. The registry
+     * goes first so that every shard on disk refers to registered photos. Writing reads
+     * nothing the main thread changes: albums are copied as manifest entries, shards as
+     * id arrays, and the photos of changed buckets with their tags, description and
+     * album ids, so that no change journaled later lands in the files early. Records journaled after the checkpoint was taken must only
+     * reach the journal after it is written, or they would be cleared with it.
+     */
+    public static final class Checkpoint {
+        private final List<Album> entries = new ArrayList<>(); // unloaded copies of the albums
+        private final Map<Tag, Integer> tagCounts;
+        private final List<Album> rewritten = new ArrayList<>(); // albums whose shard is written
+        private final List<int[]> shards = new ArrayList<>();
+        private final int[] shardIds;
+        private final int[] shardChanges;
+        private final PhotoRegistry registry;
+        private final int[] buckets; // registry buckets written
+        private final Photo[][] bucketPhotos;
+        private final int[][][] bucketAlbumIds;
+        private final int[] bucketChanges;
+        private final int nextPhotoId;
+        private final boolean registryComplete; // every bucket is on disk once this is written
+
+        private Checkpoint(List<Album> albums, PhotoRegistry registry, TagCompletions completions) {
+            this.registry = registry;
+            this.tagCounts = completions.counts();
+
+            List<Integer> changes = new ArrayList<>();
+            for (Album album : albums) {
+                // New albums start dirty: one may have the id of a deleted one whose shard is still on disk
+                if (album.isDirty()) {
+                    rewritten.add(album);
+                    shards.add(LibraryCodec.photoIds(album));
+                    changes.add(album.getChangeCount());
+                }
+                Album entry = new Album(album.getName());
+                entry.setId(album.getId());
+                entry.setIndexEntry(album.getStats().withTopTagsOnly());
+                entries.add(entry);
+            }
+            this.shardIds = new int[rewritten.size()];
+            this.shardChanges = new int[rewritten.size()];
+            for (int i = 0; i < shardIds.length; i++) {
+                shardIds[i] = rewritten.get(i).getId();
+                shardChanges[i] = changes.get(i);
+            }
+
+            // Only loaded buckets change, so a dirty bucket has all its photos in memory
+            this.buckets = registry.getDirtyBuckets();
+            this.bucketPhotos = new Photo[buckets.length][];
+            this.bucketAlbumIds = new int[buckets.length][][];
+            this.bucketChanges = new int[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                Photo[] photos = registry.photos(buckets[i]);
+                bucketAlbumIds[i] = new int[photos.length][];
+                for (int j = 0; j < photos.length; j++) {
+                    photos[j] = photos[j].copy();
+                    bucketAlbumIds[i][j] = photos[j].albumIds;
+                }
+                bucketPhotos[i] = photos;
+                bucketChanges[i] = registry.getChangeCount(buckets[i]);
+            }
+            this.nextPhotoId = registry.getNextId();
+            this.registryComplete = registry.isLoaded();
+        }
+
+        /**
+         * Writes the files and clears the journal. Safe on any thread.
+         * @return whether everything was written; if not, the journal is kept
+         */
+        public boolean write(Context context) {
+            File dir = libraryDir(context);
+            try {
+                // A bucket left empty is still written: it keeps the next photo id
+                for (int i = 0; i < buckets.length; i++) {
+                    Photo[] photos = bucketPhotos[i];
+                    int[][] albumIds = bucketAlbumIds[i];
+                    writeAtomically(new File(dir, bucketName(buckets[i])),
+                            out -> LibraryCodec.encodeRegistry(photos, albumIds, nextPhotoId, out));
+                }
+                if (registryComplete) {
+                    // Read whole, so every photo of the single file is in a bucket by now
+                    new File(dir, REGISTRY_FILENAME).delete();
+                }
+                for (int i = 0; i < rewritten.size(); i++) {
+                    int[] ids = shards.get(i);
+                    writeAtomically(new File(dir, shardName(shardIds[i])),
+                            out -> LibraryCodec.encodeAlbum(ids, out));
+                }
+                writeAtomically(new File(dir, MANIFEST_FILENAME),
+                        out -> LibraryCodec.encodeManifest(entries, tagCounts, out));
+
+                // Drop shards of deleted albums; the albums come from a manifest that was
+                // read, as a damaged library is never checkpointed
+                for (int id : existingIds(dir, SHARD_PREFIX)) {
+                    if (!containsId(entries, id)) {
+                        new File(dir, shardName(id)).delete();
+                    }
+                }
+                // The shards and manifest now contain every journaled change
+                new File(context.getFilesDir(), JOURNAL_FILENAME).delete();
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        /**
+         * Marks what was written as saved, unless it changed again in the meantime.
+         * Call once {@link #write} succeeded, where the albums are changed.
+         */
+        public void markSaved() {
+            for (int i = 0; i < rewritten.size(); i++) {
+                rewritten.get(i).markSaved(shardChanges[i]);
+            }
+            for (int i = 0; i < buckets.length; i++) {
+                registry.markSaved(buckets[i], bucketChanges[i]);
+            }
+        }
+    }
+
+    /**
+     * The album index as {@link #loadAlbums} read it.
+     */
+    public static final class Library {
+        final ArrayList<Album> albums;
+        final int journalLength; // records replayed from the journal that no checkpoint holds yet
+        // The manifest could not be read: the files on disk are left alone, and no
+        // checkpoint may be written over them
+        final boolean damaged;
+
+        Library(ArrayList<Album> albums, int journalLength, boolean damaged) {
+            this.albums = albums;
+            this.journalLength = journalLength;
+            this.damaged = damaged;
+        }
+    }
+
+    /**
+     * Loads the album index, and the library's tag counts into the given completions.
+     * Albums come back unloaded (names, counts and covers only) except those the journal
+     * replay had to touch, and the registry stays unloaded unless one had to be. If the
+     * manifest is missing while shards are not, or cannot be read, the library comes
+     * back empty and {@link Library#damaged}, so that nothing deletes the shards it lost
+     * track of.
+     */
+    public static Library loadAlbums(Context context, PhotoRegistry registry, TagCompletions completions) {
+        ArrayList<Album> albums = new ArrayList<>();
+        File dir = libraryDir(context);
+        boolean migrated = false;
+        boolean damaged = false;
         try {
-            FileOutputStream fos = context.openFileOutput(FILENAME, Context.MODE_PRIVATE);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(albums);
-            oos.close();
-            fos.close();
+            FileInputStream fis = new FileInputStream(new File(dir, MANIFEST_FILENAME));
+            albums = LibraryCodec.decodeManifest(fis, completions);
+            fis.close();
+        } catch (FileNotFoundException e) {
+            ArrayList<Album> older = loadOlderFormat(context);
+            if (older != null) {
+                albums = older;
+                migrated = true;
+                registry.markLoaded(); // there is no registry file yet
+                for (int i = 0; i < albums.size(); i++) {
+                    albums.get(i).setId(i + 1);
+                    registry.adopt(albums.get(i)); // also marks the album dirty for its first shard
+                }
+                for (Album album : albums) {
+                    completions.addAll(album.getTagCounts(), 1);
+                }
+            }
+            // otherwise this is the first time the app runs, unless albums were written before
+            damaged = older == null && !existingIds(dir, SHARD_PREFIX).isEmpty();
+        } catch (Exception e) {
+            e.printStackTrace();
+            damaged = true;
+        }
+        if (damaged) {
+            // Neither the journal nor a checkpoint may touch files no manifest accounts for
+            return new Library(new ArrayList<>(), 0, true);
+        }
+
+        // Libraries written before the registry keep whole photos in their shards, registries
+        // written before album ids do not say which albums hold each photo, and manifests
+        // written before the album statistics lack some of them: read every shard once
+        boolean singleRegistry = new File(dir, REGISTRY_FILENAME).exists();
+        boolean noRegistry = !singleRegistry && existingIds(dir, BUCKET_PREFIX).isEmpty();
+        boolean noAlbumIds = singleRegistry && registryVersion(dir) < 7;
+        boolean upgraded = false;
+        for (Album album : albums) {
+            if (!album.isLoaded() && (noRegistry || noAlbumIds || album.hasPartialStats())) {
+                loadShard(dir, registry, album);
+                upgraded = true;
+            }
+        }
+        if (noAlbumIds) {
+            // The single file was read whole, so every bucket is written with these
+            for (Album album : albums) {
+                for (Photo photo : album.getPhotos()) photo.addAlbum(album.getId());
+            }
+        }
+        if (upgraded && noRegistry) {
+            registry.markDirty(0); // write one even if there are no photos, so this happens once
+        }
+
+        // A journal ending in a damaged record is folded in at once, or later appends would
+        // be stuck behind the damage
+        int replayed = replayJournal(context, dir, albums, registry, completions);
+        int journalLength = Math.max(0, replayed);
+        if (replayed < 0 || replayed >= CHECKPOINT_THRESHOLD || migrated || upgraded) {
+            if (saveAlbums(context, albums, registry, completions)) {
+                journalLength = 0;
+                if (migrated) {
+                    // The new files are in place, the old formats are no longer needed
+                    new File(context.getFilesDir(), SINGLE_FILE_FILENAME).delete();
+                    new File(context.getFilesDir(), LEGACY_FILENAME).delete();
+                }
+            }
+        }
+        return new Library(albums, journalLength, false);
+    }
+
+    /**
+     * Reads the registry buckets not yet loaded into a new object, so that a background
+     * thread can do the reading and hand the result to the registry's owner (see
+     * {@link PhotoRegistry#addAll}); with them, every bucket is loaded. A library
+     * without registry files has no photos yet.
+     * @param loadedBuckets buckets not to read, copied from the registry beforehand
+     */
+    public static PhotoRegistry readRegistry(Context context, Set<Integer> loadedBuckets) {
+        return readBuckets(libraryDir(context), null, loadedBuckets);
+    }
+
+    /**
+     * Reads the registry buckets that the given photo ids fall in, except those already
+     * loaded, into a new object; see {@link #readRegistry}.
+     * @param ids photo ids as read from a shard, or null for none
+     */
+    public static PhotoRegistry readPhotos(Context context, int[] ids, Set<Integer> loadedBuckets) {
+        return readBuckets(libraryDir(context), bucketsOf(ids), loadedBuckets);
+    }
+
+    /**
+     * Reads the photo ids of an album's shard without touching the album or the registry,
+     * for background threads.
+     * @return the ids, or null if the shard has none to offer (see {@link LibraryCodec#decodeAlbumIds})
+     */
+    public static int[] readPhotoIds(Context context, Album album) {
+        return readPhotoIds(libraryDir(context), album.getId());
+    }
+
+    private static int[] readPhotoIds(File dir, int albumId) {
+        try {
+            FileInputStream fis = new FileInputStream(new File(dir, shardName(albumId)));
+            try {
+                return LibraryCodec.decodeAlbumIds(fis);
+            } finally {
+                fis.close();
+            }
+        } catch (FileNotFoundException e) {
+            return new int[0];
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // The registry file's schema version, or 0 if it cannot be read
+    private static int registryVersion(File dir) {
+        try {
+            FileInputStream fis = new FileInputStream(new File(dir, REGISTRY_FILENAME));
+            try {
+                return LibraryCodec.decodeRegistryVersion(fis);
+            } finally {
+                fis.close();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads registry buckets into a new registry: the given ones, or all of them if null,
+     * except those to skip. The single file of earlier versions is read whole instead,
+     * with every bucket marked changed, so that the next checkpoint splits it up.
+     */
+    private static PhotoRegistry readBuckets(File dir, Collection<Integer> buckets, Set<Integer> skip) {
+        PhotoRegistry read = new PhotoRegistry();
+        File single = new File(dir, REGISTRY_FILENAME);
+        if (single.exists()) {
+            decodeRegistry(single, read);
+            for (Photo photo : read.photos()) {
+                read.markLoaded(PhotoRegistry.bucketOf(photo.registryId));
+                read.markDirty(photo);
+            }
+            read.markLoaded();
+            return read;
+        }
+        if (buckets == null) {
+            buckets = existingIds(dir, BUCKET_PREFIX);
+            read.markLoaded();
+        }
+        for (int bucket : buckets) {
+            if (skip.contains(bucket)) continue;
+            decodeRegistry(new File(dir, bucketName(bucket)), read);
+            read.markLoaded(bucket);
+        }
+        return read;
+    }
+
+    private static void decodeRegistry(File file, PhotoRegistry registry) {
+        try {
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                LibraryCodec.decodeRegistry(fis, registry);
+            } finally {
+                fis.close();
+            }
+        } catch (FileNotFoundException e) {
+            // no photos in it
         } catch (IOException e) {
+            // the shards' ids for its photos resolve to nothing; those albums lose them
             e.printStackTrace();
         }
     }
 
-    public static ArrayList<Album> loadAlbums(Context context) {
-        ArrayList<Album> albums = new ArrayList<>();
+    private static Set<Integer> bucketsOf(int[] ids) {
+        Set<Integer> buckets = new TreeSet<>();
+        if (ids != null) {
+            for (int id : ids) buckets.add(PhotoRegistry.bucketOf(id));
+        }
+        return buckets;
+    }
+
+    /**
+     * Reads an album's photos from its shard, and the registry buckets they are in; an
+     * album without a shard is empty.
+     */
+    private static void loadShard(File dir, PhotoRegistry registry, Album album) {
+        if (!registry.isLoaded()) {
+            // Shards from before the registry hold their photos, to be found by path in all buckets
+            int[] ids = readPhotoIds(dir, album.getId());
+            registry.addAll(readBuckets(dir, ids != null ? bucketsOf(ids) : null,
+                    registry.getLoadedBuckets()));
+        }
         try {
-            FileInputStream fis = context.openFileInput(FILENAME);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            albums = (ArrayList<Album>) ois.readObject();
-            ois.close();
+            FileInputStream fis = new FileInputStream(new File(dir, shardName(album.getId())));
+            LibraryCodec.decodeAlbum(fis, registry, album);
+            fis.close();
+        } catch (FileNotFoundException e) {
+            // never had photos written
+            album.markLoaded();
+        } catch (IOException e) {
+            // a damaged shard only loses that album's photos
+            e.printStackTrace();
+            album.markLoaded();
+        }
+    }
+
+    /**
+     * Reads a library stored by an earlier version of the app, either in the single-file
+     * binary format or through Java serialization.
+     * @return the albums, or null if there is no such file
+     */
+    private static ArrayList<Album> loadOlderFormat(Context context) {
+        try {
+            FileInputStream fis = context.openFileInput(SINGLE_FILE_FILENAME);
+            ArrayList<Album> albums = LibraryCodec.decode(fis);
             fis.close();
+            return albums;
+        } catch (FileNotFoundException e) {
+            return loadLegacyAlbums(context);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private interface Writer {
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes a file through a temporary file and rename, so readers never see a partial file.
+     */
+    private static void writeAtomically(File file, Writer writer) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            writer.write(fos);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static File libraryDir(Context context) {
+        File dir = new File(context.getFilesDir(), DIRECTORY);
+        if (!dir.isDirectory()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+
+    private static String shardName(int albumId) {
+        return SHARD_PREFIX + albumId + FILE_SUFFIX;
+    }
+
+    private static String bucketName(int bucket) {
+        return BUCKET_PREFIX + bucket + FILE_SUFFIX;
+    }
+
+    // The numbers of the shard or bucket files in the directory
+    private static List<Integer> existingIds(File dir, String prefix) {
+        List<Integer> ids = new ArrayList<>();
+        String[] names = dir.list();
+        if (names == null) return ids;
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(FILE_SUFFIX)) {
+                try {
+                    ids.add(Integer.parseInt(name.substring(prefix.length(),
+                            name.length() - FILE_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static boolean containsId(List<Album> albums, int id) {
+        for (Album a : albums) {
+            if (a.getId() == id) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads a library saved by older versions of the app through Java serialization.
+     * @return the albums, or null if there is no legacy file
+     */
+    private static ArrayList<Album> loadLegacyAlbums(Context context) {
+        try {
+            FileInputStream fis = context.openFileInput(LEGACY_FILENAME);
+            ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(fis));
+            ArrayList<Album> albums = (ArrayList<Album>) ois.readObject();
+            ois.close();
+            return albums;
         } catch (FileNotFoundException e) {
-            // first time app runs — ignore
+            return null;
         } catch (Exception e) {
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Appends a single mutation to the journal.
+     * @return whether it was written
+     */
+    public static boolean appendMutation(Context context, Mutation mutation) {
+        List<Mutation> single = new ArrayList<>(1);
+        single.add(mutation);
+        return appendMutations(context, single);
+    }
+
+    /**
+     * Appends a batch of mutations to the journal in one write.
+     * Each record is framed as [length][payload][crc32] so that a record torn by a
+     * crash mid-write is detected and dropped on replay.
+     * @return whether the batch was written; if not, the journal may miss it or end in
+     *         a damaged record, and only a checkpoint makes the files whole again
+     */
+    public static boolean appendMutations(Context context, List<Mutation> mutations) {
+        if (mutations.isEmpty()) return true;
+        try {
+            byte[] records = encodeJournal(mutations);
+            FileOutputStream fos = context.openFileOutput(JOURNAL_FILENAME, Context.MODE_APPEND);
+            fos.write(records);
+            fos.getFD().sync();
+            fos.close();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Frames mutations as journal records, [length][payload][crc32] each.
+     */
+    static byte[] encodeJournal(List<Mutation> mutations) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream frames = new DataOutputStream(buffer);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        CRC32 crc = new CRC32();
+        for (Mutation m : mutations) {
+            payload.reset();
+            m.writeTo(new DataOutputStream(payload));
+            byte[] bytes = payload.toByteArray();
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            frames.writeInt(bytes.length);
+            frames.write(bytes);
+            frames.writeInt((int) crc.getValue());
+        }
+        frames.flush();
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Reads journal records in order and passes each intact one on, stopping at the
+     * first that is torn or damaged. The stream is not closed.
+     * @return the number of records passed on, or -1 if the journal ends in a damaged record
+     */
+    static int readJournal(InputStream stream, Consumer<Mutation> replay) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        CRC32 crc = new CRC32();
+        int count = 0;
+        try {
+            int first;
+            while ((first = in.read()) >= 0) {
+                int length = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    return -1; // corrupt tail, stop here
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                int expected = in.readInt();
+                crc.reset();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != expected) {
+                    return -1; // corrupt tail, stop here
+                }
+                Mutation mutation;
+                try {
+                    mutation = Mutation.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+                } catch (IOException e) {
+                    return -1; // intact but unreadable, treated as damaged
+                }
+                replay.accept(mutation);
+                count++;
+            }
+        } catch (EOFException e) {
+            return -1; // torn final record
+        }
+        return count;
+    }
+
+    /**
+     * Replays every intact journal record onto the given albums.
+     * @return the number of records replayed, or -1 if the journal ends in a damaged record
+     */
+    private static int replayJournal(Context context, File dir, List<Album> albums, PhotoRegistry registry,
+                                         TagCompletions completions) {
+        Mutation.Loader loader = new Mutation.Loader() {
+            @Override
+            public void loadAlbum(Album album) {
+                if (!album.isLoaded()) loadShard(dir, registry, album);
+            }
+
+            @Override
+            public void loadRegistry() {
+                if (!registry.isLoaded()) registry.addAll(readBuckets(dir, null, registry.getLoadedBuckets()));
+            }
+        };
+        try {
+            FileInputStream fis = context.openFileInput(JOURNAL_FILENAME);
+            try {
+                return readJournal(fis, mutation -> mutation.applyTo(albums, registry, completions, loader));
+            } finally {
+                fis.close();
+            }
+        } catch (FileNotFoundException e) {
+            return 0; // no changes since the last snapshot
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
         }
-        return albums;
     }
 }
@@ -0,0 +1,570 @@
+package com.example.photosandroid.model;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary encodings of the album library, replacing Java serialization.
+ *
+ * The library is stored as a small manifest, a registry holding every photo once, and
+ * one shard per album listing the ids of its photos (see {@link FileStorage}). All
+ * integers are unsigned LEB128 varints unless noted, strings are a length followed by
+ * UTF-8 bytes, and every file ends with a CRC32 of its contents (4 bytes, big-endian),
+ * checked before anything is decoded.
+ * <pre>
+ *   manifest: magic "PHMF", schema version, string table (version 3 and later), album count,
+ *             then per album: id, name, photo count, cover path (version 2 and later),
+ *             earliest and latest photo date millis (version 5 and later),
+ *             tag count, then per tag: name (table index), value (table index),
+ *             number of photos with the tag (version 3 and later; from version 6 on only
+ *             the album's {@link AlbumStats#TOP_TAGS} most common tags),
+ *             then the library's tag count, and per tag: name (table index), value
+ *             (table index), number of photos with the tag, counted once per album
+ *             containing the photo (version 6 and later; see {@link TagCompletions})
+ *   registry: magic "PHPR", schema version, string table, next photo id, photo count,
+ *             then per photo: id, number of albums containing it, then from version 7 on
+ *             the ids of those albums, then the photo (version 4 and later); stored as
+ *             one file per bucket of {@link PhotoRegistry#BUCKET_SIZE} photo ids, each
+ *             with the library's next photo id (earlier releases kept a single file)
+ *   album:    magic "PHAB", schema version, photo count, photo ids (version 4 and later;
+ *             earlier versions held the photos themselves: string table, photo count, photos)
+ *   library:  magic "PHLB", schema version, string table, album count,
+ *             then per album: name, photo count, photos
+ *             (single-file format of earlier versions, still read for migration)
+ *
+ *   string table: count, then each string
+ *   photo:        URI prefix (table index), file name, description, date millis,
+ *                 tag count, then per tag: name (table index), value (table index)
+ * </pre>
+ * Tag names, tag values and URI prefixes (everything up to the last '/') repeat heavily,
+ * so they are stored once in the string table and referenced by index.
+ */
+public class LibraryCodec {
+    private static final int LIBRARY_MAGIC = 0x50484C42;  // "PHLB"
+    private static final int MANIFEST_MAGIC = 0x50484D46; // "PHMF"
+    private static final int ALBUM_MAGIC = 0x50484142;    // "PHAB"
+    private static final int REGISTRY_MAGIC = 0x50485052; // "PHPR"
+    static final int VERSION = 7;
+
+    /**
+     * Encodes the given albums as a single file. The stream is not closed.
+     */
+    public static void encode(List<Album> albums, OutputStream stream) throws IOException {
+        Map<String, Integer> table = new LinkedHashMap<>();
+        for (Album album : albums) {
+            collectStrings(table, album.getPhotos());
+        }
+
+        CRC32 crc = new CRC32();
+        DataOutputStream out = beginFile(stream, crc, LIBRARY_MAGIC);
+        writeTable(out, table);
+        writeVarInt(out, albums.size());
+        for (Album album : albums) {
+            writeString(out, album.getName());
+            writePhotos(out, album.getPhotos(), table);
+        }
+        endFile(out, stream, crc);
+    }
+
+    /**
+     * Decodes a library previously written by {@link #encode}.
+     * @throws IOException if the data is truncated, corrupt or of an unknown version
+     */
+    public static ArrayList<Album> decode(InputStream stream) throws IOException {
+        DataInputStream in = verifiedInput(stream);
+        readHeader(in, LIBRARY_MAGIC);
+        String[] table = readTable(in);
+
+        int albumCount = readCount(in);
+        ArrayList<Album> albums = new ArrayList<>(albumCount);
+        for (int a = 0; a < albumCount; a++) {
+            Album album = new Album(readString(in));
+            for (Photo photo : readPhotos(in, table)) {
+                album.addPhoto(photo);
+            }
+            albums.add(album);
+        }
+        endRead(in);
+        return albums;
+    }
+
+    /**
+     * Encodes the album index: ids, names, order and each album's {@link AlbumStats},
+     * keeping its most common tags only, and the tag counts of the whole library (see
+     * {@link TagCompletions#counts}), but no photos. Works for albums whose photos are
+     * not loaded.
+     */
+    public static void encodeManifest(List<Album> albums, Map<Tag, Integer> libraryCounts, OutputStream stream)
+            throws IOException {
+        List<AlbumStats> stats = new ArrayList<>(albums.size());
+        Map<String, Integer> table = new LinkedHashMap<>();
+        for (Album album : albums) {
+            AlbumStats albumStats = album.getStats().withTopTagsOnly();
+            stats.add(albumStats);
+            collectStrings(table, albumStats.getTagCounts());
+        }
+        collectStrings(table, libraryCounts);
+
+        CRC32 crc = new CRC32();
+        DataOutputStream out = beginFile(stream, crc, MANIFEST_MAGIC);
+        writeTable(out, table);
+        writeVarInt(out, albums.size());
+        for (int a = 0; a < albums.size(); a++) {
+            Album album = albums.get(a);
+            AlbumStats albumStats = stats.get(a);
+            writeVarInt(out, album.getId());
+            writeString(out, album.getName());
+            writeVarInt(out, albumStats.getPhotoCount());
+            String cover = albumStats.getCoverPath();
+            writeString(out, cover == null ? "" : cover);
+            writeVarLong(out, albumStats.getEarliestDate());
+            writeVarLong(out, albumStats.getLatestDate());
+            writeTagCounts(out, albumStats.getTagCounts(), table);
+        }
+        writeTagCounts(out, libraryCounts, table);
+        endFile(out, stream, crc);
+    }
+
+    /**
+     * Decodes the album index into albums whose photos are not loaded yet, adding the
+     * library's tag counts to the given completions. Albums read from manifests older
+     * than version 5 have partial statistics: no dates, and before version 3 no tag
+     * counts either. Before version 6 the library's counts are the sum of the albums'.
+     */
+    public static ArrayList<Album> decodeManifest(InputStream stream, TagCompletions completions)
+            throws IOException {
+        DataInputStream in = verifiedInput(stream);
+        int version = readHeader(in, MANIFEST_MAGIC);
+        String[] table = version >= 3 ? readTable(in) : null;
+        int albumCount = readCount(in);
+        ArrayList<Album> albums = new ArrayList<>(albumCount);
+        for (int a = 0; a < albumCount; a++) {
+            int id = readVarInt(in);
+            Album album = new Album(readString(in));
+            album.setId(id);
+            int photoCount = readVarInt(in);
+            String cover = version >= 2 ? readString(in) : "";
+            long earliest = version >= 5 ? readVarLong(in) : 0;
+            long latest = version >= 5 ? readVarLong(in) : 0;
+            Map<Tag, Integer> tagCounts = table != null ? readTagCounts(in, table) : new HashMap<>();
+            if (version < 6) {
+                completions.addAll(tagCounts, 1);
+            }
+            album.setIndexEntry(new AlbumStats(photoCount, cover.isEmpty() ? null : cover,
+                    earliest, latest, tagCounts, version < 5).withTopTagsOnly());
+            albums.add(album);
+        }
+        if (version >= 6) {
+            completions.addAll(readTagCounts(in, table), 1);
+        }
+        endRead(in);
+        return albums;
+    }
+
+    private static void writeTagCounts(DataOutputStream out, Map<Tag, Integer> counts, Map<String, Integer> table)
+            throws IOException {
+        writeVarInt(out, counts.size());
+        for (Map.Entry<Tag, Integer> entry : counts.entrySet()) {
+            writeVarInt(out, table.get(entry.getKey().getName()));
+            writeVarInt(out, table.get(entry.getKey().getValue()));
+            writeVarInt(out, entry.getValue());
+        }
+    }
+
+    private static Map<Tag, Integer> readTagCounts(DataInputStream in, String[] table) throws IOException {
+        int tagCount = readCount(in);
+        Map<Tag, Integer> counts = new HashMap<>(tagCount * 2);
+        for (int t = 0; t < tagCount; t++) {
+            String name = readTableEntry(in, table);
+            Tag tag = new Tag(name, readTableEntry(in, table));
+            counts.put(tag, readVarInt(in));
+        }
+        return counts;
+    }
+
+    /**
+     * Encodes every registered photo.
+     */
+    public static void encodeRegistry(PhotoRegistry registry, OutputStream stream) throws IOException {
+        Photo[] photos = registry.photos().toArray(new Photo[0]);
+        int[][] albumIds = new int[photos.length][];
+        for (int i = 0; i < photos.length; i++) {
+            albumIds[i] = photos[i].albumIds;
+        }
+        encodeRegistry(photos, albumIds, registry.getNextId(), stream);
+    }
+
+    /**
+     * Encodes registered photos with the album ids they had when they were collected,
+     * so that the photos may go on changing while this runs on another thread.
+     */
+    static void encodeRegistry(Photo[] photos, int[][] albumIds, int nextId, OutputStream stream)
+            throws IOException {
+        Map<String, Integer> table = new LinkedHashMap<>();
+        collectStrings(table, Arrays.asList(photos));
+
+        CRC32 crc = new CRC32();
+        DataOutputStream out = beginFile(stream, crc, REGISTRY_MAGIC);
+        writeTable(out, table);
+        writeVarInt(out, nextId);
+        writeVarInt(out, photos.length);
+        for (int i = 0; i < photos.length; i++) {
+            writeVarInt(out, photos[i].registryId);
+            writeVarInt(out, albumIds[i].length);
+            for (int albumId : albumIds[i]) {
+                writeVarInt(out, albumId);
+            }
+            writePhoto(out, photos[i], table);
+        }
+        endFile(out, stream, crc);
+    }
+
+    /**
+     * Decodes a registry file, or one bucket of it, into the given registry; the caller
+     * marks what was read as loaded.
+     * Photos read from registries older than version 7 know how many albums contain
+     * them but not which; they are left in none (see {@link #decodeRegistryVersion}).
+     */
+    public static void decodeRegistry(InputStream stream, PhotoRegistry registry) throws IOException {
+        DataInputStream in = verifiedInput(stream);
+        int version = readHeader(in, REGISTRY_MAGIC);
+        String[] table = readTable(in);
+        int nextId = readVarInt(in);
+        int photoCount = readCount(in);
+        for (int p = 0; p < photoCount; p++) {
+            int id = readVarInt(in);
+            int[] albumIds = version >= 7 ? readIds(in) : null; // written in order
+            if (albumIds == null) readVarInt(in);
+            Photo photo = readPhoto(in, table);
+            photo.registryId = id;
+            if (albumIds != null) photo.albumIds = albumIds;
+            registry.put(photo);
+        }
+        endRead(in);
+        registry.setNextId(nextId);
+    }
+
+    /**
+     * Reads just the schema version of a registry file, to tell whether its photos know
+     * their albums without decoding them.
+     */
+    public static int decodeRegistryVersion(InputStream stream) throws IOException {
+        return readHeader(new DataInputStream(new BufferedInputStream(stream)), REGISTRY_MAGIC);
+    }
+
+    /**
+     * Encodes the ids of a single album's photos, which must be registered.
+     */
+    public static void encodeAlbum(Album album, OutputStream stream) throws IOException {
+        encodeAlbum(photoIds(album), stream);
+    }
+
+    /**
+     * Encodes an album shard from the ids of its photos, in order.
+     */
+    static void encodeAlbum(int[] ids, OutputStream stream) throws IOException {
+        CRC32 crc = new CRC32();
+        DataOutputStream out = beginFile(stream, crc, ALBUM_MAGIC);
+        writeVarInt(out, ids.length);
+        for (int id : ids) {
+            writeVarInt(out, id);
+        }
+        endFile(out, stream, crc);
+    }
+
+    /**
+     * The registry ids of an album's photos, in order, as its shard lists them.
+     */
+    static int[] photoIds(Album album) {
+        List<Photo> photos = album.getPhotos();
+        int[] ids = new int[photos.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = photos.get(i).registryId;
+        }
+        return ids;
+    }
+
+    /**
+     * Decodes an album shard into the given album, which must not have its photos
+     * loaded yet, and marks it loaded. Photos are looked up in the registry, which must
+     * have the buckets they are in loaded. Shards from before the registry hold the
+     * photos themselves; those are registered, which needs every bucket, and the album is
+     * left dirty so that it is rewritten as ids.
+     */
+    public static void decodeAlbum(InputStream stream, PhotoRegistry registry, Album album) throws IOException {
+        DataInputStream in = verifiedInput(stream);
+        int version = readHeader(in, ALBUM_MAGIC);
+        if (version < 4) {
+            List<Photo> photos = readPhotos(in, readTable(in));
+            endRead(in);
+            album.adoptPhotos(photos);
+            registry.adopt(album);
+            return;
+        }
+        int[] ids = readIds(in);
+        endRead(in);
+        List<Photo> photos = registry.resolve(ids);
+        album.adoptPhotos(photos);
+        if (photos.size() == ids.length) {
+            album.clearDirty();
+        } else {
+            album.markDirty(); // refers to photos the registry lost; rewrite without them
+        }
+    }
+
+    /**
+     * Decodes just the photo ids of an album shard, without needing the registry.
+     * @throws IOException also for shards from before the registry, which hold no ids
+     */
+    public static int[] decodeAlbumIds(InputStream stream) throws IOException {
+        DataInputStream in = verifiedInput(stream);
+        if (readHeader(in, ALBUM_MAGIC) < 4) {
+            throw new IOException("Album shard predates the photo registry");
+        }
+        int[] ids = readIds(in);
+        endRead(in);
+        return ids;
+    }
+
+    private static int[] readIds(DataInputStream in) throws IOException {
+        int[] ids = new int[readCount(in)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = readVarInt(in);
+        }
+        return ids;
+    }
+
+    private static DataOutputStream beginFile(OutputStream stream, CRC32 crc, int magic) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new CheckedOutputStream(new BufferedOutputStream(stream), crc));
+        out.writeInt(magic);
+        writeVarInt(out, VERSION);
+        return out;
+    }
+
+    private static void endFile(DataOutputStream out, OutputStream stream, CRC32 crc) throws IOException {
+        out.flush();
+        // The checksum itself is written outside the checked stream
+        DataOutputStream trailer = new DataOutputStream(stream);
+        trailer.writeInt((int) crc.getValue());
+        trailer.flush();
+    }
+
+    /**
+     * Reads a whole file and checks its CRC32 before anything is decoded, so that damage
+     * shows up as an IOException rather than as a bad index or length further on.
+     * @return the contents without the checksum
+     */
+    private static DataInputStream verifiedInput(InputStream stream) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = stream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        byte[] data = bytes.toByteArray();
+        int length = data.length - 4;
+        if (length < 0) {
+            throw new IOException("Library file truncated");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        int expected = ((data[length] & 0xFF) << 24) | ((data[length + 1] & 0xFF) << 16)
+                | ((data[length + 2] & 0xFF) << 8) | (data[length + 3] & 0xFF);
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Library checksum mismatch");
+        }
+        return new DataInputStream(new ByteArrayInputStream(data, 0, length));
+    }
+
+    /**
+     * Reads and checks the magic number and schema version.
+     * @return the schema version the file was written with
+     */
+    private static int readHeader(DataInputStream in, int magic) throws IOException {
+        if (in.readInt() != magic) {
+            throw new IOException("Unexpected file type");
+        }
+        int version = readVarInt(in);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported library version " + version);
+        }
+        return version;
+    }
+
+    private static void endRead(DataInputStream in) throws IOException {
+        if (in.available() != 0) {
+            throw new IOException("Unexpected data at the end of a library file");
+        }
+    }
+
+    // A string table entry referred to by the next varint
+    private static String readTableEntry(DataInputStream in, String[] table) throws IOException {
+        int index = readVarInt(in);
+        if (table == null || index < 0 || index >= table.length) {
+            throw new IOException("String table index out of range");
+        }
+        return table[index];
+    }
+
+    // A count of things that follow, each at least a byte long
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = readVarInt(in);
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Malformed count");
+        }
+        return count;
+    }
+
+    private static void collectStrings(Map<String, Integer> table, Collection<Photo> photos) {
+        for (Photo photo : photos) {
+            intern(table, uriPrefix(photo.getFilePath()));
+            for (Tag tag : photo.getTags()) {
+                intern(table, tag.getName());
+                intern(table, tag.getValue());
+            }
+        }
+    }
+
+    private static void collectStrings(Map<String, Integer> table, Map<Tag, Integer> counts) {
+        for (Tag tag : counts.keySet()) {
+            intern(table, tag.getName());
+            intern(table, tag.getValue());
+        }
+    }
+
+    private static void writeTable(DataOutputStream out, Map<String, Integer> table) throws IOException {
+        writeVarInt(out, table.size());
+        for (String s : table.keySet()) {
+            writeString(out, s);
+        }
+    }
+
+    private static String[] readTable(DataInputStream in) throws IOException {
+        String[] table = new String[readCount(in)];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = readString(in);
+        }
+        return table;
+    }
+
+    private static void writePhotos(DataOutputStream out, List<Photo> photos, Map<String, Integer> table)
+            throws IOException {
+        writeVarInt(out, photos.size());
+        for (Photo photo : photos) {
+            writePhoto(out, photo, table);
+        }
+    }
+
+    private static void writePhoto(DataOutputStream out, Photo photo, Map<String, Integer> table)
+            throws IOException {
+        String path = photo.getFilePath();
+        String prefix = uriPrefix(path);
+        writeVarInt(out, table.get(prefix));
+        writeString(out, path.substring(prefix.length()));
+        writeString(out, photo.getDescription());
+        writeVarLong(out, photo.getDate().getTime());
+        List<Tag> tags = photo.getTags();
+        writeVarInt(out, tags.size());
+        for (Tag tag : tags) {
+            writeVarInt(out, table.get(tag.getName()));
+            writeVarInt(out, table.get(tag.getValue()));
+        }
+    }
+
+    private static List<Photo> readPhotos(DataInputStream in, String[] table) throws IOException {
+        int photoCount = readCount(in);
+        List<Photo> photos = new ArrayList<>(photoCount);
+        for (int p = 0; p < photoCount; p++) {
+            photos.add(readPhoto(in, table));
+        }
+        return photos;
+    }
+
+    private static Photo readPhoto(DataInputStream in, String[] table) throws IOException {
+        String path = readTableEntry(in, table) + readString(in);
+        String description = readString(in);
+        Photo photo = new Photo(path, readVarLong(in));
+        photo.setDescription(description);
+        int tagCount = readCount(in);
+        for (int t = 0; t < tagCount; t++) {
+            String name = readTableEntry(in, table);
+            photo.addTagId(TagDictionary.intern(name, readTableEntry(in, table)));
+        }
+        return photo;
+    }
+
+    /**
+     * Returns the part of a path or URI up to and including its last '/'.
+     */
+    static String uriPrefix(String path) {
+        return path.substring(0, path.lastIndexOf('/') + 1);
+    }
+
+    private static void intern(Map<String, Integer> table, String s) {
+        if (!table.containsKey(s)) {
+            table.put(s, table.size());
+        }
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) {
+            throw new IOException("Malformed string length");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,261 @@
+package com.example.photosandroid.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A single change to the album library, as recorded in the mutation journal.
+ * Mutations are small and self-describing so that persisting a change costs
+ * as much as the change itself rather than a rewrite of every album.
+ */
+public class Mutation {
+    static final byte ADD_ALBUM = 1;
+    static final byte REMOVE_ALBUM = 2;
+    static final byte RENAME_ALBUM = 3;
+    static final byte ADD_PHOTO = 4;
+    static final byte REMOVE_PHOTO = 5;
+    static final byte MOVE_PHOTO = 6;
+    static final byte ADD_TAG = 7;
+    static final byte REMOVE_TAG = 8;
+
+    private final byte type;
+    private final String albumName;
+    private final String target;   // new name for renames, destination album for moves
+    private final String filePath;
+    private final String tagName;
+    private final String tagValue;
+    private final long dateMillis;
+    private final int albumId;     // id of an added album; 0 in records written before ids were
+
+    private Mutation(byte type, String albumName, String target, String filePath,
+                     String tagName, String tagValue, long dateMillis) {
+        this(type, albumName, target, filePath, tagName, tagValue, dateMillis, 0);
+    }
+
+    private Mutation(byte type, String albumName, String target, String filePath,
+                     String tagName, String tagValue, long dateMillis, int albumId) {
+        this.type = type;
+        this.albumName = albumName;
+        this.target = target;
+        this.filePath = filePath;
+        this.tagName = tagName;
+        this.tagValue = tagValue;
+        this.dateMillis = dateMillis;
+        this.albumId = albumId;
+    }
+
+    public static Mutation addAlbum(String albumName, int albumId) {
+        return new Mutation(ADD_ALBUM, albumName, "", "", "", "", 0, albumId);
+    }
+
+    public static Mutation removeAlbum(String albumName) {
+        return new Mutation(REMOVE_ALBUM, albumName, "", "", "", "", 0);
+    }
+
+    public static Mutation renameAlbum(String oldName, String newName) {
+        return new Mutation(RENAME_ALBUM, oldName, newName, "", "", "", 0);
+    }
+
+    public static Mutation addPhoto(String albumName, Photo photo) {
+        return new Mutation(ADD_PHOTO, albumName, "", photo.getFilePath(), "", "",
+                photo.getDate().getTime());
+    }
+
+    public static Mutation removePhoto(String albumName, String filePath) {
+        return new Mutation(REMOVE_PHOTO, albumName, "", filePath, "", "", 0);
+    }
+
+    public static Mutation movePhoto(String fromAlbum, String toAlbum, String filePath) {
+        return new Mutation(MOVE_PHOTO, fromAlbum, toAlbum, filePath, "", "", 0);
+    }
+
+    public static Mutation addTag(String albumName, String filePath, String tagName, String tagValue) {
+        return new Mutation(ADD_TAG, albumName, "", filePath, tagName, tagValue, 0);
+    }
+
+    public static Mutation removeTag(String albumName, String filePath, String tagName, String tagValue) {
+        return new Mutation(REMOVE_TAG, albumName, "", filePath, tagName, tagValue, 0);
+    }
+
+    /**
+     * Writes the mutation payload (without journal framing).
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(albumName);
+        switch (type) {
+            case ADD_ALBUM:
+                out.writeInt(albumId);
+                break;
+            case RENAME_ALBUM:
+                out.writeUTF(target);
+                break;
+            case ADD_PHOTO:
+                out.writeUTF(filePath);
+                out.writeLong(dateMillis);
+                break;
+            case REMOVE_PHOTO:
+                out.writeUTF(filePath);
+                break;
+            case MOVE_PHOTO:
+                out.writeUTF(target);
+                out.writeUTF(filePath);
+                break;
+            case ADD_TAG:
+            case REMOVE_TAG:
+                out.writeUTF(filePath);
+                out.writeUTF(tagName);
+                out.writeUTF(tagValue);
+                break;
+        }
+    }
+
+    /**
+     * Reads a mutation payload previously written by {@link #writeTo}.
+     */
+    static Mutation readFrom(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String albumName = in.readUTF();
+        switch (type) {
+            case ADD_ALBUM:
+                // The payload is the whole record, so an id is there exactly when it was written
+                return addAlbum(albumName, in.available() >= 4 ? in.readInt() : 0);
+            case REMOVE_ALBUM:
+                return removeAlbum(albumName);
+            case RENAME_ALBUM:
+                return renameAlbum(albumName, in.readUTF());
+            case ADD_PHOTO: {
+                String path = in.readUTF();
+                return new Mutation(ADD_PHOTO, albumName, "", path, "", "", in.readLong());
+            }
+            case REMOVE_PHOTO:
+                return removePhoto(albumName, in.readUTF());
+            case MOVE_PHOTO: {
+                String to = in.readUTF();
+                return movePhoto(albumName, to, in.readUTF());
+            }
+            case ADD_TAG:
+            case REMOVE_TAG: {
+                String path = in.readUTF();
+                String name = in.readUTF();
+                String value = in.readUTF();
+                return new Mutation(type, albumName, "", path, name, value, 0);
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    /**
+     * Replays this mutation against the given album list, keeping the library's tag
+     * counts in step the way {@link AlbumRepository} does.
+     * Replay is idempotent: a record whose effect is already present (for instance
+     * because a checkpoint was written just before the journal was cleared) is a no-op.
+     * @param loader reads the albums whose photos the mutation touches, and the rest of
+     *               the registry if it adds a photo
+     */
+    void applyTo(List<Album> albums, PhotoRegistry registry, TagCompletions completions, Loader loader) {
+        Album album = findAlbum(albums, albumName);
+        if (album != null && touchesPhotos()) {
+            loader.loadAlbum(album);
+        }
+        switch (type) {
+            case ADD_ALBUM: {
+                if (album != null) break;
+                boolean taken = false;
+                for (Album a : albums) taken |= a.getId() == albumId;
+                // Ids are new when added, so a taken one means the album is there, renamed since
+                if (albumId != 0 && taken) break;
+                Album added = new Album(albumName);
+                added.setId(albumId != 0 ? albumId : Album.nextId(albums));
+                added.markDirty(); // its shard is written even while empty, see AlbumRepository#addAlbum
+                albums.add(added);
+                break;
+            }
+            case REMOVE_ALBUM:
+                if (album == null) break;
+                completions.addAll(album.getTagCounts(), -1);
+                for (Photo photo : album.clearPhotos()) registry.release(photo);
+                albums.remove(album);
+                break;
+            case RENAME_ALBUM:
+                if (album != null && findAlbum(albums, target) == null) album.setName(target);
+                break;
+            case ADD_PHOTO: {
+                if (album == null) break;
+                loader.loadRegistry();
+                Photo photo = registry.intern(new Photo(filePath, dateMillis));
+                if (album.containsPhoto(photo)) break;
+                album.addPhoto(photo);
+                registry.markDirty(photo);
+                completions.addPhoto(photo, 1);
+                break;
+            }
+            case REMOVE_PHOTO: {
+                Photo photo = findPhoto(album, filePath);
+                if (photo == null) break;
+                album.removePhoto(photo);
+                completions.addPhoto(photo, -1);
+                registry.release(photo);
+                break;
+            }
+            case MOVE_PHOTO: {
+                Album destination = findAlbum(albums, target);
+                Photo photo = findPhoto(album, filePath);
+                if (photo == null || destination == null) break;
+                loader.loadAlbum(destination);
+                if (!destination.containsPhoto(photo)) destination.addPhoto(photo);
+                else completions.addPhoto(photo, -1); // only leaves the source
+                album.removePhoto(photo);
+                registry.markDirty(photo);
+                break;
+            }
+            case ADD_TAG:
+            case REMOVE_TAG: {
+                Photo photo = findPhoto(album, filePath);
+                if (photo == null) break;
+                boolean changed = type == ADD_TAG
+                        ? photo.addTag(tagName, tagValue)
+                        : photo.removeTag(tagName, tagValue);
+                if (!changed) break;
+                registry.markDirty(photo);
+                int albumCount = photo.getAlbumCount();
+                completions.add(tagName, tagValue, type == ADD_TAG ? albumCount : -albumCount);
+                Album.tagChanged(albums, photo, tagName, tagValue, type == ADD_TAG ? 1 : -1);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads what replaying a mutation needs and is not in memory yet.
+     */
+    interface Loader {
+        /** Makes sure an album's photos are loaded, with the registry buckets they are in. */
+        void loadAlbum(Album album);
+
+        /** Makes sure every registry bucket is loaded, as finding a photo by path needs. */
+        void loadRegistry();
+    }
+
+    // Adding and renaming albums only touch the manifest entry; a removed album's
+    // photos are needed to drop it from the photos' album counts
+    private boolean touchesPhotos() {
+        return type != ADD_ALBUM && type != RENAME_ALBUM;
+    }
+
+    private static Album findAlbum(List<Album> albums, String name) {
+        for (Album a : albums) {
+            if (a.getName().equals(name)) {
+                return a;
+            }
+        }
+        return null;
+    }
+
+    private static Photo findPhoto(Album album, String filePath) {
+        return album != null ? album.getPhoto(filePath) : null;
+    }
+}
@@ -1,25 +1,57 @@
 package com.example.photosandroid.model;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
+/**
+ * A photo in the library, identified by its file path or content URI.
+ *
+ * Tags are kept as a sorted array of {@link TagDictionary} ids, so checking for a tag is
+ * a binary search that allocates nothing. The array is replaced, never changed in place,
+ * when a tag is added or removed. The photo also knows the ids of the albums containing
+ * it, so that a tag edit can reach the counts of albums whose photos are not loaded.
+ *
+ * Photos are changed on the main thread but may be read from others, such as caption
+ * builders. The tags, the description and the version are volatile, and the version is
+ * bumped only after the change it counts, so a reader that sees the same version before
+ * and after reading the photo has read that version's tags and description.
+ */
 public class Photo implements Serializable {
     private static final long serialVersionUID = 2L;
+    private static final int[] NO_TAGS = new int[0];
+    private static final int[] NO_ALBUMS = new int[0];
 
     private String filePath;
-    private String description;
+    private volatile String description;
     private long dateMillis; // Save as Unix timestamp for Android compatibility
-    private List<Tag> tags;
+    private List<Tag> tags;  // only set during Java serialization, see writeObject
+    private transient volatile int[] tagIds = NO_TAGS;
+    transient int indexId;    // id in the TagIndex, 0 while not indexed
+    transient int registryId; // id in the PhotoRegistry, 0 while not registered
+    transient int[] albumIds = NO_ALBUMS; // sorted ids of the albums containing this photo, replaced on change
+    private transient volatile int version; // bumped after every change to tags or description
 
+    /**
+     * Creates a photo dated from its file. Content URIs have no file to ask, so they are
+     * dated now; use {@link PhotoImporter} to read their real dates.
+     */
     public Photo(String filePath) {
+        this(filePath, filePath.contains("://") ? System.currentTimeMillis()
+                : new File(filePath).lastModified());
+    }
+
+    public Photo(String filePath, long dateMillis) {
         this.filePath = filePath;
         this.description = "";
-        this.tags = new ArrayList<>();
-        File file = new File(filePath);
-        this.dateMillis = file.lastModified();
+        this.dateMillis = dateMillis;
     }
 
     public String getFilePath() {
@@ -32,55 +64,179 @@ public class Photo implements Serializable {
 
     public void setDescription(String description) {
         this.description = description;
+        version++;
     }
 
     public Date getDate() {
         return new Date(dateMillis);
     }
 
+    /**
+     * The photo's date in milliseconds since the epoch, without allocating a {@link Date}.
+     */
+    public long getDateMillis() {
+        return dateMillis;
+    }
+
+    /**
+     * Returns the photo's tags, ordered by tag id. The list is a read-only view of the
+     * tags at the time of the call; use {@link #addTag} and {@link #removeTag} to change them.
+     */
     public List<Tag> getTags() {
-        return tags;
+        int[] ids = tagIds;
+        return new AbstractList<Tag>() {
+            @Override
+            public Tag get(int index) {
+                return TagDictionary.get(ids[index]);
+            }
+
+            @Override
+            public int size() {
+                return ids.length;
+            }
+        };
     }
 
     public boolean addTag(String tagName, String tagValue) {
-        tagName = tagName.toLowerCase();
-        tagValue = tagValue.toLowerCase();
-        for (Tag t : tags) {
-            if (t.getName().equalsIgnoreCase(tagName) && t.getValue().equalsIgnoreCase(tagValue)) {
-                return false;
-            }
+        int id = TagDictionary.intern(tagName, tagValue);
+        if (Arrays.binarySearch(tagIds, id) >= 0) {
+            return false;
         }
-        if (tagName.equals("location")) {
-            for (Tag t : tags) {
-                if (t.getName().equalsIgnoreCase("location")) {
+        // Only one location per photo
+        if (TagDictionary.get(id).getName().equals("location")) {
+            for (int other : tagIds) {
+                if (TagDictionary.get(other).getName().equals("location")) {
                     return false;
                 }
             }
         }
-        tags.add(new Tag(tagName, tagValue));
+        addTagId(id);
         return true;
     }
 
-    public void removeTag(String tagName, String tagValue) {
-        Tag toRemove = null;
-        for (Tag t : tags) {
-            if (t.getName().equalsIgnoreCase(tagName) && t.getValue().equalsIgnoreCase(tagValue)) {
-                toRemove = t;
-                break;
-            }
-        }
-        if (toRemove != null) {
-            tags.remove(toRemove);
+    public boolean removeTag(String tagName, String tagValue) {
+        int pos = indexOf(tagName, tagValue);
+        if (pos < 0) {
+            return false;
         }
+        int[] ids = new int[tagIds.length - 1];
+        System.arraycopy(tagIds, 0, ids, 0, pos);
+        System.arraycopy(tagIds, pos + 1, ids, pos, ids.length - pos);
+        tagIds = ids;
+        version++;
+        return true;
+    }
+
+    /**
+     * A number that changes whenever the photo's tags or description change, so that
+     * screens can tell whether what they show of the photo is still current.
+     */
+    public int getVersion() {
+        return version;
     }
 
     public boolean hasTag(String name, String value) {
-        for (Tag t : tags) {
-            if (t.getName().equalsIgnoreCase(name) && t.getValue().equalsIgnoreCase(value)) {
-                return true;
+        return indexOf(name, value) >= 0;
+    }
+
+    /**
+     * @return whether the photo has the tag with the given {@link TagDictionary} id
+     */
+    boolean hasTag(int tagId) {
+        return Arrays.binarySearch(tagIds, tagId) >= 0;
+    }
+
+    // Sorted ids of the photo's tags; must not be modified
+    int[] getTagIds() {
+        return tagIds;
+    }
+
+    // The photo as it is now, with its registry id and albums, for writing on another
+    // thread while this one goes on changing; tag and album arrays are replaced on change
+    Photo copy() {
+        Photo copy = new Photo(filePath, dateMillis);
+        copy.description = description;
+        copy.tagIds = tagIds;
+        copy.registryId = registryId;
+        copy.albumIds = albumIds;
+        return copy;
+    }
+
+    // Adds a tag without the one-location rule, for photos read from storage
+    void addTagId(int tagId) {
+        int pos = Arrays.binarySearch(tagIds, tagId);
+        if (pos >= 0) return;
+        pos = -pos - 1;
+        int[] ids = new int[tagIds.length + 1];
+        System.arraycopy(tagIds, 0, ids, 0, pos);
+        ids[pos] = tagId;
+        System.arraycopy(tagIds, pos, ids, pos + 1, tagIds.length - pos);
+        tagIds = ids;
+        version++;
+    }
+
+    /**
+     * @return the number of albums containing the photo
+     */
+    int getAlbumCount() {
+        return albumIds.length;
+    }
+
+    boolean isInAlbum(int albumId) {
+        return Arrays.binarySearch(albumIds, albumId) >= 0;
+    }
+
+    // Membership is kept by Album as photos come and go
+    void addAlbum(int albumId) {
+        int pos = Arrays.binarySearch(albumIds, albumId);
+        if (pos >= 0) return;
+        pos = -pos - 1;
+        int[] ids = new int[albumIds.length + 1];
+        System.arraycopy(albumIds, 0, ids, 0, pos);
+        ids[pos] = albumId;
+        System.arraycopy(albumIds, pos, ids, pos + 1, albumIds.length - pos);
+        albumIds = ids;
+    }
+
+    void removeAlbum(int albumId) {
+        int pos = Arrays.binarySearch(albumIds, albumId);
+        if (pos < 0) return;
+        int[] ids = new int[albumIds.length - 1];
+        System.arraycopy(albumIds, 0, ids, 0, pos);
+        System.arraycopy(albumIds, pos + 1, ids, pos, ids.length - pos);
+        albumIds = ids;
+    }
+
+    void clearAlbums() {
+        albumIds = NO_ALBUMS;
+    }
+
+    private int indexOf(String tagName, String tagValue) {
+        int id = TagDictionary.find(tagName, tagValue);
+        return id < 0 ? -1 : Arrays.binarySearch(tagIds, id);
+    }
+
+    // The serialized form keeps the Tag list of older versions
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        tags = new ArrayList<>(getTags());
+        try {
+            out.defaultWriteObject();
+        } finally {
+            tags = null;
+        }
+    }
+
+    // Serialized photos carry Tag objects; turn them into ids
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        tagIds = NO_TAGS;
+        albumIds = NO_ALBUMS;
+        if (tags != null) {
+            for (Tag tag : tags) {
+                addTagId(TagDictionary.intern(tag.getName(), tag.getValue()));
             }
+            tags = null;
         }
-        return false;
     }
 
     @Override
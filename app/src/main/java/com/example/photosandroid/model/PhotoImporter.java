@@ -0,0 +1,220 @@
+package com.example.photosandroid.model;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports picked images into an album in bulk.
+ *
+ * Images picked twice are dropped up front; those the album already has are skipped
+ * when the batch is added, as the album need not be loaded yet. The remaining images
+ * are examined on a small worker pool, which takes the persistable read permission and
+ * asks the ContentResolver for their dates, while the album, and the registry its new
+ * photos are looked up in, are read in the background. They are then added to the
+ * album in one {@link AlbumRepository#addPhotos} call, so listeners are told once and
+ * the journal gets one write however many images were picked. Imports outlive the
+ * activity that started them; the activity attaches a {@link Listener} to follow their
+ * progress.
+ * All methods must be called from the main thread, and listeners are called on it.
+ */
+public class PhotoImporter {
+
+    /**
+     * Follows the imports that are running.
+     */
+    public interface Listener {
+        /** Called as images are examined, at most every {@link #PROGRESS_INTERVAL_MS}. */
+        void onImportProgress(Album album, int done, int total);
+
+        /**
+         * Called once the photos are in the album.
+         * @param skipped images the album already had, or that were picked twice
+         * @param failed images that could not be read
+         */
+        void onImportFinished(Album album, int added, int skipped, int failed);
+    }
+
+    /** Minimum time between two progress reports of an import. */
+    public static final long PROGRESS_INTERVAL_MS = 100;
+
+    private static final int POOL_SIZE =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static PhotoImporter instance;
+
+    private final ContentResolver resolver;
+    private final AlbumRepository repository;
+    private final ExecutorService executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Main thread only
+    private final List<Listener> listeners = new ArrayList<>();
+    private final Map<Album, Integer> running = new HashMap<>(); // imports per album
+
+    private PhotoImporter(Context context) {
+        this.resolver = context.getContentResolver();
+        this.repository = AlbumRepository.getInstance(context);
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "photo-import-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = Executors.newFixedThreadPool(POOL_SIZE, factory);
+    }
+
+    public static synchronized PhotoImporter getInstance(Context context) {
+        if (instance == null) {
+            instance = new PhotoImporter(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return true while an import into the album is running
+     */
+    public boolean isImporting(Album album) {
+        return running.containsKey(album);
+    }
+
+    /**
+     * Starts importing the given images into an album.
+     */
+    public void importPhotos(Album album, List<Uri> uris) {
+        // Drop repeated picks before any I/O is done for them
+        List<Uri> wanted = new ArrayList<>(uris.size());
+        Set<String> seen = new HashSet<>(uris.size() * 4 / 3 + 1);
+        for (Uri uri : uris) {
+            if (seen.add(uri.toString())) {
+                wanted.add(uri);
+            }
+        }
+        new Import(album, wanted, uris.size() - wanted.size()).start();
+    }
+
+    /**
+     * One running import. Workers fill in their share of {@link #photos}; the last one to
+     * finish hands the batch to the main thread.
+     */
+    private class Import {
+        private final Album album;
+        private final List<Uri> uris;
+        private final int skipped;
+        private final Photo[] photos;
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger remainingWorkers = new AtomicInteger();
+        private volatile long lastReport;
+
+        Import(Album album, List<Uri> uris, int skipped) {
+            this.album = album;
+            this.uris = uris;
+            this.skipped = skipped;
+            this.photos = new Photo[uris.size()];
+        }
+
+        void start() {
+            running.merge(album, 1, Integer::sum);
+            // Adding needs the album and the whole registry; have them read while the images are examined
+            repository.openAlbumForAdding(album, () -> {});
+            if (uris.isEmpty()) {
+                finish();
+                return;
+            }
+            // Each worker takes every n-th image, so no work queue is needed
+            int workers = Math.min(POOL_SIZE, uris.size());
+            remainingWorkers.set(workers);
+            for (int w = 0; w < workers; w++) {
+                int first = w;
+                executor.execute(() -> examine(first, workers));
+            }
+        }
+
+        private void examine(int first, int step) {
+            for (int i = first; i < uris.size(); i += step) {
+                photos[i] = readPhoto(uris.get(i));
+                reportProgress(done.incrementAndGet());
+            }
+            if (remainingWorkers.decrementAndGet() == 0) {
+                // The counter orders the workers' writes to photos before this post
+                mainHandler.post(this::finish);
+            }
+        }
+
+        private void reportProgress(int count) {
+            long now = SystemClock.uptimeMillis();
+            if (count < uris.size() && now - lastReport < PROGRESS_INTERVAL_MS) return;
+            lastReport = now;
+            mainHandler.post(() -> {
+                for (Listener l : new ArrayList<>(listeners)) {
+                    l.onImportProgress(album, count, uris.size());
+                }
+            });
+        }
+
+        private void finish() {
+            List<Photo> batch = new ArrayList<>(photos.length);
+            for (Photo photo : photos) {
+                if (photo != null) batch.add(photo);
+            }
+            int failed = photos.length - batch.size();
+            repository.openAlbumForAdding(album, () -> {
+                int added = repository.addPhotos(album, batch);
+                running.merge(album, -1, (a, b) -> a + b == 0 ? null : a + b);
+                // Photos the album already had count as skipped
+                int alreadyThere = batch.size() - added;
+                for (Listener l : new ArrayList<>(listeners)) {
+                    l.onImportFinished(album, added, skipped + alreadyThere, failed);
+                }
+            });
+        }
+    }
+
+    /**
+     * Keeps access to a picked image and reads its date.
+     * @return the photo, or null if the image cannot be read
+     */
+    private Photo readPhoto(Uri uri) {
+        try {
+            resolver.takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // Not a persistable grant; the photo stays readable until the app restarts
+        }
+        String[] projection = {DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+        try (Cursor cursor = resolver.query(uri, projection, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return null;
+            }
+            long date = cursor.isNull(0) ? System.currentTimeMillis() : cursor.getLong(0);
+            return new Photo(uri.toString(), date);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.photosandroid.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The photos of the whole library, one {@link Photo} per file path.
+ *
+ * Albums refer to the photos registered here instead of holding copies of their own, so
+ * a photo that is in several albums is a single object: its tags and description are
+ * stored once and an edit shows in every album. Each photo has a stable id, which is
+ * what album shards store (see {@link LibraryCodec}), and the ids of the albums that
+ * contain it; a photo that leaves its last album is dropped from the registry.
+ *
+ * The registry is persisted by {@link FileStorage} in buckets of {@link #BUCKET_SIZE}
+ * consecutive photo ids, one file each, and read a bucket at a time: opening an album
+ * reads the buckets its photos' ids fall in, and only searching and adding photos need
+ * every bucket ({@link #isLoaded}). Photos imported together get consecutive ids, so an
+ * album's photos usually share a few buckets. Changes are counted per bucket, so a
+ * checkpoint rewrites just the buckets of the photos that changed. Like the albums, the
+ * registry is owned by {@link AlbumRepository}.
+ */
+public class PhotoRegistry {
+    /** Photo ids per registry file; a photo is in bucket {@code id / BUCKET_SIZE}. */
+    static final int BUCKET_SIZE = 4096;
+
+    private final Map<String, Photo> byPath = new HashMap<>();
+    private final Map<Integer, Photo> byId = new HashMap<>();
+    // Ids are never reused, so a shard written before a photo was dropped cannot pick up another photo
+    private int nextId = 1;
+    private final Set<Integer> loadedBuckets = new HashSet<>();
+    private boolean loaded; // every bucket is
+    // Changes made to each bucket, and how many of them its file has; dirty while they differ
+    private final Map<Integer, Integer> changes = new HashMap<>();
+    private final Map<Integer, Integer> savedChanges = new HashMap<>();
+
+    /**
+     * @return the registered photo with the given path, or null if there is none
+     */
+    public Photo get(String filePath) {
+        return byPath.get(filePath);
+    }
+
+    /**
+     * @return the registered photo with the given id, or null if there is none
+     */
+    public Photo get(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * @return the number of registered photos in the buckets read so far
+     */
+    public int size() {
+        return byPath.size();
+    }
+
+    /**
+     * Returns the registered photo with the same path, registering the given one if
+     * there is none yet. Every bucket must be loaded, or a photo with that path could be
+     * in one that is not.
+     */
+    Photo intern(Photo photo) {
+        Photo existing = byPath.get(photo.getFilePath());
+        if (existing != null) {
+            return existing;
+        }
+        photo.registryId = nextId++;
+        put(photo);
+        markDirty(photo);
+        return photo;
+    }
+
+    /**
+     * Records that a photo left an album, and drops it if no album contains it any more.
+     */
+    void release(Photo photo) {
+        markDirty(photo);
+        if (photo.getAlbumCount() == 0 && byPath.get(photo.getFilePath()) == photo) {
+            byPath.remove(photo.getFilePath());
+            byId.remove(photo.registryId);
+        }
+    }
+
+    /**
+     * Looks up the photos of an album shard.
+     * @return the photos in order; ids that are not registered are left out
+     */
+    List<Photo> resolve(int[] ids) {
+        List<Photo> photos = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            Photo photo = byId.get(id);
+            if (photo != null) {
+                photos.add(photo);
+            }
+        }
+        return photos;
+    }
+
+    /**
+     * Replaces the photos of an album read from a format that predates the registry with
+     * registered ones. A photo already registered through another album keeps its object,
+     * and gains the tags only the album's copy had. The album must have its id.
+     */
+    void adopt(Album album) {
+        List<Photo> shared = new ArrayList<>(album.getPhotos().size());
+        Set<Photo> seen = new HashSet<>();
+        for (Photo copy : album.getPhotos()) {
+            Photo photo = byPath.get(copy.getFilePath());
+            if (photo == null) {
+                copy.clearAlbums();
+                photo = intern(copy);
+            } else if (photo != copy) {
+                for (Tag tag : copy.getTags()) {
+                    photo.addTag(tag.getName(), tag.getValue());
+                }
+                if (photo.getDescription().isEmpty()) {
+                    photo.setDescription(copy.getDescription());
+                }
+            }
+            if (seen.add(photo)) {
+                shared.add(photo);
+                photo.addAlbum(album.getId());
+                markDirty(photo);
+            }
+        }
+        album.adoptPhotos(shared);
+        album.markDirty();
+    }
+
+    /**
+     * Takes over the buckets of a registry read on another thread, except those read
+     * here in the meantime.
+     * @return the photos taken over
+     */
+    List<Photo> addAll(PhotoRegistry read) {
+        List<Photo> added = new ArrayList<>();
+        for (Photo photo : read.byId.values()) {
+            if (!isLoaded(bucketOf(photo.registryId))) {
+                put(photo);
+                added.add(photo);
+            }
+        }
+        for (int bucket : read.loadedBuckets) {
+            if (loadedBuckets.add(bucket)) {
+                // Changes made while reading, such as splitting the file of older versions
+                changes.put(bucket, read.changes.getOrDefault(bucket, 0));
+                savedChanges.put(bucket, read.savedChanges.getOrDefault(bucket, 0));
+            }
+        }
+        setNextId(read.nextId);
+        loaded |= read.loaded;
+        return added;
+    }
+
+    // Adds a photo read from the registry file, keeping its id
+    void put(Photo photo) {
+        byPath.put(photo.getFilePath(), photo);
+        byId.put(photo.registryId, photo);
+        nextId = Math.max(nextId, photo.registryId + 1);
+    }
+
+    Collection<Photo> photos() {
+        return byId.values();
+    }
+
+    // The photos of one bucket, in id order
+    Photo[] photos(int bucket) {
+        List<Photo> photos = new ArrayList<>();
+        for (int id = bucket * BUCKET_SIZE; id < (bucket + 1) * BUCKET_SIZE; id++) {
+            Photo photo = byId.get(id);
+            if (photo != null) photos.add(photo);
+        }
+        return photos.toArray(new Photo[0]);
+    }
+
+    static int bucketOf(int photoId) {
+        return photoId / BUCKET_SIZE;
+    }
+
+    int getNextId() {
+        return nextId;
+    }
+
+    void setNextId(int nextId) {
+        this.nextId = Math.max(this.nextId, nextId);
+    }
+
+    // Whether every bucket has been read, as finding photos by path needs
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    void markLoaded() {
+        loaded = true;
+    }
+
+    boolean isLoaded(int bucket) {
+        return loaded || loadedBuckets.contains(bucket);
+    }
+
+    void markLoaded(int bucket) {
+        loadedBuckets.add(bucket);
+    }
+
+    // The buckets read so far, copied for a background thread deciding what to read
+    Set<Integer> getLoadedBuckets() {
+        return new HashSet<>(loadedBuckets);
+    }
+
+    // Set by changes to registered photos: new photos, dropped photos, tag edits and
+    // album membership; only loaded buckets can have them
+    void markDirty(Photo photo) {
+        markDirty(bucketOf(photo.registryId));
+    }
+
+    void markDirty(int bucket) {
+        changes.merge(bucket, 1, Integer::sum);
+    }
+
+    // The buckets whose file lacks some changes, in order
+    int[] getDirtyBuckets() {
+        List<Integer> dirty = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : changes.entrySet()) {
+            if (!entry.getValue().equals(savedChanges.get(entry.getKey()))) dirty.add(entry.getKey());
+        }
+        int[] buckets = new int[dirty.size()];
+        for (int i = 0; i < buckets.length; i++) buckets[i] = dirty.get(i);
+        Arrays.sort(buckets);
+        return buckets;
+    }
+
+    // Identifies a bucket's contents as of now, for a checkpoint written in the background
+    int getChangeCount(int bucket) {
+        return changes.getOrDefault(bucket, 0);
+    }
+
+    // After a bucket file written with the contents of the given change count reached disk
+    void markSaved(int bucket, int changeCount) {
+        savedChanges.put(bucket, changeCount);
+    }
+}
@@ -0,0 +1,509 @@
+package com.example.photosandroid.model;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of photo ids, as stored for one tag in the {@link TagIndex}.
+ *
+ * Ids are split by their upper 16 bits into chunks of 65536. A chunk holding few ids
+ * stores them as a sorted array of their lower 16 bits; once it holds more than
+ * {@link #ARRAY_MAX} it switches to a 65536-bit bitmap, which is then the smaller form.
+ * Set operations work chunk by chunk and pick the cheapest algorithm for each pair of
+ * chunk kinds, so common tags are combined with word-wide bit operations and rare tags
+ * cost little more than their own size.
+ *
+ * Lists returned by the index must be treated as read-only; {@link #and}, {@link #or}
+ * and {@link #andNot} always return new lists.
+ */
+public final class PostingList {
+    /** Largest chunk kept as a sorted array. */
+    static final int ARRAY_MAX = 4096;
+    private static final PostingList EMPTY = new PostingList();
+
+    private char[] keys = new char[0];             // upper 16 bits of each chunk, ascending
+    private Container[] containers = new Container[0];
+    private int chunkCount;
+    private int size;
+
+    PostingList() {
+    }
+
+    public static PostingList empty() {
+        return EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(int id) {
+        int i = chunkIndex((char) (id >>> 16));
+        return i >= 0 && containers[i].contains((char) id);
+    }
+
+    /**
+     * Calls the action for every id, in ascending order.
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < chunkCount; i++) {
+            containers[i].forEach(keys[i] << 16, action);
+        }
+    }
+
+    /**
+     * @return the ids in ascending order
+     */
+    public int[] toArray() {
+        int[] out = new int[size];
+        int n = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            n = containers[i].copyTo(keys[i] << 16, out, n);
+        }
+        return out;
+    }
+
+    /**
+     * @return false if the id was already present
+     */
+    boolean add(int id) {
+        char key = (char) (id >>> 16);
+        int i = chunkIndex(key);
+        if (i < 0) {
+            i = -i - 1;
+            insertChunk(i, key, new ArrayContainer());
+        }
+        if (containers[i].contains((char) id)) return false;
+        containers[i] = writable(i).add((char) id);
+        size++;
+        return true;
+    }
+
+    /**
+     * @return false if the id was not present
+     */
+    boolean remove(int id) {
+        int i = chunkIndex((char) (id >>> 16));
+        if (i < 0 || !containers[i].contains((char) id)) return false;
+        Container c = writable(i).remove((char) id);
+        size--;
+        if (c.cardinality() == 0) {
+            System.arraycopy(keys, i + 1, keys, i, chunkCount - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, chunkCount - i - 1);
+            containers[--chunkCount] = null;
+        } else {
+            containers[i] = c;
+        }
+        return true;
+    }
+
+    /**
+     * A read-only copy of the list as it is now, for reading on another thread while this
+     * list goes on changing. The two share their chunks until this list next changes one,
+     * which it then copies first, so taking a snapshot costs a copy of the chunk table.
+     */
+    PostingList snapshot() {
+        PostingList copy = new PostingList();
+        copy.keys = Arrays.copyOf(keys, chunkCount);
+        copy.containers = Arrays.copyOf(containers, chunkCount);
+        copy.chunkCount = chunkCount;
+        copy.size = size;
+        for (int i = 0; i < chunkCount; i++) {
+            containers[i].shared = true;
+        }
+        return copy;
+    }
+
+    // The container of chunk i, copied first if a snapshot shares it
+    private Container writable(int i) {
+        Container c = containers[i];
+        if (c.shared) {
+            c = c.copy();
+            containers[i] = c;
+        }
+        return c;
+    }
+
+    /**
+     * Ids present in both lists.
+     */
+    public static PostingList and(PostingList a, PostingList b) {
+        PostingList out = new PostingList();
+        int i = 0, j = 0;
+        while (i < a.chunkCount && j < b.chunkCount) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                out.append(a.keys[i], a.containers[i].and(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Ids present in either list.
+     */
+    public static PostingList or(PostingList a, PostingList b) {
+        PostingList out = new PostingList();
+        int i = 0, j = 0;
+        while (i < a.chunkCount || j < b.chunkCount) {
+            if (j == b.chunkCount || (i < a.chunkCount && a.keys[i] < b.keys[j])) {
+                out.append(a.keys[i], a.containers[i].copy());
+                i++;
+            } else if (i == a.chunkCount || a.keys[i] > b.keys[j]) {
+                out.append(b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                out.append(a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Ids present in {@code a} but not in {@code b}.
+     */
+    public static PostingList andNot(PostingList a, PostingList b) {
+        PostingList out = new PostingList();
+        int j = 0;
+        for (int i = 0; i < a.chunkCount; i++) {
+            while (j < b.chunkCount && b.keys[j] < a.keys[i]) j++;
+            if (j < b.chunkCount && b.keys[j] == a.keys[i]) {
+                out.append(a.keys[i], a.containers[i].andNot(b.containers[j]));
+            } else {
+                out.append(a.keys[i], a.containers[i].copy());
+            }
+        }
+        return out;
+    }
+
+    private int chunkIndex(char key) {
+        return Arrays.binarySearch(keys, 0, chunkCount, key);
+    }
+
+    private void insertChunk(int i, char key, Container c) {
+        if (chunkCount == keys.length) {
+            int capacity = Math.max(4, chunkCount * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            containers = Arrays.copyOf(containers, capacity);
+        }
+        System.arraycopy(keys, i, keys, i + 1, chunkCount - i);
+        System.arraycopy(containers, i, containers, i + 1, chunkCount - i);
+        keys[i] = key;
+        containers[i] = c;
+        chunkCount++;
+    }
+
+    // Adds a chunk past the last one, skipping empty results
+    private void append(char key, Container c) {
+        int n = c.cardinality();
+        if (n == 0) return;
+        insertChunk(chunkCount, key, c);
+        size += n;
+    }
+
+    /**
+     * The ids of one chunk, as their lower 16 bits. add and remove may return a
+     * container of the other kind; the set operations never modify their inputs.
+     */
+    private abstract static class Container {
+        boolean shared; // also in a snapshot; copied before it is changed
+
+        abstract int cardinality();
+        abstract boolean contains(char x);
+        abstract Container add(char x);
+        abstract Container remove(char x);
+        abstract Container and(Container other);
+        abstract Container or(Container other);
+        abstract Container andNot(Container other);
+        abstract Container copy();
+        abstract void forEach(int high, IntConsumer action);
+        abstract int copyTo(int high, int[] out, int n);
+    }
+
+    private static final class ArrayContainer extends Container {
+        char[] values;
+        int n;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int n) {
+            this.values = values;
+            this.n = n;
+        }
+
+        @Override
+        int cardinality() {
+            return n;
+        }
+
+        @Override
+        boolean contains(char x) {
+            return Arrays.binarySearch(values, 0, n, x) >= 0;
+        }
+
+        @Override
+        Container add(char x) {
+            if (n == ARRAY_MAX) {
+                return toBitmap().add(x);
+            }
+            int pos = n == 0 || values[n - 1] < x ? n : -Arrays.binarySearch(values, 0, n, x) - 1;
+            if (n == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, n * 2)));
+            }
+            System.arraycopy(values, pos, values, pos + 1, n - pos);
+            values[pos] = x;
+            n++;
+            return this;
+        }
+
+        @Override
+        Container remove(char x) {
+            int pos = Arrays.binarySearch(values, 0, n, x);
+            System.arraycopy(values, pos + 1, values, pos, n - pos - 1);
+            n--;
+            return this;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] out = new char[n];
+            int k = 0;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer b = (ArrayContainer) other;
+                int i = 0, j = 0;
+                while (i < n && j < b.n) {
+                    if (values[i] < b.values[j]) i++;
+                    else if (values[i] > b.values[j]) j++;
+                    else {
+                        out[k++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    if (other.contains(values[i])) out[k++] = values[i];
+                }
+            }
+            return new ArrayContainer(out, k);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            ArrayContainer b = (ArrayContainer) other;
+            char[] out = new char[n + b.n];
+            int i = 0, j = 0, k = 0;
+            while (i < n && j < b.n) {
+                if (values[i] < b.values[j]) out[k++] = values[i++];
+                else if (values[i] > b.values[j]) out[k++] = b.values[j++];
+                else {
+                    out[k++] = values[i++];
+                    j++;
+                }
+            }
+            while (i < n) out[k++] = values[i++];
+            while (j < b.n) out[k++] = b.values[j++];
+            ArrayContainer result = new ArrayContainer(out, k);
+            return k > ARRAY_MAX ? result.toBitmap() : result;
+        }
+
+        @Override
+        Container andNot(Container other) {
+            char[] out = new char[n];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                if (!other.contains(values[i])) out[k++] = values[i];
+            }
+            return new ArrayContainer(out, k);
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, n), n);
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < n; i++) action.accept(high | values[i]);
+        }
+
+        @Override
+        int copyTo(int high, int[] out, int k) {
+            for (int i = 0; i < n; i++) out[k++] = high | values[i];
+            return k;
+        }
+
+        BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < n; i++) {
+                bitmap.words[values[i] >>> 6] |= 1L << values[i];
+            }
+            bitmap.n = n;
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        final long[] words;
+        int n;
+
+        BitmapContainer() {
+            this(new long[1024], 0);
+        }
+
+        BitmapContainer(long[] words, int n) {
+            this.words = words;
+            this.n = n;
+        }
+
+        @Override
+        int cardinality() {
+            return n;
+        }
+
+        @Override
+        boolean contains(char x) {
+            return (words[x >>> 6] & (1L << x)) != 0;
+        }
+
+        @Override
+        Container add(char x) {
+            words[x >>> 6] |= 1L << x;
+            n++;
+            return this;
+        }
+
+        @Override
+        Container remove(char x) {
+            words[x >>> 6] &= ~(1L << x);
+            n--;
+            return n <= ARRAY_MAX ? toArray() : this;
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] b = ((BitmapContainer) other).words;
+            long[] out = new long[1024];
+            int count = 0;
+            for (int w = 0; w < 1024; w++) {
+                out[w] = words[w] & b[w];
+                count += Long.bitCount(out[w]);
+            }
+            return shrink(new BitmapContainer(out, count));
+        }
+
+        @Override
+        Container or(Container other) {
+            long[] out = words.clone();
+            int count = n;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer b = (ArrayContainer) other;
+                for (int i = 0; i < b.n; i++) {
+                    char x = b.values[i];
+                    long bit = 1L << x;
+                    if ((out[x >>> 6] & bit) == 0) {
+                        out[x >>> 6] |= bit;
+                        count++;
+                    }
+                }
+            } else {
+                long[] b = ((BitmapContainer) other).words;
+                count = 0;
+                for (int w = 0; w < 1024; w++) {
+                    out[w] |= b[w];
+                    count += Long.bitCount(out[w]);
+                }
+            }
+            return new BitmapContainer(out, count);
+        }
+
+        @Override
+        Container andNot(Container other) {
+            long[] out = words.clone();
+            int count = n;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer b = (ArrayContainer) other;
+                for (int i = 0; i < b.n; i++) {
+                    char x = b.values[i];
+                    long bit = 1L << x;
+                    if ((out[x >>> 6] & bit) != 0) {
+                        out[x >>> 6] &= ~bit;
+                        count--;
+                    }
+                }
+            } else {
+                long[] b = ((BitmapContainer) other).words;
+                count = 0;
+                for (int w = 0; w < 1024; w++) {
+                    out[w] &= ~b[w];
+                    count += Long.bitCount(out[w]);
+                }
+            }
+            return shrink(new BitmapContainer(out, count));
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), n);
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int w = 0; w < 1024; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    action.accept(high | (w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        int copyTo(int high, int[] out, int k) {
+            for (int w = 0; w < 1024; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    out[k++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+            return k;
+        }
+
+        ArrayContainer toArray() {
+            char[] values = new char[n];
+            int k = 0;
+            for (int w = 0; w < 1024; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    values[k++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, k);
+        }
+
+        private static Container shrink(BitmapContainer c) {
+            return c.n <= ARRAY_MAX ? c.toArray() : c;
+        }
+    }
+}
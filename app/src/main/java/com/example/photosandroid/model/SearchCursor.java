@@ -0,0 +1,49 @@
+package com.example.photosandroid.model;
+
+/**
+ * The photos found by {@link AlbumRepository#search}, read a page at a time.
+ *
+ * The count is known as soon as the query has run. The cursor holds just the id of each
+ * matching photo; which albums a photo is in is only looked up for the pages that are
+ * read, so a broad query over a large library costs little until its results are
+ * scrolled through. Pages are read from the snapshot of the {@link TagIndex} the query
+ * ran on, so reading takes no lock and touches no {@link Album}: each photo is
+ * reported with the names of the albums it was in when the search ran.
+ */
+public final class SearchCursor {
+    private final TagIndex index; // a snapshot, never changed
+    private final int[] ids;
+
+    SearchCursor(TagIndex index, int[] ids) {
+        this.index = index;
+        this.ids = ids;
+    }
+
+    /**
+     * @return the number of matching photos
+     */
+    public int getCount() {
+        return ids.length;
+    }
+
+    /**
+     * @return the matching photo at the given position, without its albums
+     */
+    public Photo getPhoto(int position) {
+        return index.getPhoto(ids[position]);
+    }
+
+    /**
+     * Passes the matches from position {@code start} on, at most {@code count} of them,
+     * to the collector, each with the names of the albums containing it. Meant for a
+     * background thread.
+     * @return the number of matches passed
+     */
+    public int read(int start, int count, AlbumRepository.MatchCollector collector) {
+        int end = Math.min(ids.length, start + count);
+        for (int i = start; i < end; i++) {
+            collector.onMatch(index.getPhoto(ids[i]), index.getAlbumNames(ids[i]));
+        }
+        return Math.max(0, end - start);
+    }
+}
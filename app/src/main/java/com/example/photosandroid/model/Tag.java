@@ -4,6 +4,8 @@ import java.io.Serializable;
 
 /**
  * Represents a tag on a photo, consisting of a tag name and a tag value.
+ * Photos keep their tags as {@link TagDictionary} ids and hand out the dictionary's
+ * Tag objects, so the same tag is usually the same object.
  */
 public class Tag implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -14,6 +16,9 @@ public class Tag implements Serializable {
     /** The tag value, e.g., "mom", "new york" */
     private String value;
 
+    /** Cached {@link #hashCode()}, 0 until first computed */
+    private transient int hash;
+
     /**
      * Constructs a Tag with the given name and value.
      * @param name the tag name (should be either "person" or "location")
@@ -68,6 +73,11 @@ public class Tag implements Serializable {
 
     @Override
     public int hashCode() {
-        return name.toLowerCase().hashCode() * 31 + value.toLowerCase().hashCode();
+        int h = hash;
+        if (h == 0) {
+            h = name.toLowerCase().hashCode() * 31 + value.toLowerCase().hashCode();
+            hash = h;
+        }
+        return h;
     }
 }
@@ -0,0 +1,200 @@
+package com.example.photosandroid.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Autocomplete for tag values: one prefix trie per tag name, counting how many photos
+ * carry each value, that returns the most used values starting with a prefix.
+ *
+ * Every trie node caches its {@link #MAX_SUGGESTIONS} most used values. Increments
+ * update those lists along the value's path; decrements discard the lists they may have
+ * made stale, which are rebuilt on the next lookup. Matching ignores case. The counts
+ * are stored in the manifest ({@link #counts}), so building this needs no photos, and
+ * {@link AlbumRepository} keeps it up to date. Lookups may run on a
+ * filtering thread while the main thread makes changes, so all methods are synchronized.
+ */
+public class TagCompletions {
+    /** Most values returned by {@link #complete}. */
+    public static final int MAX_SUGGESTIONS = 8;
+
+    private static final Comparator<Node> BY_USE = (a, b) -> a.count != b.count
+            ? Integer.compare(b.count, a.count)
+            : a.value.compareTo(b.value);
+
+    private final Map<String, Node> roots = new HashMap<>();
+
+    /**
+     * Values of the given tag starting with the prefix, most used first.
+     */
+    public synchronized List<String> complete(String tagName, String prefix) {
+        Node node = roots.get(normalize(tagName));
+        String key = normalize(prefix);
+        for (int i = 0; node != null && i < key.length(); i++) {
+            node = node.child(key.charAt(i), false);
+        }
+        if (node == null) return Collections.emptyList();
+
+        if (node.top == null) {
+            rebuildTop(node);
+        }
+        List<String> values = new ArrayList<>(node.topSize);
+        for (int i = 0; i < node.topSize; i++) {
+            values.add(node.top[i].value);
+        }
+        return values;
+    }
+
+    /**
+     * Adds {@code delta} (which may be negative) to the number of photos carrying a tag.
+     */
+    synchronized void add(String tagName, String tagValue, int delta) {
+        if (delta == 0) return;
+        String name = normalize(tagName);
+        Node root = roots.get(name);
+        if (root == null) {
+            root = new Node();
+            roots.put(name, root);
+        }
+
+        String key = normalize(tagValue);
+        Node[] path = new Node[key.length() + 1];
+        path[0] = root;
+        for (int i = 0; i < key.length(); i++) {
+            path[i + 1] = path[i].child(key.charAt(i), true);
+        }
+        Node terminal = path[key.length()];
+        terminal.value = tagValue;
+        terminal.count = Math.max(0, terminal.count + delta);
+
+        for (Node node : path) {
+            if (node.top == null) continue;
+            if (delta > 0) {
+                offer(node, terminal);
+            } else if (node.indexOf(terminal) >= 0) {
+                // Another value may now rank higher; rebuild on the next lookup
+                node.top = null;
+            }
+        }
+    }
+
+    /**
+     * Adds (sign 1) or removes (sign -1) a whole set of tag counts, such as an album's.
+     */
+    synchronized void addAll(Map<Tag, Integer> counts, int sign) {
+        for (Map.Entry<Tag, Integer> entry : counts.entrySet()) {
+            add(entry.getKey().getName(), entry.getKey().getValue(), sign * entry.getValue());
+        }
+    }
+
+    /**
+     * Adds or removes one photo's tags.
+     */
+    synchronized void addPhoto(Photo photo, int sign) {
+        for (Tag tag : photo.getTags()) {
+            add(tag.getName(), tag.getValue(), sign);
+        }
+    }
+
+    /**
+     * Every value in use with its count, for storing in the manifest.
+     */
+    synchronized Map<Tag, Integer> counts() {
+        Map<Tag, Integer> counts = new HashMap<>();
+        List<Node> values = new ArrayList<>();
+        for (Map.Entry<String, Node> root : roots.entrySet()) {
+            values.clear();
+            collect(root.getValue(), values);
+            for (Node node : values) {
+                counts.put(new Tag(root.getKey(), node.value), node.count);
+            }
+        }
+        return counts;
+    }
+
+    // Brings a value whose count went up into a node's cached list
+    private static void offer(Node node, Node terminal) {
+        int pos = node.indexOf(terminal);
+        if (pos < 0) {
+            if (node.topSize < MAX_SUGGESTIONS) {
+                pos = node.topSize++;
+            } else if (BY_USE.compare(terminal, node.top[MAX_SUGGESTIONS - 1]) < 0) {
+                pos = MAX_SUGGESTIONS - 1;
+            } else {
+                return;
+            }
+            node.top[pos] = terminal;
+        }
+        // Move it up past values that are now used less
+        while (pos > 0 && BY_USE.compare(node.top[pos], node.top[pos - 1]) < 0) {
+            Node t = node.top[pos];
+            node.top[pos] = node.top[pos - 1];
+            node.top[pos - 1] = t;
+            pos--;
+        }
+    }
+
+    private static void rebuildTop(Node node) {
+        List<Node> values = new ArrayList<>();
+        collect(node, values);
+        values.sort(BY_USE);
+        node.top = new Node[MAX_SUGGESTIONS];
+        node.topSize = Math.min(MAX_SUGGESTIONS, values.size());
+        for (int i = 0; i < node.topSize; i++) {
+            node.top[i] = values.get(i);
+        }
+    }
+
+    private static void collect(Node node, List<Node> out) {
+        if (node.count > 0) out.add(node);
+        for (int i = 0; i < node.childCount; i++) {
+            collect(node.children[i], out);
+        }
+    }
+
+    private static String normalize(String s) {
+        return s.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        int childCount;
+
+        // Set when a value ends here; a count of 0 means no photo uses it any more
+        String value;
+        int count;
+
+        // Most used values in this subtree, best first; null when it must be rebuilt
+        Node[] top;
+        int topSize;
+
+        Node child(char c, boolean create) {
+            for (int i = 0; i < childCount; i++) {
+                if (keys[i] == c) return children[i];
+            }
+            if (!create) return null;
+            if (childCount == keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(2, childCount * 2));
+                children = Arrays.copyOf(children, keys.length);
+            }
+            Node node = new Node();
+            keys[childCount] = c;
+            children[childCount++] = node;
+            return node;
+        }
+
+        int indexOf(Node terminal) {
+            for (int i = 0; i < topSize; i++) {
+                if (top[i] == terminal) return i;
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.photosandroid.model;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Gives every distinct tag (name and value, ignoring case) a small int id, so that
+ * photos can store their tags as sorted id arrays (see {@link Photo}) and compare them
+ * without touching strings.
+ *
+ * Each tag is normalized once, when it is first seen; later lookups compare the given
+ * strings case-insensitively in place and allocate nothing. Ids are assigned for the
+ * life of the process and never reused. Photos are decoded on background threads while
+ * the main thread reads tags, so lookups take no lock: the maps are concurrent and the
+ * tag array is published through a volatile field after each new tag is stored. Only
+ * {@link #intern} is synchronized, as the single writer.
+ */
+public final class TagDictionary {
+    // name -> value -> id, both compared ignoring case
+    private static final ConcurrentNavigableMap<String, ConcurrentNavigableMap<String, Integer>> ids =
+            new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    // Written only by intern, and reassigned after every store so readers see the tag
+    private static volatile Tag[] tags = new Tag[64];
+    private static int count; // guarded by the class lock
+
+    private TagDictionary() {
+    }
+
+    /**
+     * Returns the id of a tag, assigning one if the tag is new.
+     */
+    static synchronized int intern(String tagName, String tagValue) {
+        int id = find(tagName, tagValue);
+        if (id >= 0) {
+            return id;
+        }
+        Tag tag = new Tag(tagName.toLowerCase(), tagValue.toLowerCase());
+        ConcurrentNavigableMap<String, Integer> values = ids.get(tag.getName());
+        if (values == null) {
+            values = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+            ids.put(tag.getName(), values);
+        }
+        // The tag trims what it is given, so the normalized pair may be known already
+        Integer existing = values.get(tag.getValue());
+        if (existing != null) {
+            return existing;
+        }
+        Tag[] array = tags;
+        if (count == array.length) {
+            array = Arrays.copyOf(array, count * 2);
+        }
+        array[count] = tag;
+        tags = array;
+        // The id becomes visible only once its tag can be read
+        values.put(tag.getValue(), count);
+        return count++;
+    }
+
+    /**
+     * @return the id of the tag, or -1 if no photo has ever had it
+     */
+    static int find(String tagName, String tagValue) {
+        ConcurrentNavigableMap<String, Integer> values = ids.get(tagName);
+        if (values == null) return -1;
+        Integer id = values.get(tagValue);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * @return the normalized tag with the given id
+     */
+    static Tag get(int id) {
+        return tags[id];
+    }
+}
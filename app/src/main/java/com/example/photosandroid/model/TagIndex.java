@@ -0,0 +1,331 @@
+package com.example.photosandroid.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index from (tag name, tag value) to the photos carrying that tag.
+ *
+ * Every indexed photo gets a small integer id, and each tag maps to a compressed
+ * {@link PostingList} of ids, kept in an array by {@link TagDictionary} id, so a tag
+ * lookup is a dictionary lookup and AND/OR queries are
+ * set intersections and unions. The ids of all photos and of each album's photos are
+ * kept as posting lists too, for negation and album scoping (see {@link TagQuery}), and
+ * the ids of all photos are sorted by date in a {@link TimeIndex} for date ranges.
+ * A photo in several albums (see {@link PhotoRegistry}) is indexed once, under one id,
+ * and is in the posting list of each of those albums.
+ * Names and values are matched case-insensitively, like {@link Photo#hasTag}. The index
+ * covers the photos of every registry bucket read so far (see {@link PhotoRegistry}),
+ * whether their albums are loaded or not; it is kept up to date by {@link AlbumRepository}, which calls the package-private update
+ * methods whenever photos or tags change. Queries running off the main thread read a
+ * {@link #snapshot} instead.
+ */
+public class TagIndex {
+    // Indexed by tag id; null where no indexed photo has the tag
+    private PostingList[] postings = new PostingList[64];
+    private final PostingList allPhotos;
+    private final Map<Album, PostingList> albumPhotos;
+    private final TimeIndex timeIndex;
+    // Indexed by photo id; id 0 means "not indexed"
+    private Photo[] photos = new Photo[64];
+    private int[] albumCounts = new int[64]; // indexed albums containing each photo
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId = 1;
+    private int photoCount;
+    private TagIndex snapshot; // handed out until the index next changes
+    private Map<Album, String> albumNames; // in a snapshot, the names of its albums when taken
+
+    public TagIndex() {
+        this(new PostingList(), new HashMap<>(), new TimeIndex());
+    }
+
+    private TagIndex(PostingList allPhotos, Map<Album, PostingList> albumPhotos, TimeIndex timeIndex) {
+        this.allPhotos = allPhotos;
+        this.albumPhotos = albumPhotos;
+        this.timeIndex = timeIndex;
+    }
+
+    /**
+     * Photos carrying the given tag.
+     * @return a read-only list of photo ids, empty if no photo has the tag
+     */
+    public PostingList find(String tagName, String tagValue) {
+        int tagId = TagDictionary.find(tagName, tagValue);
+        PostingList list = tagId >= 0 && tagId < postings.length ? postings[tagId] : null;
+        return list != null ? list : PostingList.empty();
+    }
+
+    /**
+     * Every indexed photo.
+     * @return a read-only list of photo ids
+     */
+    public PostingList findAll() {
+        return allPhotos;
+    }
+
+    /**
+     * Photos of the albums with the given name (ignoring case).
+     * @return a read-only list of photo ids, empty if no such album is indexed
+     */
+    public PostingList findAlbum(String albumName) {
+        PostingList result = PostingList.empty();
+        for (Map.Entry<Album, PostingList> entry : albumPhotos.entrySet()) {
+            if (nameOf(entry.getKey()).equalsIgnoreCase(albumName)) {
+                result = result.isEmpty() ? entry.getValue() : PostingList.or(result, entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Photos dated from {@code from} (inclusive) to {@code to} (exclusive).
+     * @return a list of photo ids
+     */
+    public PostingList findDates(long from, long to) {
+        return timeIndex.find(from, to);
+    }
+
+    /**
+     * The indexed photos by date, for counts per period and timelines.
+     */
+    public TimeIndex getTimeIndex() {
+        return timeIndex;
+    }
+
+    /**
+     * @return the photo with the given id, or null if the id is not in use
+     */
+    public Photo getPhoto(int id) {
+        return id < photos.length ? photos[id] : null;
+    }
+
+    /**
+     * @return the indexed albums containing the photo with the given id, empty if the id is not in use
+     */
+    public List<Album> getAlbums(int id) {
+        List<Album> result = new ArrayList<>();
+        if (getPhoto(id) == null) return result;
+        for (Map.Entry<Album, PostingList> entry : albumPhotos.entrySet()) {
+            if (entry.getValue().contains(id)) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the names of the albums containing the photo with the given id, as they
+     * were when a snapshot was taken; empty if the id is not in use
+     */
+    List<String> getAlbumNames(int id) {
+        List<String> result = new ArrayList<>();
+        for (Album album : getAlbums(id)) {
+            result.add(nameOf(album));
+        }
+        return result;
+    }
+
+    private String nameOf(Album album) {
+        return albumNames != null ? albumNames.get(album) : album.getName();
+    }
+
+    /**
+     * @return the number of indexed photos
+     */
+    public int size() {
+        return photoCount;
+    }
+
+    /**
+     * A read-only copy of the index as it is now, for running queries on another thread
+     * while this one goes on changing. Posting lists share their chunks with this index
+     * until it changes them (see {@link PostingList#snapshot}), and album names are copied,
+     * so a query on another thread reads nothing the main thread changes. The same copy
+     * is handed out again until the index changes, so taking one between edits costs nothing.
+     */
+    TagIndex snapshot() {
+        if (snapshot == null) {
+            Map<Album, PostingList> albums = new HashMap<>();
+            Map<Album, String> names = new HashMap<>();
+            for (Map.Entry<Album, PostingList> entry : albumPhotos.entrySet()) {
+                albums.put(entry.getKey(), entry.getValue().snapshot());
+                names.put(entry.getKey(), entry.getKey().getName());
+            }
+            TagIndex copy = new TagIndex(allPhotos.snapshot(), albums, timeIndex.snapshot());
+            copy.albumNames = names;
+            copy.postings = new PostingList[postings.length];
+            for (int i = 0; i < postings.length; i++) {
+                if (postings[i] != null) copy.postings[i] = postings[i].snapshot();
+            }
+            copy.photos = Arrays.copyOf(photos, nextId);
+            copy.albumCounts = Arrays.copyOf(albumCounts, nextId);
+            copy.nextId = nextId;
+            copy.photoCount = photoCount;
+            copy.snapshot = copy;
+            snapshot = copy;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Indexes registered photos under the albums containing them, found by album id;
+     * for building the index once the registry is read.
+     */
+    void addPhotos(Collection<Photo> photos, Map<Integer, Album> albumsById) {
+        for (Photo photo : photos) {
+            for (int albumId : photo.albumIds) {
+                Album album = albumsById.get(albumId);
+                if (album != null) addPhoto(album, photo);
+            }
+        }
+    }
+
+    void addAlbum(Album album) {
+        for (Photo photo : album.getPhotos()) {
+            addPhoto(album, photo);
+        }
+    }
+
+    /**
+     * Drops an album from the index, and its photos except those still in other albums.
+     * Goes by the album's posting list, so the album need not be loaded.
+     */
+    void removeAlbum(Album album) {
+        PostingList list = albumPhotos.get(album);
+        if (list == null) return;
+        for (int id : list.toArray()) {
+            removePhoto(album, photos[id]);
+        }
+    }
+
+    void addPhoto(Album album, Photo photo) {
+        snapshot = null;
+        int id = photo.indexId;
+        if (id == 0) {
+            id = allocateId();
+            photos[id] = photo;
+            photo.indexId = id;
+            photoCount++;
+            allPhotos.add(id);
+            timeIndex.add(id, photo.getDateMillis());
+            for (int tagId : photo.getTagIds()) {
+                posting(tagId).add(id);
+            }
+        }
+        if (albumList(album).add(id)) {
+            albumCounts[id]++;
+        }
+    }
+
+    /**
+     * Takes a photo out of an album; it leaves the index with its last indexed album.
+     */
+    void removePhoto(Album album, Photo photo) {
+        snapshot = null;
+        int id = photo.indexId;
+        if (id == 0 || !removeFromAlbumList(album, id) || --albumCounts[id] > 0) return;
+        for (int tagId : photo.getTagIds()) {
+            removeFromPosting(tagId, id);
+        }
+        allPhotos.remove(id);
+        timeIndex.remove(id, photo.getDateMillis());
+        photos[id] = null;
+        photo.indexId = 0;
+        photoCount--;
+        releaseId(id);
+    }
+
+    void movePhoto(Photo photo, Album from, Album to) {
+        addPhoto(to, photo);
+        removePhoto(from, photo);
+    }
+
+    /**
+     * @return the number of indexed albums containing the photo
+     */
+    int albumCount(Photo photo) {
+        return photo.indexId != 0 ? albumCounts[photo.indexId] : 0;
+    }
+
+    /**
+     * Call after the tag has been added to the photo.
+     */
+    void addTag(Photo photo, String tagName, String tagValue) {
+        snapshot = null;
+        if (photo.indexId != 0) {
+            posting(TagDictionary.intern(tagName, tagValue)).add(photo.indexId);
+        }
+    }
+
+    /**
+     * Call after the tag has been removed from the photo.
+     */
+    void removeTag(Photo photo, String tagName, String tagValue) {
+        snapshot = null;
+        int tagId = TagDictionary.find(tagName, tagValue);
+        if (photo.indexId == 0 || tagId < 0 || photo.hasTag(tagId)) return;
+        removeFromPosting(tagId, photo.indexId);
+    }
+
+    private PostingList posting(int tagId) {
+        if (tagId >= postings.length) {
+            postings = Arrays.copyOf(postings, Math.max(tagId + 1, postings.length * 2));
+        }
+        PostingList list = postings[tagId];
+        if (list == null) {
+            list = new PostingList();
+            postings[tagId] = list;
+        }
+        return list;
+    }
+
+    private void removeFromPosting(int tagId, int id) {
+        PostingList list = tagId < postings.length ? postings[tagId] : null;
+        if (list != null && list.remove(id) && list.isEmpty()) {
+            postings[tagId] = null;
+        }
+    }
+
+    private PostingList albumList(Album album) {
+        PostingList list = albumPhotos.get(album);
+        if (list == null) {
+            list = new PostingList();
+            albumPhotos.put(album, list);
+        }
+        return list;
+    }
+
+    private boolean removeFromAlbumList(Album album, int id) {
+        PostingList list = albumPhotos.get(album);
+        if (list == null || !list.remove(id)) return false;
+        if (list.isEmpty()) {
+            albumPhotos.remove(album);
+        }
+        return true;
+    }
+
+    // Reuses freed ids so the id space, and with it the posting lists, stay dense
+    private int allocateId() {
+        if (freeCount > 0) {
+            return freeIds[--freeCount];
+        }
+        int id = nextId++;
+        if (id == photos.length) {
+            photos = Arrays.copyOf(photos, id * 2);
+            albumCounts = Arrays.copyOf(albumCounts, id * 2);
+        }
+        return id;
+    }
+
+    private void releaseId(int id) {
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+}
@@ -0,0 +1,491 @@
+package com.example.photosandroid.model;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A boolean photo query over tags and dates, evaluated against a {@link TagIndex}.
+ * <pre>
+ *   query     := or
+ *   or        := and ("OR" and)*
+ *   and       := unary (["AND"] unary)*        adjacent terms are ANDed
+ *   unary     := "NOT" unary | "(" or ")" | predicate
+ *   predicate := name ("=" | ":") value        e.g. person=mom, location:"new york"
+ *              | "album" ("=" | ":") value     photos of the named album
+ *              | "date" ("=" | ":") dates      e.g. date=2024-05, date:2023..2024-06-30
+ *   dates     := day | day ".." | ".." day | day ".." day
+ *   day       := yyyy | yyyy-mm | yyyy-mm-dd   the whole year, month or day
+ * </pre>
+ * Keywords and names are case-insensitive; values containing spaces or operator
+ * characters are written in double quotes. Dates are in the default time zone, and a
+ * range includes the whole of its last day, month or year.
+ *
+ * Parsing produces a plan in which nested ANDs and ORs are flattened. When it runs,
+ * the operands of each AND are ordered by their estimated result size, so the
+ * intersection starts from the most selective one and stops as soon as it is empty.
+ * Negated operands of an AND are subtracted at the end instead of being complemented.
+ */
+public class TagQuery {
+    private final Node root;
+
+    private TagQuery(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Parses a query typed by the user.
+     * @throws ParseException with the offending position if the text is not a valid query
+     */
+    public static TagQuery parse(String text) throws ParseException {
+        Parser parser = new Parser(text);
+        Node root = parser.parseOr();
+        if (parser.peek().type != TokenType.END) {
+            throw parser.error("Unexpected '" + parser.peek().text + "'");
+        }
+        return new TagQuery(root);
+    }
+
+    /**
+     * A query for photos carrying one tag.
+     */
+    public static TagQuery tag(String name, String value) {
+        return new TagQuery(new Term(name, value));
+    }
+
+    /**
+     * A query for photos dated from {@code from} (inclusive) to {@code to} (exclusive).
+     */
+    public static TagQuery between(long from, long to) {
+        return new TagQuery(new DateRange(null, from, to));
+    }
+
+    public static TagQuery and(TagQuery a, TagQuery b) {
+        return new TagQuery(Group.of(true, a.root, b.root));
+    }
+
+    public static TagQuery or(TagQuery a, TagQuery b) {
+        return new TagQuery(Group.of(false, a.root, b.root));
+    }
+
+    /**
+     * Runs the query.
+     * @return ids of the matching photos (see {@link TagIndex#getPhoto})
+     */
+    public PostingList execute(TagIndex index) {
+        return root.evaluate(index);
+    }
+
+    /**
+     * Checks a single photo against the query without an index.
+     */
+    public boolean matches(Photo photo, Album album) {
+        return root.matches(photo, album);
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    private abstract static class Node {
+        abstract PostingList evaluate(TagIndex index);
+
+        abstract boolean matches(Photo photo, Album album);
+
+        /** Estimated number of matching photos, used to order intersections. */
+        abstract int estimate(TagIndex index);
+    }
+
+    private static final class Term extends Node {
+        final String name;
+        final String value;
+
+        Term(String name, String value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        PostingList evaluate(TagIndex index) {
+            return index.find(name, value);
+        }
+
+        @Override
+        boolean matches(Photo photo, Album album) {
+            return photo.hasTag(name, value);
+        }
+
+        @Override
+        int estimate(TagIndex index) {
+            return index.find(name, value).size();
+        }
+
+        @Override
+        public String toString() {
+            return name + "=\"" + value + '"';
+        }
+    }
+
+    private static final class AlbumScope extends Node {
+        final String albumName;
+
+        AlbumScope(String albumName) {
+            this.albumName = albumName;
+        }
+
+        @Override
+        PostingList evaluate(TagIndex index) {
+            return index.findAlbum(albumName);
+        }
+
+        @Override
+        boolean matches(Photo photo, Album album) {
+            return album.getName().equalsIgnoreCase(albumName);
+        }
+
+        @Override
+        int estimate(TagIndex index) {
+            return index.findAlbum(albumName).size();
+        }
+
+        @Override
+        public String toString() {
+            return "album=\"" + albumName + '"';
+        }
+    }
+
+    private static final class DateRange extends Node {
+        final String text; // as written in the query, null if not parsed
+        final long from;
+        final long to;
+
+        DateRange(String text, long from, long to) {
+            this.text = text;
+            this.from = from;
+            this.to = to;
+        }
+
+        static DateRange parse(String text, int position) throws ParseException {
+            int dots = text.indexOf("..");
+            if (dots < 0) {
+                long[] period = period(text, position);
+                return new DateRange(text, period[0], period[1]);
+            }
+            String first = text.substring(0, dots);
+            String last = text.substring(dots + 2);
+            if (first.isEmpty() && last.isEmpty()) {
+                throw new ParseException("Expected a date before or after '..'", position);
+            }
+            long from = first.isEmpty() ? Long.MIN_VALUE : period(first, position)[0];
+            long to = last.isEmpty() ? Long.MAX_VALUE : period(last, position)[1];
+            return new DateRange(text, from, to);
+        }
+
+        // Start and end of the year, month or day written as yyyy, yyyy-mm or yyyy-mm-dd
+        private static long[] period(String text, int position) throws ParseException {
+            String[] parts = text.split("-", -1);
+            int[] values = {0, 1, 1};
+            try {
+                if (parts.length > 3 || parts[0].length() != 4) throw new NumberFormatException();
+                for (int i = 0; i < parts.length; i++) {
+                    values[i] = Integer.parseInt(parts[i]);
+                }
+                Calendar calendar = Calendar.getInstance();
+                calendar.clear();
+                calendar.setLenient(false);
+                calendar.set(values[0], values[1] - 1, values[2]);
+                long start = calendar.getTimeInMillis();
+                calendar.add(parts.length == 1 ? Calendar.YEAR
+                        : parts.length == 2 ? Calendar.MONTH : Calendar.DAY_OF_MONTH, 1);
+                return new long[]{start, calendar.getTimeInMillis()};
+            } catch (IllegalArgumentException e) {
+                // Also catches NumberFormatException
+                throw new ParseException("Expected a date like 2024-05-17, found '" + text + "'", position);
+            }
+        }
+
+        @Override
+        PostingList evaluate(TagIndex index) {
+            return index.findDates(from, to);
+        }
+
+        @Override
+        boolean matches(Photo photo, Album album) {
+            long date = photo.getDateMillis();
+            return date >= from && date < to;
+        }
+
+        @Override
+        int estimate(TagIndex index) {
+            return index.getTimeIndex().count(from, to);
+        }
+
+        @Override
+        public String toString() {
+            return text != null ? "date=\"" + text + '"' : "date=" + from + ".." + to;
+        }
+    }
+
+    private static final class Not extends Node {
+        final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        PostingList evaluate(TagIndex index) {
+            return PostingList.andNot(index.findAll(), operand.evaluate(index));
+        }
+
+        @Override
+        boolean matches(Photo photo, Album album) {
+            return !operand.matches(photo, album);
+        }
+
+        @Override
+        int estimate(TagIndex index) {
+            return index.size() - operand.estimate(index);
+        }
+
+        @Override
+        public String toString() {
+            return "NOT " + operand;
+        }
+    }
+
+    /**
+     * AND or OR over any number of operands.
+     */
+    private static final class Group extends Node {
+        final boolean and;
+        final List<Node> operands;
+
+        private Group(boolean and, List<Node> operands) {
+            this.and = and;
+            this.operands = operands;
+        }
+
+        // Pulls the operands of nested groups of the same kind up into one group
+        static Node of(boolean and, Node... nodes) {
+            List<Node> operands = new ArrayList<>();
+            for (Node node : nodes) {
+                if (node instanceof Group && ((Group) node).and == and) {
+                    operands.addAll(((Group) node).operands);
+                } else {
+                    operands.add(node);
+                }
+            }
+            return operands.size() == 1 ? operands.get(0) : new Group(and, operands);
+        }
+
+        @Override
+        PostingList evaluate(TagIndex index) {
+            return and ? intersect(index) : union(index);
+        }
+
+        private PostingList intersect(TagIndex index) {
+            List<Node> include = new ArrayList<>();
+            List<Node> exclude = new ArrayList<>();
+            for (Node node : operands) {
+                if (node instanceof Not) exclude.add(((Not) node).operand);
+                else include.add(node);
+            }
+
+            // Most selective first; estimates are cheap, they read posting list sizes
+            int[] estimates = new int[include.size()];
+            Integer[] order = new Integer[include.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+                estimates[i] = include.get(i).estimate(index);
+            }
+            Arrays.sort(order, Comparator.comparingInt(i -> estimates[i]));
+
+            PostingList result = include.isEmpty() ? index.findAll() : null;
+            for (int i : order) {
+                PostingList next = include.get(i).evaluate(index);
+                result = result == null ? next : PostingList.and(result, next);
+                if (result.isEmpty()) return result;
+            }
+            for (Node node : exclude) {
+                result = PostingList.andNot(result, node.evaluate(index));
+                if (result.isEmpty()) break;
+            }
+            return result;
+        }
+
+        private PostingList union(TagIndex index) {
+            PostingList result = PostingList.empty();
+            for (Node node : operands) {
+                result = PostingList.or(result, node.evaluate(index));
+            }
+            return result;
+        }
+
+        @Override
+        boolean matches(Photo photo, Album album) {
+            for (Node node : operands) {
+                if (node.matches(photo, album) != and) return !and;
+            }
+            return and;
+        }
+
+        @Override
+        int estimate(TagIndex index) {
+            if (and) {
+                int min = index.size();
+                for (Node node : operands) min = Math.min(min, node.estimate(index));
+                return min;
+            }
+            long sum = 0;
+            for (Node node : operands) sum += node.estimate(index);
+            return (int) Math.min(sum, index.size());
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("(");
+            for (int i = 0; i < operands.size(); i++) {
+                if (i > 0) sb.append(and ? " AND " : " OR ");
+                sb.append(operands.get(i));
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    private enum TokenType { WORD, QUOTED, EQUALS, OPEN, CLOSE, END }
+
+    private static final class Token {
+        final TokenType type;
+        final String text;
+        final int position;
+
+        Token(TokenType type, String text, int position) {
+            this.type = type;
+            this.text = text;
+            this.position = position;
+        }
+
+        boolean isKeyword(String keyword) {
+            return type == TokenType.WORD && text.equalsIgnoreCase(keyword);
+        }
+    }
+
+    /**
+     * Recursive-descent parser over the grammar in the class comment.
+     */
+    private static final class Parser {
+        private final List<Token> tokens;
+        private int next;
+
+        Parser(String text) throws ParseException {
+            tokens = tokenize(text);
+        }
+
+        Token peek() {
+            return tokens.get(next);
+        }
+
+        ParseException error(String message) {
+            return new ParseException(message, peek().position);
+        }
+
+        Node parseOr() throws ParseException {
+            Node node = parseAnd();
+            while (peek().isKeyword("OR")) {
+                next++;
+                node = Group.of(false, node, parseAnd());
+            }
+            return node;
+        }
+
+        Node parseAnd() throws ParseException {
+            Node node = parseUnary();
+            while (true) {
+                Token t = peek();
+                if (t.isKeyword("AND")) {
+                    next++;
+                } else if (t.type == TokenType.END || t.type == TokenType.CLOSE || t.isKeyword("OR")) {
+                    return node;
+                }
+                node = Group.of(true, node, parseUnary());
+            }
+        }
+
+        Node parseUnary() throws ParseException {
+            Token t = peek();
+            if (t.isKeyword("NOT")) {
+                next++;
+                return new Not(parseUnary());
+            }
+            if (t.type == TokenType.OPEN) {
+                next++;
+                Node node = parseOr();
+                if (peek().type != TokenType.CLOSE) {
+                    throw error("Missing ')'");
+                }
+                next++;
+                return node;
+            }
+            if (t.type != TokenType.WORD || t.isKeyword("AND") || t.isKeyword("OR")) {
+                throw error(t.type == TokenType.END ? "Incomplete query" : "Expected a tag, found '" + t.text + "'");
+            }
+            next++;
+            if (peek().type != TokenType.EQUALS) {
+                throw error("Expected '=' after '" + t.text + "'");
+            }
+            next++;
+            Token value = peek();
+            if (value.type != TokenType.WORD && value.type != TokenType.QUOTED) {
+                throw error("Expected a value for '" + t.text + "'");
+            }
+            next++;
+            String name = t.text.toLowerCase(Locale.ROOT);
+            if (name.equals("album")) {
+                return new AlbumScope(value.text);
+            }
+            if (name.equals("date")) {
+                return DateRange.parse(value.text, value.position);
+            }
+            return new Term(name, value.text);
+        }
+
+        private static List<Token> tokenize(String text) throws ParseException {
+            List<Token> tokens = new ArrayList<>();
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(new Token(c == '(' ? TokenType.OPEN : TokenType.CLOSE, String.valueOf(c), i));
+                    i++;
+                } else if (c == '=' || c == ':') {
+                    tokens.add(new Token(TokenType.EQUALS, String.valueOf(c), i));
+                    i++;
+                } else if (c == '"') {
+                    int end = text.indexOf('"', i + 1);
+                    if (end < 0) {
+                        throw new ParseException("Unterminated quote", i);
+                    }
+                    tokens.add(new Token(TokenType.QUOTED, text.substring(i + 1, end), i));
+                    i = end + 1;
+                } else {
+                    int start = i;
+                    while (i < text.length() && !Character.isWhitespace(text.charAt(i))
+                            && "()=:\"".indexOf(text.charAt(i)) < 0) {
+                        i++;
+                    }
+                    tokens.add(new Token(TokenType.WORD, text.substring(start, i), start));
+                }
+            }
+            tokens.add(new Token(TokenType.END, "", text.length()));
+            return tokens;
+        }
+    }
+}
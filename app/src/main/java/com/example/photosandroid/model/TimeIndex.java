@@ -0,0 +1,236 @@
+package com.example.photosandroid.model;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The photo ids of a {@link TagIndex} in order of photo date, for date ranges and timelines.
+ *
+ * Dates and ids are kept in parallel arrays sorted by date, so both ends of a range are
+ * found by binary search: counting the photos in a range, or in each month of a
+ * timeline, costs two searches however many photos there are. Photos added since the
+ * last query wait in an unsorted tail and removed ones leave a hole; the next query
+ * settles both, inserting a short tail in place and sorting and merging a long one,
+ * such as a whole album that was just loaded. Maintained by {@link TagIndex}.
+ */
+public class TimeIndex {
+    // Longest tail inserted entry by entry rather than sorted and merged
+    private static final int INSERT_MAX = 32;
+
+    private long[] dates = new long[64];
+    private int[] ids = new int[64];
+    private int sorted; // entries before this are in date order
+    private int length; // entries from sorted up to this were added since
+    private int holes;  // removed entries among the sorted ones, left with id 0
+
+    /**
+     * @return the number of photos
+     */
+    public int size() {
+        return length - holes;
+    }
+
+    /**
+     * Number of photos dated from {@code from} (inclusive) to {@code to} (exclusive).
+     */
+    public int count(long from, long to) {
+        settle();
+        return Math.max(0, lowerBound(to) - lowerBound(from));
+    }
+
+    /**
+     * Photos dated from {@code from} (inclusive) to {@code to} (exclusive).
+     * @return a new list of photo ids
+     */
+    public PostingList find(long from, long to) {
+        settle();
+        int start = lowerBound(from);
+        int end = Math.max(start, lowerBound(to));
+        int[] range = Arrays.copyOfRange(ids, start, end);
+        // Posting lists are cheapest to build in id order
+        Arrays.sort(range);
+        PostingList out = new PostingList();
+        for (int id : range) {
+            out.add(id);
+        }
+        return out;
+    }
+
+    /**
+     * The photos taken closest to a date, for showing what else happened around it.
+     * @return up to {@code count} photo ids in date order
+     */
+    public int[] findAround(long date, int count) {
+        settle();
+        int lo = lowerBound(date);
+        int hi = lo;
+        while (hi - lo < count && (lo > 0 || hi < length)) {
+            // Take whichever neighbour is nearer in time
+            if (hi == length || (lo > 0 && date - dates[lo - 1] <= dates[hi] - date)) {
+                lo--;
+            } else {
+                hi++;
+            }
+        }
+        return Arrays.copyOfRange(ids, lo, hi);
+    }
+
+    /**
+     * Counts the photos from {@code from} (inclusive) to {@code to} (exclusive) per
+     * calendar period, in the default time zone. Periods without photos are left out,
+     * so the cost depends on the number of periods with photos, not on the range.
+     * @param field {@link Calendar#YEAR}, {@link Calendar#MONTH} or {@link Calendar#DAY_OF_MONTH}
+     * @return photo counts by the start of their period, in date order
+     */
+    public SortedMap<Long, Integer> countBy(int field, long from, long to) {
+        if (field != Calendar.YEAR && field != Calendar.MONTH && field != Calendar.DAY_OF_MONTH) {
+            throw new IllegalArgumentException("Unsupported calendar field " + field);
+        }
+        settle();
+        SortedMap<Long, Integer> counts = new TreeMap<>();
+        Calendar calendar = Calendar.getInstance();
+        int i = lowerBound(from);
+        int end = lowerBound(to);
+        while (i < end) {
+            long start = startOfPeriod(calendar, dates[i], field);
+            calendar.add(field, 1);
+            int next = Math.min(end, lowerBound(calendar.getTimeInMillis()));
+            counts.put(start, next - i);
+            i = next;
+        }
+        return counts;
+    }
+
+    /**
+     * The start of the calendar period containing a date; leaves the calendar there.
+     */
+    static long startOfPeriod(Calendar calendar, long date, int field) {
+        calendar.setTimeInMillis(date);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        if (field != Calendar.DAY_OF_MONTH) calendar.set(Calendar.DAY_OF_MONTH, 1);
+        if (field == Calendar.YEAR) calendar.set(Calendar.MONTH, Calendar.JANUARY);
+        return calendar.getTimeInMillis();
+    }
+
+    void add(int id, long date) {
+        if (length == ids.length) {
+            dates = Arrays.copyOf(dates, length * 2);
+            ids = Arrays.copyOf(ids, length * 2);
+        }
+        dates[length] = date;
+        ids[length] = id;
+        length++;
+    }
+
+    void remove(int id, long date) {
+        // A tail would have to be searched entry by entry; sort it in first
+        settleTail();
+        for (int i = lowerBound(date); i < sorted && dates[i] == date; i++) {
+            if (ids[i] == id) {
+                ids[i] = 0;
+                holes++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * A copy of the index as it is now, settled, so that reading it changes nothing and it
+     * can be read on another thread while this one goes on changing.
+     */
+    TimeIndex snapshot() {
+        settle();
+        TimeIndex copy = new TimeIndex();
+        copy.dates = Arrays.copyOf(dates, Math.max(length, 1));
+        copy.ids = Arrays.copyOf(ids, Math.max(length, 1));
+        copy.sorted = length;
+        copy.length = length;
+        return copy;
+    }
+
+    private void settle() {
+        settleTail();
+        if (holes > 0) {
+            int n = 0;
+            for (int i = 0; i < length; i++) {
+                if (ids[i] != 0) {
+                    dates[n] = dates[i];
+                    ids[n] = ids[i];
+                    n++;
+                }
+            }
+            length = n;
+            sorted = n;
+            holes = 0;
+        }
+    }
+
+    private void settleTail() {
+        if (length - sorted <= INSERT_MAX) {
+            while (sorted < length) {
+                long date = dates[sorted];
+                int id = ids[sorted];
+                int at = lowerBound(date);
+                System.arraycopy(dates, at, dates, at + 1, sorted - at);
+                System.arraycopy(ids, at, ids, at + 1, sorted - at);
+                dates[at] = date;
+                ids[at] = id;
+                sorted++;
+            }
+            return;
+        }
+
+        Integer[] order = new Integer[length - sorted];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = sorted + i;
+        }
+        long[] tailDates = dates;
+        Arrays.sort(order, Comparator.comparingLong(i -> tailDates[i]));
+
+        // Merge into new arrays, dropping holes on the way
+        long[] mergedDates = new long[dates.length];
+        int[] mergedIds = new int[ids.length];
+        int n = 0;
+        int i = 0;
+        for (int t : order) {
+            while (i < sorted && dates[i] <= dates[t]) {
+                if (ids[i] != 0) {
+                    mergedDates[n] = dates[i];
+                    mergedIds[n++] = ids[i];
+                }
+                i++;
+            }
+            mergedDates[n] = dates[t];
+            mergedIds[n++] = ids[t];
+        }
+        for (; i < sorted; i++) {
+            if (ids[i] != 0) {
+                mergedDates[n] = dates[i];
+                mergedIds[n++] = ids[i];
+            }
+        }
+        dates = mergedDates;
+        ids = mergedIds;
+        length = n;
+        sorted = n;
+        holes = 0;
+    }
+
+    // First sorted entry dated at or after the date
+    private int lowerBound(long date) {
+        int lo = 0;
+        int hi = sorted;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (dates[mid] < date) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.photosandroid.model;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Writes journal records on a single background thread.
+ *
+ * Mutations are queued (marking the library dirty) and written together once no new
+ * mutation has arrived for {@link #QUIET_PERIOD_MS}, so a burst of quick edits costs one
+ * write. {@link #flush()} forces the pending records to disk and blocks until they are
+ * written; it returns immediately when nothing is pending. Checkpoints run on the same
+ * thread ({@link #checkpoint}), so records queued after one was taken are written after
+ * it has cleared the journal.
+ */
+public class WriteBehindPersister {
+    /** How long the library must stay unchanged before queued records are written. */
+    static final long QUIET_PERIOD_MS = 500;
+
+    private final Context context;
+    private final ScheduledExecutorService executor;
+
+    // Guarded by this
+    private List<Mutation> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledWrite;
+    private boolean writing;
+    private int journalLength; // records written since the last checkpoint
+    private boolean appendFailed; // the journal may miss records until the next checkpoint
+
+    public WriteBehindPersister(Context context) {
+        this.context = context;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "library-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues a mutation and (re)starts the quiet-period timer.
+     */
+    public synchronized void enqueue(Mutation mutation) {
+        pending.add(mutation);
+        if (scheduledWrite != null) {
+            scheduledWrite.cancel(false);
+        }
+        scheduledWrite = executor.schedule(this::writePending, QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the mutations of one bulk change, to be written in the same append.
+     */
+    public synchronized void enqueueAll(List<Mutation> mutations) {
+        if (mutations.isEmpty()) return;
+        pending.addAll(mutations);
+        if (scheduledWrite != null) {
+            scheduledWrite.cancel(false);
+        }
+        scheduledWrite = executor.schedule(this::writePending, QUIET_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if there are changes that are not yet on disk
+     */
+    public synchronized boolean isDirty() {
+        return !pending.isEmpty() || writing;
+    }
+
+    /**
+     * @return the number of records appended to the journal since the last checkpoint
+     */
+    public synchronized int getJournalLength() {
+        return journalLength;
+    }
+
+    /**
+     * @return true if a journal write failed since the last checkpoint, so that the
+     *         journal no longer holds every change and a checkpoint is due at once
+     */
+    public synchronized boolean hasFailedAppend() {
+        return appendFailed;
+    }
+
+    /**
+     * Sets the number of records that were already in the journal, as replayed at load.
+     */
+    public synchronized void setJournalLength(int journalLength) {
+        this.journalLength = journalLength;
+    }
+
+    /**
+     * Writes a checkpoint in the background, after the records queued so far; call
+     * {@link #flush} first so that none are left waiting for the quiet period. The
+     * journal length starts over once the checkpoint is written.
+     * @param write writes the checkpoint and clears the journal, returning whether it succeeded
+     */
+    public void checkpoint(BooleanSupplier write) {
+        executor.execute(() -> {
+            if (write.getAsBoolean()) {
+                synchronized (this) {
+                    journalLength = 0;
+                    appendFailed = false; // taken after the failed records were applied
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes all pending records now and waits for them (and any write already in
+     * progress) to reach disk. Meant for lifecycle points such as onStop, after which
+     * the process may be killed.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (!isDirty()) return;
+            if (scheduledWrite != null) {
+                scheduledWrite.cancel(false);
+                scheduledWrite = null;
+            }
+        }
+        try {
+            // Runs after any write already in progress on the single writer thread
+            executor.submit(this::writePending).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writePending() {
+        List<Mutation> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            batch = pending;
+            pending = new ArrayList<>();
+            writing = true;
+        }
+        boolean written = false;
+        try {
+            written = FileStorage.appendMutations(context, batch);
+        } finally {
+            synchronized (this) {
+                writing = false;
+                journalLength += batch.size();
+                if (!written) appendFailed = true;
+            }
+        }
+    }
+}
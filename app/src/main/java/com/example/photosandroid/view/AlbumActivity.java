@@ -1,58 +1,77 @@
 package com.example.photosandroid.view;
 
 import android.app.AlertDialog;
+import android.content.ClipData;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.view.View;
 import android.widget.*;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.photosandroid.R;
 import com.example.photosandroid.model.Album;
-import com.example.photosandroid.model.FileStorage;
+import com.example.photosandroid.model.AlbumRepository;
 import com.example.photosandroid.model.Photo;
-import com.example.photosandroid.model.Tag;
+import com.example.photosandroid.model.PhotoImporter;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class AlbumActivity extends AppCompatActivity {
+/**
+ * Shows one album, as a list of photos with their tags and actions or, for large albums,
+ * as a grid of thumbnails.
+ */
+public class AlbumActivity extends AppCompatActivity
+        implements AlbumRepository.Listener, PhotoImporter.Listener {
+
+    // Albums with more photos than this open as a grid
+    private static final int GRID_THRESHOLD = 500;
 
     // UI components
     private TextView albumTitle;
     private Button addPhotoButton;
     private Button slideshowButton;
-    private ListView photoList;
+    private Button viewModeButton;
+    private RecyclerView photoList;
+    private ProgressBar importProgress;
+    private TextView importStatus;
 
     // Photo and album data
-    private List<Photo> photos;
-    private PhotoAdapter photoAdapter;
+    private AlbumRepository repository;
+    private PhotoImporter importer;
+    private PhotoAdapter photoAdapter;     // created when the list is first shown
+    private PhotoGridAdapter gridAdapter; // created when the grid is first shown
+    private boolean gridMode;
     private Album album;
     private int albumIndex;
 
-    // Photo picker result handler (Activity Result API)
+    // Photo picker result handler (Activity Result API); several photos may be picked
     private final ActivityResultLauncher<Intent> photoPickerLauncher =
             registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
                 if (result.getResultCode() == RESULT_OK && result.getData() != null) {
-                    Uri uri = result.getData().getData();
-                    if (uri != null) {
-                        getContentResolver().takePersistableUriPermission(
-                                uri, Intent.FLAG_GRANT_READ_URI_PERMISSION
-                        );
-
-                        String filePath = uri.toString();
-
-                        // Avoid adding duplicate photos to the album
-                        if (!albumContainsPhoto(filePath)) {
-                            Photo newPhoto = new Photo(filePath);
-                            album.addPhoto(newPhoto);
-                            photoAdapter.notifyDataSetChanged();
-                            saveAlbum();
-                        } else {
-                            Toast.makeText(this, "Photo already exists in album!", Toast.LENGTH_SHORT).show();
+                    Intent data = result.getData();
+                    List<Uri> uris = new ArrayList<>();
+                    ClipData clip = data.getClipData();
+                    if (clip != null) {
+                        for (int i = 0; i < clip.getItemCount(); i++) {
+                            uris.add(clip.getItemAt(i).getUri());
                         }
+                    } else if (data.getData() != null) {
+                        uris.add(data.getData());
+                    }
+                    if (!uris.isEmpty()) {
+                        // After a process restart the result can come before the album is shown
+                        repository.whenLoaded(() -> {
+                            if (isDestroyed() || album == null) return;
+                            importer.importPhotos(album, uris);
+                            showImportProgress(0, uris.size());
+                        });
                     }
                 }
             });
@@ -66,7 +85,10 @@ public class AlbumActivity extends AppCompatActivity {
         albumTitle = findViewById(R.id.albumTitle);
         addPhotoButton = findViewById(R.id.addPhotoButton);
         slideshowButton = findViewById(R.id.slideshowButton);
+        viewModeButton = findViewById(R.id.viewModeButton);
         photoList = findViewById(R.id.photoList);
+        importProgress = findViewById(R.id.importProgress);
+        importStatus = findViewById(R.id.importStatus);
 
         // Retrieve album name from intent
         String albumName = getIntent().getStringExtra("albumName");
@@ -76,19 +98,21 @@ public class AlbumActivity extends AppCompatActivity {
             return;
         }
 
-        // Load all albums from storage
-        ArrayList<Album> allAlbums = FileStorage.loadAlbums(this);
-        if (allAlbums == null) allAlbums = new ArrayList<>();
-
-        // Find the album by name
-        album = null;
-        for (int i = 0; i < allAlbums.size(); i++) {
-            if (allAlbums.get(i).getName().equals(albumName)) {
-                album = allAlbums.get(i);
-                albumIndex = i;
-                break;
-            }
-        }
+        // The album list may still be loading if the process was restarted on this screen
+        repository = AlbumRepository.getInstance(this);
+        importer = PhotoImporter.getInstance(this);
+        repository.whenLoaded(() -> showAlbum(albumName));
+    }
+
+    /**
+     * Shows the named album once the library is loaded.
+     */
+    private void showAlbum(String albumName) {
+        if (isDestroyed()) return;
+
+        // Find the album by name in the shared library; its photos are read in the background
+        album = repository.findAlbum(albumName);
+        albumIndex = repository.getAlbums().indexOf(album);
 
         // If album not found, exit the activity
         if (album == null) {
@@ -97,15 +121,28 @@ public class AlbumActivity extends AppCompatActivity {
             return;
         }
 
-        // Set title and load photos
-        photos = album.getPhotos();
+        // Set title and show the photos
         albumTitle.setText(album.getName());
 
-        // Set up the adapter
-        // Set up the adapter with current album (for move/delete logic)
-        photoAdapter = new PhotoAdapter(this, photos, album, this::saveAlbum);
-        photoList.setAdapter(photoAdapter);
+        // Large albums start as a grid, read a page at a time without opening the album;
+        // the list builds a row for every photo up front, so it waits for them all
+        photoList.setHasFixedSize(true);
+        if (album.getPhotoCount() > GRID_THRESHOLD) {
+            showAsGrid();
+        } else {
+            showAsList();
+        }
+        viewModeButton.setOnClickListener(v -> {
+            if (gridMode) showAsList();
+            else showAsGrid();
+        });
+        repository.addListener(this);
 
+        // Imports keep running when the activity is recreated
+        importer.addListener(this);
+        if (importer.isImporting(album)) {
+            showImportProgress(0, 0);
+        }
 
         // Add photo button listener
         addPhotoButton.setOnClickListener(v -> openPhotoPicker());
@@ -116,34 +153,87 @@ public class AlbumActivity extends AppCompatActivity {
             intent.putExtra("albumName", album.getName());
             startActivity(intent);
         });
+    }
+
+    /**
+     * Show the thumbnail grid, which does not need the album open.
+     */
+    private void showAsGrid() {
+        gridMode = true;
+        if (gridAdapter == null) {
+            gridAdapter = new PhotoGridAdapter(this, album, this::openPhotoOptions);
+        } else {
+            gridAdapter.refresh();
+        }
+        int width = getResources().getDisplayMetrics().widthPixels;
+        photoList.setLayoutManager(new GridLayoutManager(this, PhotoGridAdapter.columnsFor(this, width)));
+        photoList.setAdapter(gridAdapter);
+        viewModeButton.setText("Show as List");
+    }
+
+    /**
+     * Show the list of photos with their tags once the album is open; until then the
+     * screen says it is loading.
+     */
+    private void showAsList() {
+        gridMode = false;
+        viewModeButton.setEnabled(false);
+        viewModeButton.setText("Loading...");
+        repository.openAlbum(album, () -> {
+            if (isDestroyed() || gridMode) return;
+            // Set up the adapter with current album (for move/delete logic)
+            // Click photo: show options like add tag or delete
+            if (photoAdapter == null) {
+                photoAdapter = new PhotoAdapter(this, album, this::showPhotoOptions);
+            } else {
+                photoAdapter.submit(album.getPhotos());
+            }
+            photoList.setLayoutManager(new LinearLayoutManager(this));
+            photoList.setAdapter(photoAdapter);
+            viewModeButton.setEnabled(true);
+            viewModeButton.setText("Show as Grid");
+        });
+    }
 
-        // Click photo: show options like add tag or delete
-        photoList.setOnItemClickListener((parent, view, position, id) -> {
-            String[] options = {"Add Tag", "Delete Photo"};
-
-            new AlertDialog.Builder(this)
-                    .setTitle("Choose Action")
-                    .setItems(options, (dialog, which) -> {
-                        switch (which) {
-                            case 0:
-                                showAddTagDialog(position);
-                                break;
-                            case 1:
-                                showDeletePhotoDialog(position);
-                                break;
-                        }
-                    })
-                    .show();
+    /**
+     * Show options for a photo clicked in the grid once the album is open, as deleting
+     * the photo needs it.
+     */
+    private void openPhotoOptions(Photo photo) {
+        repository.openAlbum(album, () -> {
+            if (!isDestroyed() && album.containsPhoto(photo)) showPhotoOptions(photo);
         });
     }
 
     /**
-     * Launches the system photo picker using ACTION_OPEN_DOCUMENT.
+     * Show options like add tag or delete for a clicked photo.
+     */
+    private void showPhotoOptions(Photo photo) {
+        String[] options = {"Add Tag", "Delete Photo"};
+
+        new AlertDialog.Builder(this)
+                .setTitle("Choose Action")
+                .setItems(options, (dialog, which) -> {
+                    switch (which) {
+                        case 0:
+                            showAddTagDialog(photo);
+                            break;
+                        case 1:
+                            showDeletePhotoDialog(photo);
+                            break;
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Launches the system photo picker using ACTION_OPEN_DOCUMENT, allowing several photos.
      */
     private void openPhotoPicker() {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.setType("image/*");
         intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         intent.addFlags(Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
         intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
         photoPickerLauncher.launch(intent);
@@ -152,15 +242,13 @@ public class AlbumActivity extends AppCompatActivity {
     /**
      * Show confirmation dialog to delete selected photo.
      */
-    private void showDeletePhotoDialog(int position) {
+    private void showDeletePhotoDialog(Photo photo) {
         new AlertDialog.Builder(this)
                 .setTitle("Delete Photo")
                 .setMessage("Are you sure you want to delete this photo?")
                 .setPositiveButton("Delete", (dialog, which) -> {
-                    Photo photoToRemove = photos.get(position);
-                    album.removePhoto(photoToRemove);
-                    photoAdapter.notifyDataSetChanged();
-                    saveAlbum();
+                    // The album may have been released since the dialog opened
+                    repository.openAlbum(album, () -> repository.removePhoto(album, photo));
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
@@ -169,9 +257,7 @@ public class AlbumActivity extends AppCompatActivity {
     /**
      * Prompt user to add a tag (name and value) to the selected photo.
      */
-    private void showAddTagDialog(int position) {
-        Photo photo = photos.get(position);
-
+    private void showAddTagDialog(Photo photo) {
         LinearLayout layout = new LinearLayout(this);
         layout.setOrientation(LinearLayout.VERTICAL);
 
@@ -191,11 +277,9 @@ public class AlbumActivity extends AppCompatActivity {
                     String value = tagValueInput.getText().toString().trim();
 
                     if (!name.isEmpty() && !value.isEmpty()) {
-                        boolean added = photo.addTag(name, value);
+                        boolean added = repository.addTag(album, photo, name, value);
                         if (added) {
                             Toast.makeText(this, "Tag added", Toast.LENGTH_SHORT).show();
-                            saveAlbum();
-                            photoAdapter.notifyDataSetChanged();
                         } else {
                             Toast.makeText(this, "Duplicate or invalid tag", Toast.LENGTH_SHORT).show();
                         }
@@ -206,34 +290,75 @@ public class AlbumActivity extends AppCompatActivity {
     }
 
     /**
-     * Check if photo with same path already exists in current album.
+     * Refresh the photos whenever the shared library changes. In the list only rows whose
+     * photo changed are rebound; the grid fetches its pages again for the cells on screen.
+     * A list still waiting for the album to open is filled when it is.
      */
-    private boolean albumContainsPhoto(String filePath) {
-        for (Photo p : photos) {
-            if (p.getFilePath().equals(filePath)) {
-                return true;
-            }
+    @Override
+    public void onLibraryChanged() {
+        if (gridMode) {
+            gridAdapter.refresh();
+        } else if (photoAdapter != null && album.isLoaded()) {
+            photoAdapter.submit(album.getPhotos());
         }
-        return false;
     }
 
     /**
-     * Save the current album list with updated album state.
+     * Show how far a running import has got; a total of 0 means not known yet.
      */
-    private void saveAlbum() {
-        ArrayList<Album> allAlbums = FileStorage.loadAlbums(this);
-        if (allAlbums == null) allAlbums = new ArrayList<>();
-        allAlbums.set(albumIndex, album);
-        FileStorage.saveAlbums(this, allAlbums);
+    private void showImportProgress(int done, int total) {
+        importProgress.setVisibility(View.VISIBLE);
+        importStatus.setVisibility(View.VISIBLE);
+        importProgress.setIndeterminate(total == 0);
+        importProgress.setMax(total);
+        importProgress.setProgress(done);
+        importStatus.setText(total == 0 ? "Importing photos..." : "Importing " + done + " of " + total);
+    }
+
+    @Override
+    public void onImportProgress(Album album, int done, int total) {
+        if (album == this.album) {
+            showImportProgress(done, total);
+        }
+    }
+
+    @Override
+    public void onImportFinished(Album album, int added, int skipped, int failed) {
+        if (album != this.album) return;
+        if (!importer.isImporting(album)) {
+            importProgress.setVisibility(View.GONE);
+            importStatus.setVisibility(View.GONE);
+        }
+        String message = added + (added == 1 ? " photo added" : " photos added");
+        if (skipped > 0) {
+            message += ", " + skipped + " already in album";
+        }
+        if (failed > 0) {
+            message += ", " + failed + " could not be read";
+        }
+        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
     }
 
     /**
-     * Persist album data when the activity is stopped.
+     * Make sure pending changes are on disk when the activity is stopped.
      */
     @Override
     protected void onStop() {
         super.onStop();
-        saveAlbum();
+        if (repository != null) {
+            repository.flush();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (repository != null) {
+            repository.removeListener(this);
+        }
+        if (importer != null) {
+            importer.removeListener(this);
+        }
     }
 
     /**
@@ -0,0 +1,119 @@
+package com.example.photosandroid.view;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.photosandroid.R;
+import com.example.photosandroid.image.ImageLoader;
+import com.example.photosandroid.model.Album;
+import com.example.photosandroid.model.AlbumStats;
+import com.example.photosandroid.model.Tag;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Shows the albums of the library on the home screen, each with its cover, size, date
+ * range and most common tags.
+ *
+ * Everything a row shows comes from the album's {@link AlbumStats}, which are kept up to
+ * date as the library changes and stored in the manifest, so the list never reads an
+ * album's photos. Covers are thumbnails from the {@link ImageLoader} cache.
+ */
+public class AlbumAdapter extends RecyclerView.Adapter<AlbumAdapter.ViewHolder> {
+    /**
+     * Called when a row is clicked.
+     */
+    public interface OnAlbumClickListener {
+        void onAlbumClick(int position);
+    }
+
+    private final Context context;
+    private final List<Album> albums; // owned by the repository
+    private final ImageLoader imageLoader;
+    private final int thumbnailSize;
+    private final OnAlbumClickListener clickListener;
+    private final SimpleDateFormat monthFormat = new SimpleDateFormat("MMM yyyy", Locale.getDefault());
+
+    public AlbumAdapter(Context context, List<Album> albums, OnAlbumClickListener clickListener) {
+        this.context = context;
+        this.albums = albums;
+        this.clickListener = clickListener;
+        this.imageLoader = ImageLoader.getInstance(context);
+        this.thumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+    }
+
+    @Override
+    public int getItemCount() {
+        return albums.size();
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(context).inflate(R.layout.item_album, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        Album album = albums.get(position);
+        AlbumStats stats = album.getStats();
+
+        holder.name.setText(album.getName());
+        holder.summary.setText(describe(stats));
+        StringBuilder tags = new StringBuilder();
+        for (Tag tag : stats.getTopTags(AlbumStats.TOP_TAGS)) {
+            if (tags.length() > 0) tags.append(", ");
+            tags.append(tag.getValue());
+        }
+        holder.tags.setText(tags);
+
+        if (stats.getCoverPath() != null) {
+            imageLoader.loadThumbnail(stats.getCoverPath(), thumbnailSize, holder.cover);
+        } else {
+            imageLoader.cancel(holder.cover);
+            holder.cover.setImageBitmap(null);
+        }
+    }
+
+    // "12 photos · Mar 2021 – Jun 2023"; albums from older manifests may lack dates until saved again
+    private String describe(AlbumStats stats) {
+        int count = stats.getPhotoCount();
+        String text = count == 1 ? "1 photo" : count + " photos";
+        if (count == 0 || stats.getLatestDate() == 0) {
+            return text;
+        }
+        String from = monthFormat.format(new Date(stats.getEarliestDate()));
+        String to = monthFormat.format(new Date(stats.getLatestDate()));
+        return text + " · " + (from.equals(to) ? from : from + " – " + to);
+    }
+
+    /**
+     * The views of one row.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView cover;
+        final TextView name;
+        final TextView summary;
+        final TextView tags;
+
+        ViewHolder(View view) {
+            super(view);
+            cover = view.findViewById(R.id.albumCover);
+            name = view.findViewById(R.id.albumName);
+            summary = view.findViewById(R.id.albumSummary);
+            tags = view.findViewById(R.id.albumTags);
+            view.setOnClickListener(v -> {
+                int position = getBindingAdapterPosition();
+                if (position != RecyclerView.NO_POSITION) clickListener.onAlbumClick(position);
+            });
+        }
+    }
+}
@@ -4,24 +4,25 @@ import android.app.AlertDialog;
 import android.content.Intent;
 import android.os.Bundle;
 import android.text.InputType;
-import android.util.Log;
 import android.widget.*;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import com.example.photosandroid.R;
 import com.example.photosandroid.model.Album;
-import com.example.photosandroid.model.FileStorage;
-import java.util.ArrayList;
+import com.example.photosandroid.model.AlbumRepository;
+import java.util.List;
 
-public class HomeActivity extends AppCompatActivity {
+public class HomeActivity extends AppCompatActivity implements AlbumRepository.Listener {
 
     // UI elements
-    private ListView albumListView;
+    private RecyclerView albumListView;
     private Button addAlbumButton;
 
     // App data
-    private ArrayList<Album> albums;           // List of album objects
-    private ArrayList<String> albumNames;      // Album names (used for display in ListView)
-    private ArrayAdapter<String> albumAdapter; // Adapter to connect albumNames to the ListView
+    private AlbumRepository repository;
+    private List<Album> albums;        // List of album objects (owned by the repository)
+    private AlbumAdapter albumAdapter; // Shows each album with its cover and statistics
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -32,27 +33,19 @@ public class HomeActivity extends AppCompatActivity {
         albumListView = findViewById(R.id.albumListView);
         addAlbumButton = findViewById(R.id.addAlbumButton);
 
-        // Load album data from file storage
-        albums = FileStorage.loadAlbums(this);
-        if (albums == null) albums = new ArrayList<>();
+        // Album data is loaded once per process, in the background, and shared with the other screens
+        repository = AlbumRepository.getInstance(this);
+        albums = repository.getAlbums();
 
-        // Extract album names from loaded albums
-        albumNames = new ArrayList<>();
-        for (Album a : albums) {
-            albumNames.add(a.getName());
-        }
-
-        // Set up the adapter and bind it to the ListView
-        albumAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, albumNames);
+        // Set up the adapter; tapping an album opens options: open, rename, delete
+        albumAdapter = new AlbumAdapter(this, albums, this::showAlbumOptionsDialog);
+        albumListView.setLayoutManager(new LinearLayoutManager(this));
         albumListView.setAdapter(albumAdapter);
+        repository.addListener(this);
 
-        // Listener for creating new album
+        // Listener for creating new album; names can only be checked once the albums are there
         addAlbumButton.setOnClickListener(v -> showAddAlbumDialog());
-
-        // Listener for tapping on an album (opens options: open, rename, delete)
-        albumListView.setOnItemClickListener((parent, view, position, id) -> {
-            showAlbumOptionsDialog(position);
-        });
+        addAlbumButton.setEnabled(repository.isLoaded());
 
         // 🔍 Setup search button
         Button searchPhotosButton = findViewById(R.id.searchPhotosButton);
@@ -77,12 +70,8 @@ public class HomeActivity extends AppCompatActivity {
 
         builder.setPositiveButton("Add", (dialog, which) -> {
             String albumName = input.getText().toString().trim();
-            if (!albumName.isEmpty() && !albumExists(albumName)) {
-                Album newAlbum = new Album(albumName);
-                albums.add(newAlbum);
-                albumNames.add(albumName);
-                albumAdapter.notifyDataSetChanged();
-                FileStorage.saveAlbums(this, albums);
+            if (!albumName.isEmpty() && !repository.albumExists(albumName)) {
+                repository.addAlbum(albumName);
             } else {
                 Toast.makeText(this, "Invalid or duplicate name", Toast.LENGTH_SHORT).show();
             }
@@ -107,11 +96,8 @@ public class HomeActivity extends AppCompatActivity {
         builder.setPositiveButton("Rename", (dialog, which) -> {
             String newName = input.getText().toString().trim();
 
-            if (!newName.isEmpty() && !albumExists(newName)) {
-                albums.get(position).setName(newName);
-                albumNames.set(position, newName);
-                albumAdapter.notifyDataSetChanged();
-                FileStorage.saveAlbums(this, albums);
+            if (!newName.isEmpty() && !repository.albumExists(newName)) {
+                repository.renameAlbum(albums.get(position), newName);
             } else {
                 Toast.makeText(this, "Invalid or duplicate name", Toast.LENGTH_SHORT).show();
             }
@@ -146,11 +132,12 @@ public class HomeActivity extends AppCompatActivity {
                                     .setTitle("Delete Album")
                                     .setMessage("Are you sure you want to delete \"" + albums.get(position).getName() + "\"?")
                                     .setPositiveButton("Delete", (d, w) -> {
-                                        albums.remove(position);
-                                        albumNames.remove(position);
-                                        albumAdapter.notifyDataSetChanged();
-                                        FileStorage.saveAlbums(this, albums);
-                                        Toast.makeText(this, "Album deleted", Toast.LENGTH_SHORT).show();
+                                        // Told once the album's photos were read and it is gone
+                                        repository.deleteAlbum(albums.get(position), () -> {
+                                            if (!isDestroyed()) {
+                                                Toast.makeText(this, "Album deleted", Toast.LENGTH_SHORT).show();
+                                            }
+                                        });
                                     })
                                     .setNegativeButton("Cancel", null)
                                     .show();
@@ -161,24 +148,27 @@ public class HomeActivity extends AppCompatActivity {
     }
 
     /**
-     * Check if an album with the same name already exists (case-insensitive).
+     * Rebind the album rows; their statistics are already up to date. Also called once the
+     * albums have been loaded.
      */
-    private boolean albumExists(String name) {
-        for (Album a : albums) {
-            if (a.getName().equalsIgnoreCase(name)) {
-                return true;
-            }
-        }
-        return false;
+    @Override
+    public void onLibraryChanged() {
+        addAlbumButton.setEnabled(repository.isLoaded());
+        albumAdapter.notifyDataSetChanged();
     }
 
     /**
-     * Save album data when leaving the activity (for safety).
+     * Make sure pending changes are on disk when leaving the activity.
      */
     @Override
     protected void onStop() {
         super.onStop();
-        FileStorage.saveAlbums(this, albums);
-        Log.d("DEBUG", "Albums saved in onStop, total: " + albums.size());
+        repository.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        repository.removeListener(this);
     }
 }
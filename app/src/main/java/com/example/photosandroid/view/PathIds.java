@@ -0,0 +1,22 @@
+package com.example.photosandroid.view;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands out RecyclerView stable ids for photo paths: the same path always gets the same
+ * id, and different paths never share one, which a hash of the path could not promise.
+ * Ids live as long as the adapter that owns them. Main thread only.
+ */
+class PathIds {
+    private final Map<String, Long> ids = new HashMap<>();
+
+    long idFor(String path) {
+        Long id = ids.get(path);
+        if (id == null) {
+            id = (long) ids.size();
+            ids.put(path, id);
+        }
+        return id;
+    }
+}
@@ -2,178 +2,268 @@ package com.example.photosandroid.view;
 
 import android.app.AlertDialog;
 import android.content.Context;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.*;
 import android.widget.*;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.example.photosandroid.R;
+import com.example.photosandroid.image.ImageLoader;
 import com.example.photosandroid.model.Album;
-import com.example.photosandroid.model.FileStorage;
+import com.example.photosandroid.model.AlbumRepository;
 import com.example.photosandroid.model.Photo;
 import com.example.photosandroid.model.Tag;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class PhotoAdapter extends ArrayAdapter<Photo> {
+/**
+ * Shows the photos of an album in a RecyclerView.
+ *
+ * A row's views are looked up, and its buttons given their listeners, once, when its
+ * ViewHolder is created; the listeners act on whatever photo the row shows at the time.
+ * {@link #submit} copies the list of photos and builds the rows from it in the background,
+ * with each row's text taken from the photo's {@link PhotoCaption}, so binding a row only
+ * assigns that text. An {@link AsyncListDiffer} then compares the rows with the ones on
+ * screen, also in the background; rows whose photo and caption did not change are reused,
+ * so adding a tag rebinds only the row of that photo. Rows have stable ids, one per photo
+ * path.
+ */
+public class PhotoAdapter extends RecyclerView.Adapter<PhotoAdapter.ViewHolder> {
+
+    /**
+     * Called when a row is clicked outside its buttons.
+     */
+    public interface OnPhotoClickListener {
+        void onPhotoClick(Photo photo);
+    }
+
     private final Context context;
-    private final List<Photo> photos;
     private final Album currentAlbum; // Needed for actual photo removal
-    private final Runnable saveCallback;
+    private final AlbumRepository repository;
+    private final ImageLoader imageLoader;
+    private final int thumbnailSize;
+    private final OnPhotoClickListener clickListener;
+    private final PathIds ids = new PathIds();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private int submitted; // number of the latest submit; older row lists are dropped
+    private final AsyncListDiffer<Row> differ = new AsyncListDiffer<>(this, new DiffUtil.ItemCallback<Row>() {
+        @Override
+        public boolean areItemsTheSame(Row a, Row b) {
+            return a.photo == b.photo;
+        }
 
-    public PhotoAdapter(Context context, List<Photo> photos, Album currentAlbum, Runnable saveCallback) {
-        super(context, 0, photos);
+        @Override
+        public boolean areContentsTheSame(Row a, Row b) {
+            return a.caption == b.caption && a.number == b.number;
+        }
+    });
+
+    public PhotoAdapter(Context context, Album currentAlbum, OnPhotoClickListener clickListener) {
         this.context = context;
-        this.photos = photos;
         this.currentAlbum = currentAlbum;
-        this.saveCallback = saveCallback;
+        this.clickListener = clickListener;
+        this.repository = AlbumRepository.getInstance(context);
+        this.imageLoader = ImageLoader.getInstance(context);
+        this.thumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+        setHasStableIds(true);
+        submit(currentAlbum.getPhotos());
     }
 
-    @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        Photo photo = getItem(position);
+    /**
+     * Shows the given photos; the rows are updated once they have been built and compared
+     * with the ones shown now. The list is copied first, so it may change afterwards.
+     */
+    public void submit(List<Photo> photos) {
+        Photo[] snapshot = photos.toArray(new Photo[0]);
+        List<Row> shown = differ.getCurrentList();
+        int number = ++submitted;
+        PhotoCaption.BUILDER.execute(() -> {
+            List<Row> rows = buildRows(snapshot, shown);
+            mainHandler.post(() -> {
+                if (number == submitted) differ.submitList(rows);
+            });
+        });
+    }
 
-        if (convertView == null) {
-            convertView = LayoutInflater.from(context).inflate(R.layout.item_photo, parent, false);
+    // Keeps the shown row where the photo, its caption and its position are unchanged
+    private static List<Row> buildRows(Photo[] photos, List<Row> shown) {
+        List<Row> rows = new ArrayList<>(photos.length);
+        for (int i = 0; i < photos.length; i++) {
+            PhotoCaption caption = PhotoCaption.of(photos[i]);
+            Row old = i < shown.size() ? shown.get(i) : null;
+            if (old != null && old.photo == photos[i] && old.caption == caption) {
+                rows.add(old);
+            } else {
+                rows.add(new Row(photos[i], caption, i));
+            }
         }
+        return rows;
+    }
 
-        ImageView photoImage = convertView.findViewById(R.id.photoImage);
-        TextView photoText = convertView.findViewById(R.id.photoText);
-        Button addTagButton = convertView.findViewById(R.id.addTagButton);
-        Button deleteTagButton = convertView.findViewById(R.id.deleteTagButton);
-        Button moveButton = convertView.findViewById(R.id.movePhotoButton);
-        ImageButton deletePhotoButton = convertView.findViewById(R.id.deletePhotoButton);
+    @Override
+    public int getItemCount() {
+        return differ.getCurrentList().size();
+    }
 
-        photoImage.setImageURI(Uri.parse(photo.getFilePath()));
+    @Override
+    public long getItemId(int position) {
+        return ids.idFor(differ.getCurrentList().get(position).photo.getFilePath());
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(context).inflate(R.layout.item_photo, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        Row row = differ.getCurrentList().get(position);
+        holder.photo = row.photo;
+
+        imageLoader.loadThumbnail(row.photo.getFilePath(), thumbnailSize, holder.photoImage);
+        holder.photoText.setText(row.text);
+    }
 
-        StringBuilder tagBuilder = new StringBuilder("image: " + position);
-        for (Tag tag : photo.getTags()) {
-            tagBuilder.append("\n").append(tag.toString());
+    /**
+     * What a row shows of a photo. Immutable, built in the background.
+     */
+    private static final class Row {
+        final Photo photo;
+        final PhotoCaption caption;
+        final int number; // position in the album, shown in the row
+        final String text;
+
+        Row(Photo photo, PhotoCaption caption, int number) {
+            this.photo = photo;
+            this.caption = caption;
+            this.number = number;
+            this.text = caption.tags.isEmpty() ? "image: " + number : "image: " + number + "\n" + caption.tags;
         }
-        photoText.setText(tagBuilder.toString());
-
-        // ➕ Add Tag
-        addTagButton.setOnClickListener(v -> {
-            LinearLayout layout = new LinearLayout(context);
-            layout.setOrientation(LinearLayout.VERTICAL);
-            EditText personInput = new EditText(context);
-            personInput.setHint("Person");
-            layout.addView(personInput);
-            EditText locationInput = new EditText(context);
-            locationInput.setHint("Location");
-            layout.addView(locationInput);
-
-            new AlertDialog.Builder(context)
-                    .setTitle("Add Tags")
-                    .setView(layout)
-                    .setPositiveButton("Add", (dialog, which) -> {
-                        boolean added = false;
-                        String person = personInput.getText().toString().trim();
-                        String location = locationInput.getText().toString().trim();
-
-                        if (!person.isEmpty()) added |= photo.addTag("person", person);
-                        if (!location.isEmpty()) added |= photo.addTag("location", location);
-
-                        if (added) {
-                            Toast.makeText(context, "Tag(s) added", Toast.LENGTH_SHORT).show();
-                            notifyDataSetChanged();
-                            saveCallback.run();
-                        } else {
-                            Toast.makeText(context, "Nothing added", Toast.LENGTH_SHORT).show();
-                        }
-                    })
-                    .setNegativeButton("Cancel", null)
-                    .show();
-        });
+    }
 
-        // Delete Tag
-        deleteTagButton.setOnClickListener(v -> {
-            List<Tag> tags = photo.getTags();
-            if (tags.isEmpty()) {
-                Toast.makeText(context, "No tags to delete", Toast.LENGTH_SHORT).show();
-                return;
-            }
+    /**
+     * The views of one row, and the photo it currently shows.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView photoImage;
+        final TextView photoText;
+        Photo photo;
 
-            String[] tagStrings = new String[tags.size()];
-            for (int i = 0; i < tags.size(); i++) {
-                tagStrings[i] = tags.get(i).toString();
-            }
+        ViewHolder(View view) {
+            super(view);
+            photoImage = view.findViewById(R.id.photoImage);
+            photoText = view.findViewById(R.id.photoText);
+            view.setOnClickListener(v -> clickListener.onPhotoClick(photo));
+            view.findViewById(R.id.addTagButton).setOnClickListener(v -> showAddTagDialog(photo));
+            view.findViewById(R.id.deleteTagButton).setOnClickListener(v -> showDeleteTagDialog(photo));
+            view.findViewById(R.id.movePhotoButton).setOnClickListener(v -> showMoveDialog(photo));
+            view.findViewById(R.id.deletePhotoButton).setOnClickListener(v -> showDeletePhotoDialog(photo));
+        }
+    }
 
-            new AlertDialog.Builder(context)
-                    .setTitle("Delete Tag")
-                    .setItems(tagStrings, (dialog, which) -> {
-                        Tag tag = tags.get(which);
-                        photo.removeTag(tag.getName(), tag.getValue());
-                        notifyDataSetChanged();
-                        saveCallback.run();
-                        Toast.makeText(context, "Tag deleted", Toast.LENGTH_SHORT).show();
-                    })
-                    .setNegativeButton("Cancel", null)
-                    .show();
-        });
+    // ➕ Add Tag
+    private void showAddTagDialog(Photo photo) {
+        LinearLayout layout = new LinearLayout(context);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        EditText personInput = new EditText(context);
+        personInput.setHint("Person");
+        layout.addView(personInput);
+        EditText locationInput = new EditText(context);
+        locationInput.setHint("Location");
+        layout.addView(locationInput);
 
-        // Move Photo to another album
-        moveButton.setOnClickListener(v -> {
-            ArrayList<Album> albums = FileStorage.loadAlbums(context);
-            String[] albumNames = new String[albums.size()];
-            for (int i = 0; i < albums.size(); i++) {
-                albumNames[i] = albums.get(i).getName();
-            }
+        new AlertDialog.Builder(context)
+                .setTitle("Add Tags")
+                .setView(layout)
+                .setPositiveButton("Add", (dialog, which) -> {
+                    boolean added = false;
+                    String person = personInput.getText().toString().trim();
+                    String location = locationInput.getText().toString().trim();
 
-            new AlertDialog.Builder(context)
-                    .setTitle("Move Photo To...")
-                    .setItems(albumNames, (dialog, which) -> {
-                        Album targetAlbum = albums.get(which);
+                    if (!person.isEmpty()) added |= repository.addTag(currentAlbum, photo, "person", person);
+                    if (!location.isEmpty()) added |= repository.addTag(currentAlbum, photo, "location", location);
 
-                        if (!targetAlbum.containsPhoto(photo)) {
-                            targetAlbum.addPhoto(photo);
+                    if (added) {
+                        Toast.makeText(context, "Tag(s) added", Toast.LENGTH_SHORT).show();
+                    } else {
+                        Toast.makeText(context, "Nothing added", Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
 
-                            // Remove from current album (runtime)
-                            currentAlbum.removePhoto(photo);
-                            photos.remove(photo);
-                            notifyDataSetChanged();
-                            Toast.makeText(context, "Photo moved to " + targetAlbum.getName(), Toast.LENGTH_SHORT).show();
+    // Delete Tag
+    private void showDeleteTagDialog(Photo photo) {
+        List<Tag> tags = photo.getTags();
+        if (tags.isEmpty()) {
+            Toast.makeText(context, "No tags to delete", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String[] tagStrings = new String[tags.size()];
+        for (int i = 0; i < tags.size(); i++) {
+            tagStrings[i] = tags.get(i).toString();
+        }
 
-                            // Update albums list with updated album objects
-                            for (int i = 0; i < albums.size(); i++) {
-                                Album a = albums.get(i);
-                                if (a.getName().equals(currentAlbum.getName())) {
-                                    albums.set(i, currentAlbum);
-                                } else if (a.getName().equals(targetAlbum.getName())) {
-                                    albums.set(i, targetAlbum);
-                                }
-                            }
-
-                            // Save updated album list
-                            FileStorage.saveAlbums(context, albums);
-
-                            // Notify parent activity to save if needed
-                            saveCallback.run();
+        new AlertDialog.Builder(context)
+                .setTitle("Delete Tag")
+                .setItems(tagStrings, (dialog, which) -> {
+                    repository.removeTag(currentAlbum, photo, tags.get(which));
+                    Toast.makeText(context, "Tag deleted", Toast.LENGTH_SHORT).show();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    // Move Photo to another album
+    private void showMoveDialog(Photo photo) {
+        List<Album> albums = repository.getAlbums();
+        String[] albumNames = new String[albums.size()];
+        for (int i = 0; i < albums.size(); i++) {
+            albumNames[i] = albums.get(i).getName();
+        }
+
+        new AlertDialog.Builder(context)
+                .setTitle("Move Photo To...")
+                .setItems(albumNames, (dialog, which) -> {
+                    Album targetAlbum = albums.get(which);
+
+                    // The target's photos are read in the background if it is not open;
+                    // opening it may release this album, so this one is opened again after
+                    repository.openAlbum(targetAlbum, () -> repository.openAlbum(currentAlbum, () -> {
+                        List<Album> current = repository.getAlbums();
+                        if (!current.contains(targetAlbum) || !current.contains(currentAlbum)
+                                || !currentAlbum.containsPhoto(photo)) return;
+                        if (repository.movePhoto(photo, currentAlbum, targetAlbum)) {
+                            Toast.makeText(context, "Photo moved to " + targetAlbum.getName(), Toast.LENGTH_SHORT).show();
                         } else {
                             Toast.makeText(context, "Photo already exists in selected album", Toast.LENGTH_SHORT).show();
                         }
-                    })
-                    .setNegativeButton("Cancel", null)
-                    .show();
-        });
-
-
-        // Delete photo from current album
-        deletePhotoButton.setOnClickListener(v -> {
-            new AlertDialog.Builder(context)
-                    .setTitle("Delete Photo")
-                    .setMessage("Are you sure you want to delete this photo?")
-                    .setPositiveButton("Delete", (dialog, which) -> {
-                        currentAlbum.removePhoto(photo);
-                        photos.remove(photo);
-                        notifyDataSetChanged();
-                        saveCallback.run();
-                        Toast.makeText(context, "Photo deleted", Toast.LENGTH_SHORT).show();
-                    })
-                    .setNegativeButton("Cancel", null)
-                    .show();
-        });
+                    }));
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
 
-        return convertView;
+    // Delete photo from current album
+    private void showDeletePhotoDialog(Photo photo) {
+        new AlertDialog.Builder(context)
+                .setTitle("Delete Photo")
+                .setMessage("Are you sure you want to delete this photo?")
+                .setPositiveButton("Delete", (dialog, which) -> {
+                    repository.openAlbum(currentAlbum, () -> {
+                        if (repository.removePhoto(currentAlbum, photo)) {
+                            Toast.makeText(context, "Photo deleted", Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
     }
 }
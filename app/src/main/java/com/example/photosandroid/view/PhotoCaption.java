@@ -0,0 +1,101 @@
+package com.example.photosandroid.view;
+
+import android.net.Uri;
+
+import com.example.photosandroid.model.Photo;
+import com.example.photosandroid.model.Tag;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The text screens show for a photo: its file name and a summary of its tags.
+ *
+ * Captions are immutable and built once per photo version ({@link Photo#getVersion}), so
+ * every screen shares them and a tag change rebuilds the caption of that photo only.
+ * Versions count per photo object, so a caption is only reused for the very photo it
+ * was built from: a photo removed and imported again starts over with the same path.
+ * They are meant to be built on {@link #BUILDER}, off the main thread, so that binding a
+ * view is a plain assignment. Photos are read there while the main thread may change
+ * them, so the photo's version is read before and after building and the caption is
+ * built again if the photo changed in between (see {@link Photo}).
+ */
+final class PhotoCaption {
+    // Photos whose captions are kept, by path
+    private static final int MAX_CACHED = 1 << 16;
+
+    /** The thread adapters build their rows on; it runs one job at a time, in order. */
+    static final Executor BUILDER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "display-model");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final Map<String, PhotoCaption> cache =
+            new LinkedHashMap<String, PhotoCaption>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PhotoCaption> eldest) {
+                    return size() > MAX_CACHED;
+                }
+            };
+
+    final Photo photo;     // the photo it was built from
+    final int version;
+    final String fileName; // last segment of the path or URI, or the whole path
+    final String tags;     // one tag per line, empty if there are none
+    final String text;     // file name and tags on separate lines
+
+    private PhotoCaption(Photo photo) {
+        // Read the version first, so a change made while building shows up in of()
+        this.photo = photo;
+        this.version = photo.getVersion();
+        String path = photo.getFilePath();
+        String segment = Uri.parse(path).getLastPathSegment();
+        this.fileName = segment != null ? segment : path;
+        StringBuilder summary = new StringBuilder();
+        List<Tag> photoTags = photo.getTags();
+        for (int i = 0; i < photoTags.size(); i++) {
+            if (i > 0) summary.append('\n');
+            summary.append(photoTags.get(i).toString());
+        }
+        this.tags = summary.toString();
+        this.text = tags.isEmpty() ? fileName : fileName + "\n" + tags;
+    }
+
+    /**
+     * Returns the caption of the photo's current version, building it if needed.
+     * Safe on any thread, but meant for {@link #BUILDER}.
+     */
+    static PhotoCaption of(Photo photo) {
+        synchronized (cache) {
+            PhotoCaption caption = cache.get(photo.getFilePath());
+            if (caption != null && caption.photo == photo && caption.version == photo.getVersion()) {
+                return caption;
+            }
+        }
+        PhotoCaption caption = new PhotoCaption(photo);
+        while (caption.version != photo.getVersion()) {
+            caption = new PhotoCaption(photo);
+        }
+        synchronized (cache) {
+            cache.put(photo.getFilePath(), caption);
+        }
+        return caption;
+    }
+
+    /**
+     * Builds the captions of the given photos in the background, ahead of their display.
+     * The list is copied first, so it may change afterwards.
+     */
+    static void prefetch(List<Photo> photos) {
+        Photo[] copy = photos.toArray(new Photo[0]);
+        BUILDER.execute(() -> {
+            for (Photo photo : copy) {
+                of(photo);
+            }
+        });
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.photosandroid.view;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.example.photosandroid.R;
+import com.example.photosandroid.image.ImageLoader;
+import com.example.photosandroid.model.Album;
+import com.example.photosandroid.model.AlbumRepository;
+import com.example.photosandroid.model.Photo;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shows the photos of an album as a grid of thumbnails, for albums too large for the
+ * list of {@link PhotoAdapter}.
+ *
+ * Nothing is done per photo up front, and the album need not be open: the adapter asks
+ * the {@link AlbumRepository} for the photos a page at a time as cells are bound, which
+ * reads them from the store in the background if the album is not in memory, and keeps
+ * only the most recently used pages. A cell stays empty until its page arrives, and then
+ * holds one thumbnail decoded at the thumbnail size. After a library change the pages
+ * are fetched again; until then the cells keep showing what they showed.
+ */
+public class PhotoGridAdapter extends RecyclerView.Adapter<PhotoGridAdapter.ViewHolder> {
+    /** Photos fetched from the repository at a time. */
+    static final int PAGE_SIZE = 256;
+    // Pages kept; enough for a few screens of cells either way
+    private static final int MAX_PAGES = 8;
+
+    private final Context context;
+    private final Album album;
+    private final AlbumRepository repository;
+    private final ImageLoader imageLoader;
+    private final int thumbnailSize;
+    private final PhotoAdapter.OnPhotoClickListener clickListener;
+    private final PathIds ids = new PathIds();
+    private final Map<Integer, Page> pages = new LinkedHashMap<Integer, Page>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+    private final Set<Integer> requested = new HashSet<>(); // pages being fetched
+    private int generation; // counts refreshes; pages fetched before the last one are stale
+    private boolean fetching; // a page that arrives during the request is not announced
+    private int count;
+
+    public PhotoGridAdapter(Context context, Album album, PhotoAdapter.OnPhotoClickListener clickListener) {
+        this.context = context;
+        this.album = album;
+        this.clickListener = clickListener;
+        this.repository = AlbumRepository.getInstance(context);
+        this.imageLoader = ImageLoader.getInstance(context);
+        this.thumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+        this.count = album.getPhotoCount();
+        setHasStableIds(true);
+    }
+
+    /**
+     * Number of columns that fit the given width.
+     */
+    public static int columnsFor(Context context, int width) {
+        int cell = context.getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+        return Math.max(1, width / cell);
+    }
+
+    /**
+     * Fetches the pages again after the album changed, keeping the old ones on screen
+     * until they arrive.
+     */
+    public void refresh() {
+        generation++;
+        requested.clear();
+        count = album.getPhotoCount();
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getItemCount() {
+        return count;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        Photo photo = getPhoto(position);
+        return photo != null ? ids.idFor(photo.getFilePath()) : RecyclerView.NO_ID;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(context).inflate(R.layout.item_photo_grid, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        holder.photo = getPhoto(position);
+        if (holder.photo != null) {
+            imageLoader.loadThumbnail(holder.photo.getFilePath(), thumbnailSize, holder.image);
+        } else {
+            imageLoader.cancel(holder.image);
+        }
+    }
+
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        // Off-screen cells neither keep their bitmap nor wait for one
+        imageLoader.cancel(holder.image);
+        holder.image.setImageBitmap(null);
+        holder.photo = null;
+    }
+
+    // Null until the photo's page has been fetched, or if the album shrank since the count was taken
+    private Photo getPhoto(int position) {
+        int index = position / PAGE_SIZE;
+        Page page = pages.get(index);
+        if (page == null || page.generation != generation) {
+            fetch(index);
+            // A stale page is shown until the fresh one arrives
+            page = pages.get(index);
+            if (page == null) return null;
+        }
+        int offset = position % PAGE_SIZE;
+        return offset < page.photos.size() ? page.photos.get(offset) : null;
+    }
+
+    private void fetch(int index) {
+        if (!requested.add(index)) return;
+        int fetchedFor = generation;
+        fetching = true;
+        repository.getPhotos(album, index * PAGE_SIZE, PAGE_SIZE, photos -> {
+            if (fetchedFor != generation) return;
+            requested.remove(index);
+            pages.put(index, new Page(photos, fetchedFor));
+            int start = index * PAGE_SIZE;
+            if (!fetching && start < count) {
+                notifyItemRangeChanged(start, Math.min(PAGE_SIZE, count - start));
+            }
+        });
+        fetching = false;
+    }
+
+    /**
+     * Photos fetched for one page of cells, and the refresh they were fetched after.
+     */
+    private static class Page {
+        final List<Photo> photos;
+        final int generation;
+
+        Page(List<Photo> photos, int generation) {
+            this.photos = photos;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * One grid cell, and the photo it currently shows.
+     */
+    class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView image;
+        Photo photo;
+
+        ViewHolder(View view) {
+            super(view);
+            image = view.findViewById(R.id.photoImage);
+            view.setOnClickListener(v -> {
+                if (photo != null) clickListener.onPhotoClick(photo);
+            });
+        }
+    }
+}
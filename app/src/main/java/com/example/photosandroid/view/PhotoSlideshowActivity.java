@@ -1,25 +1,28 @@
 package com.example.photosandroid.view;
 
-import android.net.Uri;
 import android.os.Bundle;
 import android.widget.*;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.example.photosandroid.R;
+import com.example.photosandroid.image.BitmapPool;
+import com.example.photosandroid.image.SlideshowPlayer;
+import com.example.photosandroid.image.SlideshowPrefetcher;
 import com.example.photosandroid.model.Album;
-import com.example.photosandroid.model.FileStorage;
+import com.example.photosandroid.model.AlbumRepository;
 import com.example.photosandroid.model.Photo;
-import com.example.photosandroid.model.Tag;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public class PhotoSlideshowActivity extends AppCompatActivity {
 
     private ImageView imageView;
     private TextView captionText;
-    private Button prevButton, nextButton;
+    private TextView statsText;
+    private Button prevButton, nextButton, playButton;
 
+    private SlideshowPrefetcher prefetcher; // for stepping through by hand; null while playing
+    private SlideshowPlayer player;         // for auto-play
     private List<Photo> photos;
     private int currentIndex = 0;
 
@@ -33,6 +36,8 @@ public class PhotoSlideshowActivity extends AppCompatActivity {
         captionText = findViewById(R.id.slideshowText);
         prevButton = findViewById(R.id.prevButton);
         nextButton = findViewById(R.id.nextButton);
+        playButton = findViewById(R.id.playButton);
+        statsText = findViewById(R.id.slideshowStats);
 
         // Get album name from intent
         String albumName = getIntent().getStringExtra("albumName");
@@ -43,17 +48,20 @@ public class PhotoSlideshowActivity extends AppCompatActivity {
             return;
         }
 
-        // Load albums and find the one with matching name
-        ArrayList<Album> albums = FileStorage.loadAlbums(this);
-        if (albums == null) albums = new ArrayList<>();
+        // The album list may still be loading if the process was restarted on this screen
+        AlbumRepository repository = AlbumRepository.getInstance(this);
+        repository.whenLoaded(() -> showAlbum(repository, albumName));
+    }
 
-        Album selectedAlbum = null;
-        for (Album a : albums) {
-            if (a.getName().equals(albumName)) {
-                selectedAlbum = a;
-                break;
-            }
-        }
+    /**
+     * Opens the named album once the library is loaded.
+     */
+    private void showAlbum(AlbumRepository repository, String albumName) {
+        if (isDestroyed()) return;
+
+        // Find the album in the shared library; its photos are usually still resident from
+        // AlbumActivity, and are otherwise read in the background
+        Album selectedAlbum = repository.findAlbum(albumName);
 
         if (selectedAlbum == null) {
             Toast.makeText(this, "Album not found", Toast.LENGTH_LONG).show();
@@ -61,6 +69,16 @@ public class PhotoSlideshowActivity extends AppCompatActivity {
             return;
         }
 
+        captionText.setText("Loading...");
+        repository.openAlbum(selectedAlbum, () -> startSlideshow(selectedAlbum));
+    }
+
+    /**
+     * Starts the slideshow once the album's photos are in memory.
+     */
+    private void startSlideshow(Album selectedAlbum) {
+        if (isDestroyed()) return;
+
         // Get photos in album
         photos = selectedAlbum.getPhotos();
 
@@ -70,19 +88,72 @@ public class PhotoSlideshowActivity extends AppCompatActivity {
             return;
         }
 
+        // Captions are built in the background, so showing a photo only looks its caption up
+        PhotoCaption.prefetch(photos);
+
+        // Decodes the photos around the current one ahead of time
+        prefetcher = new SlideshowPrefetcher(this, photos, imageView);
+
+        // Auto-play decodes one photo ahead into two bitmaps it reuses
+        player = new SlideshowPlayer(this, photos, imageView, index -> {
+            currentIndex = index;
+            captionText.setText(PhotoCaption.of(photos.get(index)).text);
+            showStats();
+        });
+
         // Display first photo
         updateSlideshow();
 
-        // Set navigation button actions
+        // Set navigation button actions; stepping by hand stops auto-play
         prevButton.setOnClickListener(v -> {
+            pause();
             currentIndex = (currentIndex - 1 + photos.size()) % photos.size();
             updateSlideshow();
         });
 
         nextButton.setOnClickListener(v -> {
+            pause();
             currentIndex = (currentIndex + 1) % photos.size();
             updateSlideshow();
         });
+
+        playButton.setOnClickListener(v -> {
+            if (player.isPlaying()) {
+                pause();
+            } else {
+                play();
+            }
+        });
+    }
+
+    /**
+     * Start auto-play from the current photo. The prefetched window is dropped, so only
+     * the player's bitmaps are kept while it runs.
+     */
+    private void play() {
+        if (prefetcher != null) {
+            prefetcher.release();
+            prefetcher = null;
+        }
+        player.start(currentIndex);
+        playButton.setText("⏸ Pause");
+    }
+
+    /**
+     * Stop auto-play, leaving the current photo on screen.
+     */
+    private void pause() {
+        if (!player.isPlaying()) return;
+        currentIndex = player.stop();
+        showStats();
+        playButton.setText("▶ Play");
+    }
+
+    /**
+     * Show how auto-play is keeping up, and how much it reuses bitmaps.
+     */
+    private void showStats() {
+        statsText.setText(player.getStats() + "\n" + BitmapPool.getInstance(this));
     }
 
     /**
@@ -90,14 +161,30 @@ public class PhotoSlideshowActivity extends AppCompatActivity {
      */
     private void updateSlideshow() {
         Photo currentPhoto = photos.get(currentIndex);
-        imageView.setImageURI(Uri.parse(currentPhoto.getFilePath()));
+        if (prefetcher == null) {
+            prefetcher = new SlideshowPrefetcher(this, photos, imageView);
+        }
+        prefetcher.show(currentIndex);
 
-        StringBuilder tagText = new StringBuilder();
-        for (Tag tag : currentPhoto.getTags()) {
-            tagText.append(tag.toString()).append("\n");
+        captionText.setText(PhotoCaption.of(currentPhoto).text);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (player != null) {
+            pause();
         }
+    }
 
-        String filename = Uri.parse(currentPhoto.getFilePath()).getLastPathSegment();
-        captionText.setText(filename + "\n" + tagText);
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (prefetcher != null) {
+            prefetcher.release();
+        }
+        if (player != null) {
+            player.release();
+        }
     }
 }
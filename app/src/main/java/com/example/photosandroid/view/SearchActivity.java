@@ -1,28 +1,52 @@
 package com.example.photosandroid.view;
 
 import android.app.AlertDialog;
-import android.content.Intent;
-import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.widget.*;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import com.example.photosandroid.R;
-import com.example.photosandroid.model.Album;
-import com.example.photosandroid.model.FileStorage;
+import com.example.photosandroid.image.ImageLoader;
+import com.example.photosandroid.model.AlbumRepository;
 import com.example.photosandroid.model.Photo;
+import com.example.photosandroid.model.SearchCursor;
 import com.example.photosandroid.model.Tag;
+import com.example.photosandroid.model.TagQuery;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Activity for searching photos by tag pairs.
+ * Activity for searching photos by tag pairs or a typed query.
+ *
+ * Results follow the input as the user types: each edit restarts a short debounce
+ * timer, and when it fires the query runs on a background thread. Starting a search
+ * cancels the one still running, and a result is only shown if no newer search has
+ * started since, so the list never flickers back to an older query. A search yields a
+ * {@link SearchCursor}; its first page of results is read along with it and shown with
+ * the count, and later pages are read in the background as the list reaches them.
  */
 public class SearchActivity extends AppCompatActivity {
+    // Pause in typing before a search starts
+    private static final long DEBOUNCE_MS = 250;
+    // Results read from the cursor at a time, and pages of them kept
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_PAGES = 20;
 
     private Spinner spinnerTag1;
     private AutoCompleteTextView valueInput1;
@@ -30,14 +54,21 @@ public class SearchActivity extends AppCompatActivity {
     private AutoCompleteTextView valueInput2;
     private RadioButton andRadio;
     private RadioButton orRadio;
+    private EditText queryInput;
     private Button searchButton;
-    private ListView resultsListView;
+    private TextView resultCountText;
+    private RecyclerView resultsListView;
 
-    // All albums loaded from storage
-    private ArrayList<Album> albums;
-    // Suggestions sets for person and location tags
-    private Set<String> personTags;
-    private Set<String> locationTags;
+    // Shared library; its tag index answers the searches
+    private AlbumRepository repository;
+    private SearchResultAdapter resultAdapter;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable debouncedSearch = this::startSearch;
+    private ExecutorService searchExecutor;
+    private Future<?> runningSearch;
+    // Bumped for every search started; only the latest one may publish (main thread only)
+    private int searchGeneration;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,9 +81,18 @@ public class SearchActivity extends AppCompatActivity {
         valueInput2 = findViewById(R.id.valueInput2);
         andRadio = findViewById(R.id.andRadio);
         orRadio = findViewById(R.id.orRadio);
+        queryInput = findViewById(R.id.queryInput);
         searchButton = findViewById(R.id.searchButton);
+        resultCountText = findViewById(R.id.resultCountText);
         resultsListView = findViewById(R.id.resultsListView);
 
+        // One search at a time; a superseded search is interrupted rather than queued behind
+        searchExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "search");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         // Prepare tag type choices for spinners (person or location)
         ArrayAdapter<CharSequence> typeAdapter = new ArrayAdapter<>(this,
                 android.R.layout.simple_spinner_item,
@@ -61,122 +101,163 @@ public class SearchActivity extends AppCompatActivity {
         spinnerTag1.setAdapter(typeAdapter);
         spinnerTag2.setAdapter(typeAdapter);
 
-        // Load all albums and gather all existing tag values for suggestions
-        albums = FileStorage.loadAlbums(this);
-        if (albums == null) {
-            albums = new ArrayList<>();
-        }
-        personTags = new HashSet<>();
-        locationTags = new HashSet<>();
-        for (Album album : albums) {
-            for (Photo photo : album.getPhotos()) {
-                for (Tag tag : photo.getTags()) {
-                    if (tag.getName().equalsIgnoreCase("person")) {
-                        personTags.add(tag.getValue());
-                    } else if (tag.getName().equalsIgnoreCase("location")) {
-                        locationTags.add(tag.getValue());
-                    }
-                }
-            }
-        }
-
-        // Set up adapters for auto-complete suggestions
-        ArrayAdapter<String> personAdapter = new ArrayAdapter<>(this,
-                android.R.layout.simple_list_item_1, new ArrayList<>(personTags));
-        ArrayAdapter<String> locationAdapter = new ArrayAdapter<>(this,
-                android.R.layout.simple_list_item_1, new ArrayList<>(locationTags));
+        // Suggestions come from the library-wide tag counts; no albums are loaded here
+        repository = AlbumRepository.getInstance(this);
+        TagSuggestionAdapter suggestions1 =
+                new TagSuggestionAdapter(this, repository.getTagCompletions(), "person");
+        TagSuggestionAdapter suggestions2 =
+                new TagSuggestionAdapter(this, repository.getTagCompletions(), "person");
+        valueInput1.setAdapter(suggestions1);
+        valueInput2.setAdapter(suggestions2);
 
-        // Configure auto-complete text fields to use appropriate suggestions based on selected tag type
+        // Suggest values of the tag type selected next to each field
         spinnerTag1.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                if (spinnerTag1.getSelectedItem().toString().equals("person")) {
-                    valueInput1.setAdapter(personAdapter);
-                } else {
-                    valueInput1.setAdapter(locationAdapter);
-                }
+                suggestions1.setTagName(spinnerTag1.getSelectedItem().toString());
+                scheduleSearch();
             }
             @Override public void onNothingSelected(AdapterView<?> parent) {}
         });
         spinnerTag2.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                if (spinnerTag2.getSelectedItem().toString().equals("person")) {
-                    valueInput2.setAdapter(personAdapter);
-                } else {
-                    valueInput2.setAdapter(locationAdapter);
-                }
+                suggestions2.setTagName(spinnerTag2.getSelectedItem().toString());
+                scheduleSearch();
             }
             @Override public void onNothingSelected(AdapterView<?> parent) {}
         });
-        // Set default adapters (both start as "person" by default)
-        valueInput1.setAdapter(personAdapter);
-        valueInput2.setAdapter(personAdapter);
 
-        // Handle Search button click
-        searchButton.setOnClickListener(v -> performSearch());
+        // Search again whenever the input changes
+        TextWatcher searchOnEdit = new TextWatcher() {
+            @Override public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+            @Override public void onTextChanged(CharSequence s, int start, int before, int count) {}
+            @Override
+            public void afterTextChanged(Editable s) {
+                scheduleSearch();
+            }
+        };
+        valueInput1.addTextChangedListener(searchOnEdit);
+        valueInput2.addTextChangedListener(searchOnEdit);
+        queryInput.addTextChangedListener(searchOnEdit);
+        andRadio.setOnCheckedChangeListener((button, checked) -> scheduleSearch());
+        orRadio.setOnCheckedChangeListener((button, checked) -> scheduleSearch());
+
+        // The result list is reused; searches replace its contents
+        // Clicking a result shows the photo and its tags in a dialog
+        resultAdapter = new SearchResultAdapter(this);
+        resultsListView.setLayoutManager(new LinearLayoutManager(this));
+        resultsListView.setAdapter(resultAdapter);
+
+        // The Search button skips the debounce
+        searchButton.setOnClickListener(v -> startSearch());
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mainHandler.removeCallbacks(debouncedSearch);
+        searchGeneration++;
+        searchExecutor.shutdownNow();
     }
 
     /**
-     * Perform the photo search based on the selected tag(s) and mode.
+     * Restarts the debounce timer; the search runs once the input has been still for a moment.
      */
-    private void performSearch() {
-        String type1 = spinnerTag1.getSelectedItem().toString();
-        String value1 = valueInput1.getText().toString().trim();
-        String type2 = spinnerTag2.getSelectedItem().toString();
-        String value2 = valueInput2.getText().toString().trim();
-        boolean useAnd = andRadio.isChecked();
+    private void scheduleSearch() {
+        mainHandler.removeCallbacks(debouncedSearch);
+        mainHandler.postDelayed(debouncedSearch, DEBOUNCE_MS);
+    }
 
-        if (value1.isEmpty() && value2.isEmpty()) {
-            Toast.makeText(this, "Please enter at least one tag to search", Toast.LENGTH_SHORT).show();
+    /**
+     * Perform the photo search: the typed query if there is one, otherwise the selected
+     * tag(s) and mode. Runs in the background; whatever search was running is cancelled.
+     */
+    private void startSearch() {
+        mainHandler.removeCallbacks(debouncedSearch);
+        TagQuery query;
+        try {
+            query = buildQuery();
+        } catch (ParseException e) {
+            // Usually a query still being typed; keep the last results until it parses
+            resultCountText.setText("Invalid query: " + e.getMessage());
             return;
         }
 
-        // Gather matching photos across all albums
-        List<PhotoResult> results = new ArrayList<>();
-        for (Album album : albums) {
-            for (Photo photo : album.getPhotos()) {
-                // Check single-tag cases
-                if (value2.isEmpty() && !value1.isEmpty()) {
-                    if (photo.hasTag(type1, value1)) {
-                        results.add(new PhotoResult(album.getName(), photo));
-                    }
-                } else if (value1.isEmpty() && !value2.isEmpty()) {
-                    if (photo.hasTag(type2, value2)) {
-                        results.add(new PhotoResult(album.getName(), photo));
-                    }
-                }
-                // Check two-tag cases (AND vs OR)
-                else if (!value1.isEmpty() && !value2.isEmpty()) {
-                    boolean match1 = photo.hasTag(type1, value1);
-                    boolean match2 = photo.hasTag(type2, value2);
-                    if (useAnd) {
-                        if (match1 && match2) {
-                            results.add(new PhotoResult(album.getName(), photo));
-                        }
-                    } else {
-                        if (match1 || match2) {
-                            results.add(new PhotoResult(album.getName(), photo));
-                        }
-                    }
-                }
+        int generation = ++searchGeneration;
+        if (runningSearch != null) {
+            runningSearch.cancel(true);
+            runningSearch = null;
+        }
+        if (query == null) {
+            showResults(generation, null, null);
+            resultCountText.setText("Enter a tag to search");
+            return;
+        }
+
+        resultCountText.setText("Searching\u2026");
+        runningSearch = searchExecutor.submit(() -> {
+            SearchCursor cursor = repository.search(query);
+            // null means the search was interrupted by a newer one
+            if (cursor != null) {
+                List<PhotoResult> firstPage = readPage(cursor, 0);
+                mainHandler.post(() -> showResults(generation, cursor, firstPage));
             }
+        });
+    }
+
+    /**
+     * Reads one page of results, with their display text. Runs in the background.
+     */
+    private static List<PhotoResult> readPage(SearchCursor cursor, int page) {
+        List<PhotoResult> results = new ArrayList<>(PAGE_SIZE);
+        cursor.read(page * PAGE_SIZE, PAGE_SIZE,
+                (photo, albumNames) -> results.add(new PhotoResult(String.join(", ", albumNames), photo)));
+        // Still in the background: the rows only need their text assigned
+        for (PhotoResult result : results) {
+            result.describe();
+        }
+        return results;
+    }
+
+    /**
+     * Replaces the listed results, unless a newer search has started since this one.
+     * A null cursor clears the list.
+     */
+    private void showResults(int generation, SearchCursor cursor, List<PhotoResult> firstPage) {
+        if (generation != searchGeneration) return;
+        runningSearch = null;
+        resultAdapter.setCursor(cursor, firstPage);
+        if (cursor != null) {
+            int count = cursor.getCount();
+            resultCountText.setText(count == 0 ? "No photos found" : count + " photos found");
         }
+    }
 
-        // Display results in the ListView
-        SearchResultAdapter adapter = new SearchResultAdapter(this, results);
-        resultsListView.setAdapter(adapter);
-        if (results.isEmpty()) {
-            Toast.makeText(this, "No photos found", Toast.LENGTH_SHORT).show();
-        } else {
-            Toast.makeText(this, results.size() + " photos found", Toast.LENGTH_SHORT).show();
+    /**
+     * Builds the query from the query box, or else from the two tag fields.
+     * @return the query, or null if nothing was entered
+     */
+    private TagQuery buildQuery() throws ParseException {
+        String text = queryInput.getText().toString().trim();
+        if (!text.isEmpty()) {
+            return TagQuery.parse(text);
         }
 
-        // Allow clicking a result to view the photo and its tags in a dialog
-        resultsListView.setOnItemClickListener((parent, view, position, id) -> {
-            PhotoResult selected = results.get(position);
-            showPhotoDialog(selected);
-        });
+        String type1 = spinnerTag1.getSelectedItem().toString();
+        String value1 = valueInput1.getText().toString().trim();
+        String type2 = spinnerTag2.getSelectedItem().toString();
+        String value2 = valueInput2.getText().toString().trim();
+        if (value1.isEmpty() && value2.isEmpty()) {
+            return null;
+        } else if (value2.isEmpty()) {
+            return TagQuery.tag(type1, value1);
+        } else if (value1.isEmpty()) {
+            return TagQuery.tag(type2, value2);
+        }
+        TagQuery tag1 = TagQuery.tag(type1, value1);
+        TagQuery tag2 = TagQuery.tag(type2, value2);
+        return andRadio.isChecked() ? TagQuery.and(tag1, tag2) : TagQuery.or(tag1, tag2);
     }
 
     /**
@@ -184,7 +265,7 @@ public class SearchActivity extends AppCompatActivity {
      */
     private void showPhotoDialog(PhotoResult result) {
         ImageView imageView = new ImageView(this);
-        imageView.setImageURI(Uri.parse(result.photo.getFilePath()));
+        ImageLoader.getInstance(this).loadScreenImage(result.photo.getFilePath(), imageView);
         imageView.setAdjustViewBounds(true);
         imageView.setPadding(10, 10, 10, 10);
 
@@ -211,15 +292,20 @@ public class SearchActivity extends AppCompatActivity {
     }
 
     /**
-     * Helper class to hold a photo and its album name for search results.
+     * Helper class to hold a photo and the names of its albums for search results.
      */
     private static class PhotoResult {
-        String albumName;
-        Photo photo;
+        final String albumName;
+        final Photo photo;
+        String text; // album names, file name and tags, set by describe()
         PhotoResult(String albumName, Photo photo) {
             this.albumName = albumName;
             this.photo = photo;
         }
+        void describe() {
+            PhotoCaption caption = PhotoCaption.of(photo);
+            text = "Album: " + albumName + "\n" + caption.text;
+        }
         String getPhotoFileName() {
             // Extract just the file name from the photo's file path
             String path = photo.getFilePath();
@@ -229,34 +315,105 @@ public class SearchActivity extends AppCompatActivity {
     }
 
     /**
-     * Custom ArrayAdapter for displaying search results (photo thumbnail and info).
+     * RecyclerView adapter for displaying search results (photo thumbnail and info).
+     * Rows are read from the search's cursor a page at a time, in the background, when
+     * the list first binds a row of the page; until then the row shows only the thumbnail.
+     * Only recently used pages are kept.
      */
-    private class SearchResultAdapter extends ArrayAdapter<PhotoResult> {
-        public SearchResultAdapter(SearchActivity context, List<PhotoResult> results) {
-            super(context, 0, results);
+    private class SearchResultAdapter extends RecyclerView.Adapter<ResultViewHolder> {
+        private final ImageLoader imageLoader;
+        private final int thumbnailSize;
+        private final PathIds ids = new PathIds();
+        private final Map<Integer, List<PhotoResult>> pages =
+                new LinkedHashMap<Integer, List<PhotoResult>>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, List<PhotoResult>> eldest) {
+                        return size() > MAX_PAGES;
+                    }
+                };
+        private final Set<Integer> requested = new HashSet<>();
+        private SearchCursor cursor;
+
+        SearchResultAdapter(SearchActivity context) {
+            imageLoader = ImageLoader.getInstance(context);
+            thumbnailSize = getResources().getDimensionPixelSize(R.dimen.thumbnail_size);
+            setHasStableIds(true);
         }
-        @Override
-        public View getView(int position, View convertView, ViewGroup parent) {
-            PhotoResult result = getItem(position);
-            if (convertView == null) {
-                convertView = getLayoutInflater().inflate(R.layout.item_search_photo, parent, false);
+
+        void setCursor(SearchCursor cursor, List<PhotoResult> firstPage) {
+            this.cursor = cursor;
+            pages.clear();
+            requested.clear();
+            if (firstPage != null) {
+                pages.put(0, firstPage);
             }
-            ImageView image = convertView.findViewById(R.id.photoImage);
-            TextView infoText = convertView.findViewById(R.id.searchText);
+            // Stable ids let the list keep the rows of photos found again
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getItemCount() {
+            return cursor != null ? cursor.getCount() : 0;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return ids.idFor(cursor.getPhoto(position).getFilePath());
+        }
+
+        @Override
+        public ResultViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return new ResultViewHolder(getLayoutInflater().inflate(R.layout.item_search_photo, parent, false));
+        }
+
+        @Override
+        public void onBindViewHolder(ResultViewHolder holder, int position) {
+            Photo photo = cursor.getPhoto(position);
+            List<PhotoResult> page = pages.get(position / PAGE_SIZE);
+            PhotoResult result = page != null ? page.get(position % PAGE_SIZE) : null;
+            holder.result = result;
             // Set thumbnail image
-            image.setImageURI(Uri.parse(result.photo.getFilePath()));
-            // Build info text: Album name, file name, and tags
-            StringBuilder infoBuilder = new StringBuilder();
-            infoBuilder.append("Album: ").append(result.albumName);
-            String fileName = Uri.parse(result.photo.getFilePath()).getLastPathSegment();
-            if (fileName != null) {
-                infoBuilder.append("\n").append(fileName);
+            imageLoader.loadThumbnail(photo.getFilePath(), thumbnailSize, holder.image);
+            if (result != null) {
+                // Info text (album name, file name, and tags) was built with the page
+                holder.infoText.setText(result.text);
+            } else {
+                holder.infoText.setText("");
+                requestPage(position / PAGE_SIZE);
             }
-            for (Tag tag : result.photo.getTags()) {
-                infoBuilder.append("\n").append(tag.toString());
-            }
-            infoText.setText(infoBuilder.toString());
-            return convertView;
+        }
+
+        private void requestPage(int page) {
+            if (!requested.add(page)) return;
+            SearchCursor requestedFrom = cursor;
+            PhotoCaption.BUILDER.execute(() -> {
+                List<PhotoResult> results = readPage(requestedFrom, page);
+                mainHandler.post(() -> {
+                    if (cursor != requestedFrom) return;
+                    requested.remove(page);
+                    pages.put(page, results);
+                    notifyItemRangeChanged(page * PAGE_SIZE, results.size());
+                });
+            });
+        }
+    }
+
+    /**
+     * The views of one search result row.
+     */
+    private class ResultViewHolder extends RecyclerView.ViewHolder {
+        final ImageView image;
+        final TextView infoText;
+        PhotoResult result;
+
+        ResultViewHolder(View view) {
+            super(view);
+            image = view.findViewById(R.id.photoImage);
+            infoText = view.findViewById(R.id.searchText);
+            // Allow clicking a result to view the photo and its tags in a dialog
+            view.setOnClickListener(v -> {
+                if (result != null) showPhotoDialog(result);
+            });
         }
     }
 }
@@ -0,0 +1,96 @@
+package com.example.photosandroid.view;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+import com.example.photosandroid.model.TagCompletions;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Suggests values of one tag name for an AutoCompleteTextView, most used first,
+ * by asking {@link TagCompletions} instead of filtering a list of every value.
+ */
+public class TagSuggestionAdapter extends BaseAdapter implements Filterable {
+    private final Context context;
+    private final TagCompletions completions;
+    private volatile String tagName; // read by the filter thread
+    private List<String> suggestions = Collections.emptyList();
+
+    public TagSuggestionAdapter(Context context, TagCompletions completions, String tagName) {
+        this.context = context;
+        this.completions = completions;
+        this.tagName = tagName;
+    }
+
+    /**
+     * Switches the tag whose values are suggested, e.g. when a spinner selection changes.
+     */
+    public void setTagName(String tagName) {
+        this.tagName = tagName;
+        suggestions = Collections.emptyList();
+        notifyDataSetInvalidated();
+    }
+
+    @Override
+    public int getCount() {
+        return suggestions.size();
+    }
+
+    @Override
+    public String getItem(int position) {
+        return suggestions.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (convertView == null) {
+            convertView = LayoutInflater.from(context)
+                    .inflate(android.R.layout.simple_dropdown_item_1line, parent, false);
+        }
+        ((TextView) convertView).setText(getItem(position));
+        return convertView;
+    }
+
+    @Override
+    public Filter getFilter() {
+        return new Filter() {
+            // Runs on the filter thread
+            @Override
+            protected FilterResults performFiltering(CharSequence constraint) {
+                FilterResults results = new FilterResults();
+                if (constraint != null) {
+                    List<String> values = completions.complete(tagName, constraint.toString());
+                    results.values = values;
+                    results.count = values.size();
+                }
+                return results;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            protected void publishResults(CharSequence constraint, FilterResults results) {
+                suggestions = results.values != null
+                        ? (List<String>) results.values
+                        : Collections.<String>emptyList();
+                if (results.count > 0) {
+                    notifyDataSetChanged();
+                } else {
+                    notifyDataSetInvalidated();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.photosandroid.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link Album} keeps display order, path lookups and statistics in step.
+ */
+public class AlbumTest {
+
+    private static Photo photo(int i) {
+        return new Photo("content://media/image%3A" + i, i);
+    }
+
+    @Test
+    public void orderAndMembershipSurviveChanges() {
+        Album album = new Album("A");
+        List<Photo> view = album.getPhotos();
+        List<Photo> expected = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            album.addPhoto(photo(i));
+            expected.add(photo(i));
+        }
+        album.addPhoto(photo(3)); // same path, ignored
+        assertEquals(expected, view);
+
+        album.removePhoto(photo(0));
+        album.removePhoto(photo(5));
+        expected.remove(photo(0));
+        expected.remove(photo(5));
+        album.addPhoto(photo(0));
+        expected.add(photo(0));
+        assertEquals(expected, view);
+        assertEquals(expected.get(0).getFilePath(), album.getCoverPath());
+        assertTrue(album.containsPhoto("content://media/image%3A0"));
+        assertFalse(album.containsPhoto(photo(5)));
+        assertSame(view.get(view.size() - 1), album.getPhoto(photo(0).getFilePath()));
+        assertEquals(9, album.getPhotoCount());
+    }
+
+    @Test
+    public void largeImportKeepsLookupsInStep() {
+        Album album = new Album("Big");
+        int n = 200000;
+        for (int i = 0; i < n; i++) {
+            Photo photo = photo(i);
+            if (!album.containsPhoto(photo)) album.addPhoto(photo);
+        }
+        for (int i = 0; i < n; i += 2) {
+            album.removePhoto(photo(i));
+        }
+        List<Photo> photos = album.getPhotos();
+        assertEquals(n / 2, photos.size());
+        assertEquals(n / 2, album.getPhotoCount());
+        for (int i = 0; i < n; i++) {
+            String path = photo(i).getFilePath();
+            if (i % 2 == 0) {
+                assertFalse(album.containsPhoto(path));
+                assertNull(album.getPhoto(path));
+            } else {
+                assertSame(photos.get(i / 2), album.getPhoto(path));
+                assertEquals(path, photos.get(i / 2).getFilePath());
+            }
+        }
+        assertEquals(photo(1).getFilePath(), album.getCoverPath());
+    }
+
+    @Test
+    public void statsFollowChangesAndSurviveTheManifest() throws IOException {
+        Album album = new Album("A");
+        List<Album> albums = Collections.singletonList(album);
+        for (int i = 1; i <= 10; i++) {
+            Photo photo = photo(i);
+            photo.addTag("person", i % 2 == 0 ? "even" : "odd");
+            album.addPhoto(photo);
+        }
+        Photo first = album.getPhotos().get(0);
+        first.addTag("location", "home");
+        Album.tagChanged(albums, first, "location", "home", 1);
+        first.removeTag("person", "odd");
+        Album.tagChanged(albums, first, "person", "odd", -1);
+        Photo second = album.getPhotos().get(1);
+        second.addTag("person", "two");
+        Album.tagChanged(albums, second, "person", "two", 1);
+        album.removePhoto(photo(10));
+
+        AlbumStats stats = album.getStats();
+        assertEquals(9, stats.getPhotoCount());
+        assertEquals(1, stats.getEarliestDate());
+        assertEquals(9, stats.getLatestDate());
+        assertEquals(countTags(album), stats.getTagCounts());
+        // 4 each; ties go by name
+        assertEquals(new Tag("person", "even"), stats.getTopTags(1).get(0));
+        assertSame(stats, album.getStats());
+
+        TagCompletions completions = new TagCompletions();
+        completions.addAll(stats.getTagCounts(), 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LibraryCodec.encodeManifest(albums, completions.counts(), out);
+        TagCompletions readCompletions = new TagCompletions();
+        Album decoded = LibraryCodec.decodeManifest(new ByteArrayInputStream(out.toByteArray()), readCompletions)
+                .get(0);
+        assertFalse(decoded.isLoaded());
+        AlbumStats read = decoded.getStats();
+        assertEquals(stats.getPhotoCount(), read.getPhotoCount());
+        assertEquals(stats.getCoverPath(), read.getCoverPath());
+        assertEquals(stats.getEarliestDate(), read.getEarliestDate());
+        assertEquals(stats.getLatestDate(), read.getLatestDate());
+        // The manifest keeps the most common tags per album, and every tag of the library
+        assertEquals(stats.getTopTags(AlbumStats.TOP_TAGS), read.getTopTags(AlbumStats.TOP_TAGS));
+        assertEquals(AlbumStats.TOP_TAGS, read.getTagCounts().size());
+        assertEquals(stats.getTagCounts(), readCompletions.counts());
+    }
+
+    @Test
+    public void dateRangeFollowsRemovalsAtBothEnds() {
+        Album album = new Album("A");
+        for (int i = 0; i < 100; i++) {
+            album.addPhoto(photo(i % 2 == 0 ? i : 100 - i));
+        }
+        assertEquals(10, album.getPhotosBetween(0, 10).size());
+        for (int i = 0; i < 40; i++) {
+            album.removePhoto(photo(i));
+            album.removePhoto(photo(99 - i));
+            AlbumStats stats = album.getStats();
+            assertEquals(i + 1, stats.getEarliestDate());
+            assertEquals(98 - i, stats.getLatestDate());
+            assertEquals(Math.max(0, 9 - i), album.getPhotosBetween(0, 10).size());
+        }
+        for (int i = 40; i < 60; i++) {
+            album.removePhoto(photo(i));
+        }
+        assertEquals(0, album.getStats().getEarliestDate());
+        assertTrue(album.getPhotosBetween(0, 100).isEmpty());
+    }
+
+    @Test
+    public void tagEditsReachUnloadedAlbumsThroughTheirPhotos() {
+        Album a = new Album("A");
+        a.setId(1);
+        Album b = new Album("B");
+        b.setId(2);
+        List<Album> albums = new ArrayList<>();
+        albums.add(a);
+        albums.add(b);
+        Photo shared = photo(1);
+        a.addPhoto(shared);
+        b.addPhoto(shared);
+        b.addPhoto(photo(2));
+        assertEquals(2, shared.getAlbumCount());
+        assertTrue(shared.isInAlbum(2));
+        b.unload();
+
+        shared.addTag("person", "alice");
+        Album.tagChanged(albums, shared, "person", "alice", 1);
+        assertEquals(Integer.valueOf(1), a.getTagCounts().get(new Tag("person", "alice")));
+        assertEquals(Integer.valueOf(1), b.getTagCounts().get(new Tag("person", "alice")));
+
+        // Once the top tags are full, a new tag may have had photos the manifest left out
+        for (String value : new String[] {"bob", "carol", "dave"}) {
+            shared.addTag("person", value);
+            Album.tagChanged(albums, shared, "person", value, 1);
+        }
+        assertEquals(AlbumStats.TOP_TAGS, b.getTagCounts().size());
+        assertEquals(4, a.getTagCounts().size());
+
+        shared.removeTag("person", "alice");
+        Album.tagChanged(albums, shared, "person", "alice", -1);
+        assertNull(b.getTagCounts().get(new Tag("person", "alice")));
+        assertEquals(2, b.getPhotoCount());
+
+        b.adoptPhotos(Collections.singletonList(shared));
+        a.removePhoto(shared);
+        assertEquals(1, shared.getAlbumCount());
+        assertFalse(shared.isInAlbum(1));
+    }
+
+    private static Map<Tag, Integer> countTags(Album album) {
+        Map<Tag, Integer> counts = new HashMap<>();
+        for (Photo photo : album.getPhotos()) {
+            for (Tag tag : photo.getTags()) {
+                counts.merge(tag, 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+}
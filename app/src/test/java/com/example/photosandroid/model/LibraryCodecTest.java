@@ -0,0 +1,217 @@
+package com.example.photosandroid.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trip and size checks for {@link LibraryCodec}.
+ */
+public class LibraryCodecTest {
+
+    private static ArrayList<Album> syntheticLibrary(int albumCount, int photosPerAlbum) {
+        String[] people = {"alice", "bob", "carol", "dave", "erin", "frank", "grace", "mom", "dad"};
+        String[] places = {"new york", "paris", "tokyo", "home", "beach", "office"};
+        ArrayList<Album> albums = new ArrayList<>();
+        int id = 0;
+        for (int a = 0; a < albumCount; a++) {
+            Album album = new Album("Album " + a);
+            album.setId(a + 1);
+            for (int p = 0; p < photosPerAlbum; p++, id++) {
+                Photo photo = new Photo(
+                        "content://com.android.providers.media.documents/document/image%3A" + id,
+                        1600000000000L + id * 60000L);
+                photo.addTag("person", people[id % people.length]);
+                if (id % 3 == 0) photo.addTag("person", people[(id / 3) % people.length]);
+                photo.addTag("location", places[id % places.length]);
+                album.addPhoto(photo);
+            }
+            albums.add(album);
+        }
+        return albums;
+    }
+
+    private static byte[] encode(List<Album> albums) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LibraryCodec.encode(albums, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void roundTripPreservesAlbumsPhotosAndTags() throws IOException {
+        ArrayList<Album> albums = syntheticLibrary(3, 20);
+        albums.get(0).getPhotos().get(0).setDescription("first — ünïcode");
+        albums.add(new Album("Empty"));
+
+        List<Album> decoded = LibraryCodec.decode(new ByteArrayInputStream(encode(albums)));
+
+        assertEquals(albums.size(), decoded.size());
+        for (int a = 0; a < albums.size(); a++) {
+            Album expected = albums.get(a);
+            Album actual = decoded.get(a);
+            assertEquals(expected.getName(), actual.getName());
+            assertEquals(expected.getPhotos().size(), actual.getPhotos().size());
+            for (int p = 0; p < expected.getPhotos().size(); p++) {
+                Photo e = expected.getPhotos().get(p);
+                Photo d = actual.getPhotos().get(p);
+                assertEquals(e.getFilePath(), d.getFilePath());
+                assertEquals(e.getDescription(), d.getDescription());
+                assertEquals(e.getDate(), d.getDate());
+                assertEquals(e.getTags(), d.getTags());
+            }
+        }
+    }
+
+    @Test
+    public void sharedPhotosAreStoredOnce() throws IOException {
+        ArrayList<Album> albums = syntheticLibrary(2, 50);
+        // The same image in both albums as a separate copy, the way older versions kept it
+        Photo first = albums.get(0).getPhotos().get(0);
+        Photo copy = new Photo(first.getFilePath(), 0);
+        copy.addTag("person", "zoe");
+        albums.get(1).addPhoto(copy);
+
+        PhotoRegistry registry = new PhotoRegistry();
+        registry.markLoaded();
+        for (Album album : albums) registry.adopt(album);
+        assertEquals(100, registry.size());
+        assertSame(first, albums.get(1).getPhotos().get(50));
+        assertTrue(first.hasTag("person", "zoe"));
+        assertEquals(2, first.getAlbumCount());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LibraryCodec.encodeRegistry(registry, out);
+        PhotoRegistry decoded = new PhotoRegistry();
+        LibraryCodec.decodeRegistry(new ByteArrayInputStream(out.toByteArray()), decoded);
+        assertEquals(100, decoded.size());
+
+        List<Album> decodedAlbums = new ArrayList<>();
+        for (Album album : albums) {
+            out.reset();
+            LibraryCodec.encodeAlbum(album, out);
+            Album decodedAlbum = new Album(album.getName());
+            LibraryCodec.decodeAlbum(new ByteArrayInputStream(out.toByteArray()), decoded, decodedAlbum);
+            assertEquals(album.getPhotos(), decodedAlbum.getPhotos());
+            assertFalse(decodedAlbum.isDirty());
+            decodedAlbums.add(decodedAlbum);
+        }
+        Photo shared = decodedAlbums.get(0).getPhotos().get(0);
+        assertSame(shared, decodedAlbums.get(1).getPhotos().get(50));
+        assertEquals(2, shared.getAlbumCount());
+        assertTrue(shared.isInAlbum(1) && shared.isInAlbum(2));
+        assertEquals(first.getTags(), shared.getTags());
+    }
+
+    @Test
+    public void registryChangesAreKeptPerBucket() throws IOException {
+        ArrayList<Album> albums = syntheticLibrary(1, PhotoRegistry.BUCKET_SIZE + 100);
+        PhotoRegistry registry = new PhotoRegistry();
+        registry.markLoaded();
+        registry.adopt(albums.get(0));
+        // Ids start at 1: bucket 0 has 4095 photos, bucket 1 the other 101
+        assertArrayEquals(new int[] {0, 1}, registry.getDirtyBuckets());
+        for (int bucket : registry.getDirtyBuckets()) {
+            registry.markSaved(bucket, registry.getChangeCount(bucket));
+        }
+        assertEquals(0, registry.getDirtyBuckets().length);
+
+        Photo late = registry.get(PhotoRegistry.BUCKET_SIZE + 50);
+        late.addTag("person", "bucket");
+        registry.markDirty(late);
+        assertArrayEquals(new int[] {1}, registry.getDirtyBuckets());
+
+        // One bucket read on its own, and taken over by a registry that has none yet
+        Photo[] photos = registry.photos(1);
+        assertEquals(101, photos.length);
+        int[][] albumIds = new int[photos.length][];
+        for (int i = 0; i < photos.length; i++) albumIds[i] = photos[i].albumIds;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LibraryCodec.encodeRegistry(photos, albumIds, registry.getNextId(), out);
+        PhotoRegistry read = new PhotoRegistry();
+        LibraryCodec.decodeRegistry(new ByteArrayInputStream(out.toByteArray()), read);
+        read.markLoaded(1);
+
+        PhotoRegistry partial = new PhotoRegistry();
+        assertEquals(101, partial.addAll(read).size());
+        assertTrue(partial.isLoaded(1));
+        assertFalse(partial.isLoaded(0));
+        assertFalse(partial.isLoaded());
+        assertEquals(registry.getNextId(), partial.getNextId());
+        Photo decoded = partial.get(PhotoRegistry.BUCKET_SIZE + 50);
+        assertTrue(decoded.hasTag("person", "bucket"));
+        assertTrue(decoded.isInAlbum(albums.get(0).getId()));
+        assertEquals(0, partial.getDirtyBuckets().length);
+        assertTrue(partial.addAll(read).isEmpty()); // already there
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptDataIsRejected() throws IOException {
+        byte[] bytes = encode(syntheticLibrary(1, 5));
+        bytes[bytes.length / 2] ^= 0x55;
+        LibraryCodec.decode(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void damageAnywhereIsReportedAsIOException() throws IOException {
+        ArrayList<Album> albums = syntheticLibrary(2, 10);
+        PhotoRegistry registry = new PhotoRegistry();
+        for (Album album : albums) registry.adopt(album);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LibraryCodec.encodeRegistry(registry, out);
+        assertDamageRejected(out.toByteArray(), in -> LibraryCodec.decodeRegistry(in, new PhotoRegistry()));
+        out.reset();
+        LibraryCodec.encodeAlbum(albums.get(0), out);
+        assertDamageRejected(out.toByteArray(), LibraryCodec::decodeAlbumIds);
+        out.reset();
+        LibraryCodec.encodeManifest(albums, new TagCompletions().counts(), out);
+        assertDamageRejected(out.toByteArray(), in -> LibraryCodec.decodeManifest(in, new TagCompletions()));
+        assertDamageRejected(encode(albums), LibraryCodec::decode);
+    }
+
+    private interface Decoder {
+        void decode(ByteArrayInputStream in) throws IOException;
+    }
+
+    // Every flipped byte and every truncation must fail with an IOException, which the
+    // storage layer catches, rather than with an exception from a bad index or length
+    private static void assertDamageRejected(byte[] original, Decoder decoder) {
+        List<byte[]> damaged = new ArrayList<>();
+        for (int i = 0; i < original.length; i++) {
+            for (int flip : new int[] {0x01, 0x80, 0xFF}) {
+                byte[] bytes = original.clone();
+                bytes[i] ^= flip;
+                damaged.add(bytes);
+            }
+            damaged.add(Arrays.copyOf(original, i));
+        }
+        for (byte[] bytes : damaged) {
+            try {
+                decoder.decode(new ByteArrayInputStream(bytes));
+                fail("Damage went unnoticed");
+            } catch (IOException expected) {
+                // a damaged file only loses what it holds
+            }
+        }
+    }
+
+    @Test
+    public void largeLibraryIsSmallerThanJavaSerialization() throws Exception {
+        ArrayList<Album> albums = syntheticLibrary(100, 1000);
+
+        ByteArrayOutputStream javaBytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(javaBytes);
+        oos.writeObject(albums);
+        oos.close();
+
+        byte[] codecBytes = encode(albums);
+        assertTrue(codecBytes.length * 2 < javaBytes.size());
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.photosandroid.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the journal: {@link Mutation} records survive framing and reading, a torn or
+ * damaged tail is dropped, and replaying records whose effect is already there changes
+ * nothing.
+ */
+public class MutationTest {
+    private static final String PATH = "content://media/image%3A";
+
+    private static final Mutation.Loader NOTHING_TO_READ = new Mutation.Loader() {
+        @Override
+        public void loadAlbum(Album album) {
+        }
+
+        @Override
+        public void loadRegistry() {
+        }
+    };
+
+    // Every kind of record, in an order that makes sense to replay
+    private static List<Mutation> session() {
+        List<Mutation> mutations = new ArrayList<>();
+        mutations.add(Mutation.addAlbum("Trip", 1));
+        mutations.add(Mutation.addAlbum("Home", 2));
+        for (int i = 0; i < 5; i++) {
+            mutations.add(Mutation.addPhoto("Trip", new Photo(PATH + i, 1000 + i)));
+        }
+        mutations.add(Mutation.addPhoto("Home", new Photo(PATH + 0, 1000)));
+        mutations.add(Mutation.addTag("Trip", PATH + 0, "person", "alice"));
+        mutations.add(Mutation.addTag("Trip", PATH + 1, "location", "paris"));
+        mutations.add(Mutation.addTag("Trip", PATH + 2, "person", "bob"));
+        mutations.add(Mutation.removeTag("Trip", PATH + 2, "person", "bob"));
+        mutations.add(Mutation.movePhoto("Trip", "Home", PATH + 3));
+        mutations.add(Mutation.removePhoto("Trip", PATH + 4));
+        mutations.add(Mutation.addAlbum("Old", 3));
+        mutations.add(Mutation.addPhoto("Old", new Photo(PATH + 9, 9)));
+        mutations.add(Mutation.removeAlbum("Old"));
+        mutations.add(Mutation.renameAlbum("Trip", "Paris"));
+        return mutations;
+    }
+
+    private static byte[] payload(Mutation mutation) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mutation.writeTo(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    private static List<Mutation> read(byte[] journal, int[] count) throws IOException {
+        List<Mutation> read = new ArrayList<>();
+        count[0] = FileStorage.readJournal(new ByteArrayInputStream(journal), read::add);
+        return read;
+    }
+
+    // Albums in order with their photos and tags, and the library's tag counts
+    private static String describe(List<Album> albums, TagCompletions completions) {
+        StringBuilder text = new StringBuilder();
+        for (Album album : albums) {
+            text.append(album.getName()).append('#').append(album.getId()).append(':');
+            for (Photo photo : album.getPhotos()) {
+                text.append(' ').append(photo.getFilePath()).append('[');
+                for (Tag tag : photo.getTags()) text.append(tag.getName()).append('=').append(tag.getValue());
+                text.append(']');
+            }
+            text.append('\n');
+        }
+        Map<String, Integer> counts = new TreeMap<>();
+        for (Map.Entry<Tag, Integer> entry : completions.counts().entrySet()) {
+            counts.put(entry.getKey().getName() + "=" + entry.getKey().getValue(), entry.getValue());
+        }
+        return text.append(counts).toString();
+    }
+
+    private static void replay(List<Mutation> mutations, List<Album> albums, PhotoRegistry registry,
+                               TagCompletions completions) {
+        for (Mutation mutation : mutations) {
+            mutation.applyTo(albums, registry, completions, NOTHING_TO_READ);
+        }
+    }
+
+    @Test
+    public void recordsSurviveFramingAndReading() throws IOException {
+        List<Mutation> written = session();
+        int[] count = new int[1];
+        List<Mutation> read = read(FileStorage.encodeJournal(written), count);
+
+        assertEquals(written.size(), count[0]);
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertTrue(Arrays.equals(payload(written.get(i)), payload(read.get(i))));
+        }
+        assertEquals(0, FileStorage.readJournal(new ByteArrayInputStream(new byte[0]),
+                m -> fail("An empty journal has no records")));
+    }
+
+    @Test
+    public void tornOrDamagedTailIsDropped() throws IOException {
+        List<Mutation> written = session();
+        byte[] head = FileStorage.encodeJournal(written.subList(0, written.size() - 1));
+        byte[] journal = FileStorage.encodeJournal(written);
+        int[] count = new int[1];
+
+        // A crash anywhere in the last record keeps every record before it
+        for (int length = head.length + 1; length < journal.length; length++) {
+            List<Mutation> read = read(Arrays.copyOf(journal, length), count);
+            assertEquals(-1, count[0]);
+            assertEquals(written.size() - 1, read.size());
+        }
+        assertEquals(written.size() - 1, read(head, count).size());
+        assertEquals(written.size() - 1, count[0]);
+
+        // Damage stops the replay at the damaged record
+        for (int i = head.length; i < journal.length; i++) {
+            byte[] damaged = journal.clone();
+            damaged[i] ^= 0x10;
+            assertEquals(written.size() - 1, read(damaged, count).size());
+            assertEquals(-1, count[0]);
+        }
+    }
+
+    @Test
+    public void replayingTheJournalAgainChangesNothing() {
+        List<Album> albums = new ArrayList<>();
+        PhotoRegistry registry = new PhotoRegistry();
+        registry.markLoaded();
+        TagCompletions completions = new TagCompletions();
+        replay(session(), albums, registry, completions);
+        String once = describe(albums, completions);
+        assertEquals("Paris#1: " + PATH + "0[person=alice] " + PATH + "1[location=paris] " + PATH + "2[]\n"
+                + "Home#2: " + PATH + "0[person=alice] " + PATH + "3[]\n"
+                + "{location=paris=1, person=alice=2}", once);
+
+        // As after a checkpoint written just before the journal could be cleared
+        replay(session(), albums, registry, completions);
+        assertEquals(once, describe(albums, completions));
+
+        // Or after a crash part way through writing one
+        List<Mutation> records = session();
+        for (int from = 0; from < records.size(); from++) {
+            replay(records.subList(from, records.size()), albums, registry, completions);
+            assertEquals("replay from record " + from, once, describe(albums, completions));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.photosandroid.model;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the tag operations of {@link Photo} on top of {@link TagDictionary} ids.
+ */
+public class PhotoTest {
+
+    @Test
+    public void tagsFollowTheOldRules() {
+        Photo photo = new Photo("content://media/image%3A1", 0);
+        assertTrue(photo.addTag("person", "Mom"));
+        assertFalse(photo.addTag("PERSON", "mom"));
+        assertTrue(photo.addTag("person", "dad"));
+        assertTrue(photo.addTag("location", "Paris"));
+        assertFalse(photo.addTag("location", "tokyo")); // one location only
+
+        assertTrue(photo.hasTag("Person", "MOM"));
+        assertTrue(photo.hasTag("location", "paris"));
+        assertFalse(photo.hasTag("location", "tokyo"));
+        assertFalse(photo.hasTag("nobody", "here"));
+
+        List<Tag> tags = photo.getTags();
+        assertEquals(3, tags.size());
+        assertTrue(tags.contains(new Tag("person", "mom")));
+        assertEquals("paris", tags.get(tags.indexOf(new Tag("location", "PARIS"))).getValue());
+
+        assertTrue(photo.removeTag("PERSON", "Mom"));
+        assertFalse(photo.removeTag("person", "mom"));
+        assertFalse(photo.hasTag("person", "mom"));
+        assertEquals(3, tags.size()); // the earlier view is a snapshot
+        assertEquals(2, photo.getTags().size());
+        assertTrue(photo.addTag("person", "mom"));
+    }
+
+    @Test
+    public void tagIdsStaySorted() {
+        Photo photo = new Photo("content://media/image%3A2", 0);
+        for (int i = 20; i > 0; i--) {
+            photo.addTag("person", "p" + i);
+        }
+        int[] ids = photo.getTagIds();
+        int[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        assertArrayEquals(sorted, ids);
+        assertEquals(20, ids.length);
+    }
+
+    @Test
+    public void hasTagDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return; // not measurable on this VM
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+
+        Photo photo = new Photo("content://media/image%3A3", 0);
+        photo.addTag("person", "alice");
+        photo.addTag("person", "bob");
+        photo.addTag("location", "home");
+        String name = "Person";
+        String value = "BOB";
+        int hits = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (photo.hasTag(name, value)) hits++; // warm up
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            if (photo.hasTag(name, value)) hits++;
+            if (photo.hasTag("location", "paris")) hits--;
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertEquals(110000, hits);
+        // A few bytes of slack for the measurement itself
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+}
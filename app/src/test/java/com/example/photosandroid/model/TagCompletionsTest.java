@@ -0,0 +1,54 @@
+package com.example.photosandroid.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link TagCompletions} rankings against sorting every value, across increments
+ * and decrements that keep the cached per-node lists in play.
+ */
+public class TagCompletionsTest {
+
+    private static List<String> expected(Map<String, Integer> counts, String prefix) {
+        List<String> values = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            if (e.getValue() > 0 && e.getKey().startsWith(prefix)) values.add(e.getKey());
+        }
+        values.sort((a, b) -> !counts.get(a).equals(counts.get(b))
+                ? Integer.compare(counts.get(b), counts.get(a))
+                : a.compareTo(b));
+        return values.subList(0, Math.min(TagCompletions.MAX_SUGGESTIONS, values.size()));
+    }
+
+    @Test
+    public void topValuesMatchFullSortUnderUpdates() {
+        String[] values = {"paris", "park", "parma", "pa", "tokyo", "toronto", "tor", "home",
+                "homer", "beach", "bern", "berlin", "bergen", "perth", "pisa", "porto"};
+        TagCompletions completions = new TagCompletions();
+        Map<String, Integer> counts = new HashMap<>();
+        Random random = new Random(7);
+        String[] prefixes = {"", "p", "pa", "par", "to", "tor", "ho", "be", "ber", "x"};
+
+        for (int step = 0; step < 5000; step++) {
+            String value = values[random.nextInt(values.length)];
+            int current = counts.getOrDefault(value, 0);
+            int delta = random.nextInt(3) == 0 && current > 0 ? -1 : 1;
+            counts.put(value, current + delta);
+            completions.add("location", value, delta);
+
+            if (step % 50 == 0) {
+                for (String prefix : prefixes) {
+                    assertEquals(expected(counts, prefix), completions.complete("Location", prefix));
+                }
+            }
+        }
+        assertTrue(completions.complete("person", "").isEmpty());
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.photosandroid.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link TagIndex} lookups against a plain scan of the photos.
+ */
+public class TagIndexTest {
+    private static final String[] PEOPLE = {"alice", "bob", "carol", "dave", "erin", "mom", "dad"};
+    private static final String[] PLACES = {"paris", "tokyo", "home", "beach", "office"};
+
+    private static Album album(String name, int first, int count) {
+        Album album = new Album(name);
+        for (int id = first; id < first + count; id++) {
+            Photo photo = new Photo("content://media/image%3A" + id, id);
+            photo.addTag("person", PEOPLE[id % PEOPLE.length]);
+            if (id % 3 == 0) photo.addTag("person", PEOPLE[(id / 3) % PEOPLE.length]);
+            photo.addTag("location", PLACES[id % PLACES.length]);
+            album.addPhoto(photo);
+        }
+        return album;
+    }
+
+    private static List<String> paths(TagIndex index, PostingList ids) {
+        List<String> paths = new ArrayList<>();
+        for (int id : ids.toArray()) {
+            paths.add(index.getPhoto(id).getFilePath());
+        }
+        paths.sort(null);
+        return paths;
+    }
+
+    private static List<String> scan(List<Album> albums, String person, String place, boolean and) {
+        List<String> paths = new ArrayList<>();
+        for (Album album : albums) {
+            for (Photo photo : album.getPhotos()) {
+                boolean a = photo.hasTag("person", person);
+                boolean b = photo.hasTag("location", place);
+                if (and ? a && b : a || b) paths.add(photo.getFilePath());
+            }
+        }
+        paths.sort(null);
+        return paths;
+    }
+
+    @Test
+    public void andOrMatchScanAfterUpdates() {
+        List<Album> albums = new ArrayList<>();
+        albums.add(album("A", 0, 300));
+        albums.add(album("B", 300, 200));
+        TagIndex index = new TagIndex();
+        for (Album album : albums) index.addAlbum(album);
+
+        // Remove some photos and tags, add new ones, move one across albums
+        Album a = albums.get(0);
+        Album b = albums.get(1);
+        for (int i = 0; i < 40; i++) {
+            Photo photo = a.getPhotos().get(i);
+            a.removePhoto(photo);
+            index.removePhoto(a, photo);
+        }
+        Photo retagged = b.getPhotos().get(5);
+        Tag tag = retagged.getTags().get(0);
+        retagged.removeTag(tag.getName(), tag.getValue());
+        index.removeTag(retagged, tag.getName(), tag.getValue());
+        retagged.addTag("person", "Alice");
+        index.addTag(retagged, "person", "Alice");
+        for (int id = 1000; id < 1050; id++) {
+            Photo photo = new Photo("content://media/image%3A" + id, id);
+            photo.addTag("location", "paris");
+            b.addPhoto(photo);
+            index.addPhoto(b, photo);
+        }
+        Photo moved = a.getPhotos().get(0);
+        a.removePhoto(moved);
+        b.addPhoto(moved);
+        index.movePhoto(moved, a, b);
+        assertEquals(Collections.singletonList(b), index.getAlbums(moved.indexId));
+
+        for (String person : PEOPLE) {
+            for (String place : PLACES) {
+                PostingList p = index.find("PERSON", person);
+                PostingList l = index.find("location", place.toUpperCase());
+                assertEquals(scan(albums, person, place, true), paths(index, PostingList.and(p, l)));
+                assertEquals(scan(albums, person, place, false), paths(index, PostingList.or(p, l)));
+            }
+        }
+
+        index.removeAlbum(a);
+        index.removeAlbum(b);
+        assertEquals(0, index.size());
+        assertTrue(index.find("location", "paris").isEmpty());
+    }
+
+    @Test
+    public void sharedPhotoIsOneHit() {
+        Album a = album("A", 0, 10);
+        Album b = album("B", 10, 10);
+        Photo shared = a.getPhotos().get(0);
+        b.addPhoto(shared);
+        TagIndex index = new TagIndex();
+        index.addAlbum(a);
+        index.addAlbum(b);
+        assertEquals(20, index.size());
+        assertEquals(2, index.albumCount(shared));
+        assertEquals(Arrays.asList(a, b), sortedByName(index.getAlbums(shared.indexId)));
+        assertEquals(20, index.findAlbum("A").size() + index.findAlbum("B").size() - 1);
+
+        // Leaving one album keeps the photo indexed; leaving the last drops it
+        index.removeAlbum(a);
+        assertEquals(11, index.size());
+        assertEquals(Collections.singletonList(b), index.getAlbums(shared.indexId));
+        index.removePhoto(b, shared);
+        assertEquals(0, shared.indexId);
+        assertEquals(10, index.size());
+    }
+
+    @Test
+    public void snapshotKeepsItsResultsWhileTheIndexChanges() {
+        List<Album> albums = new ArrayList<>();
+        albums.add(album("A", 0, 5000)); // enough for the chunk to be a bitmap
+        TagIndex index = new TagIndex();
+        index.addAlbum(albums.get(0));
+        TagIndex snapshot = index.snapshot();
+        assertSame(snapshot, index.snapshot());
+        List<String> alice = paths(snapshot, snapshot.find("person", "alice"));
+        List<String> all = paths(snapshot, snapshot.findAll());
+        int inFirstWeek = snapshot.getTimeIndex().count(0, 7);
+
+        Album a = albums.get(0);
+        Photo first = a.getPhotos().get(0);
+        first.addTag("person", "zoe");
+        index.addTag(first, "person", "zoe");
+        for (Photo photo : new ArrayList<>(a.getPhotos().subList(0, 100))) {
+            a.removePhoto(photo);
+            index.removePhoto(a, photo);
+        }
+        Album b = album("B", 5000, 50);
+        albums.add(b);
+        index.addAlbum(b);
+        a.setName("Renamed");
+
+        assertEquals(alice, paths(snapshot, snapshot.find("person", "alice")));
+        assertEquals(all, paths(snapshot, snapshot.findAll()));
+        assertTrue(snapshot.find("person", "zoe").isEmpty());
+        assertTrue(snapshot.findAlbum("B").isEmpty());
+        assertEquals(inFirstWeek, snapshot.getTimeIndex().count(0, 7));
+        assertEquals(Collections.singletonList(a), snapshot.getAlbums(1));
+        assertEquals(Collections.singletonList("A"), snapshot.getAlbumNames(1));
+        assertEquals(5000, snapshot.findAlbum("A").size());
+
+        assertNotSame(snapshot, index.snapshot());
+        assertEquals(scan(albums, "alice", "paris", false),
+                paths(index, PostingList.or(index.find("person", "alice"), index.find("location", "paris"))));
+        assertEquals(5000 - 100 + 50, index.findAll().size());
+        assertEquals(0, index.getTimeIndex().count(0, 7));
+    }
+
+    private static List<Album> sortedByName(List<Album> albums) {
+        albums.sort((x, y) -> x.getName().compareTo(y.getName()));
+        return albums;
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.photosandroid.model;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link TagQuery} and the {@link PostingList} set operations it runs on against
+ * straightforward evaluation.
+ */
+public class TagQueryTest {
+    private static final String[] PEOPLE = {"alice", "bob", "carol", "dave", "erin", "mom", "dad"};
+    private static final String[] PLACES = {"paris", "tokyo", "home", "beach", "new york"};
+
+    private static List<Album> library(int albumCount, int photosPerAlbum) {
+        List<Album> albums = new ArrayList<>();
+        Random random = new Random(42);
+        int id = 0;
+        for (int a = 0; a < albumCount; a++) {
+            Album album = new Album("Album " + a);
+            for (int p = 0; p < photosPerAlbum; p++, id++) {
+                Photo photo = new Photo("content://media/image%3A" + id, id);
+                photo.addTag("person", PEOPLE[random.nextInt(PEOPLE.length)]);
+                if (random.nextInt(4) == 0) photo.addTag("person", PEOPLE[random.nextInt(PEOPLE.length)]);
+                if (random.nextInt(3) > 0) photo.addTag("location", PLACES[random.nextInt(PLACES.length)]);
+                album.addPhoto(photo);
+            }
+            albums.add(album);
+        }
+        return albums;
+    }
+
+    private static TagIndex index(List<Album> albums) {
+        TagIndex index = new TagIndex();
+        for (Album album : albums) index.addAlbum(album);
+        return index;
+    }
+
+    // The nested-loop search the index replaces
+    private static int scanCount(List<Album> albums, TagQuery query) {
+        int count = 0;
+        for (Album album : albums) {
+            for (Photo photo : album.getPhotos()) {
+                if (query.matches(photo, album)) count++;
+            }
+        }
+        return count;
+    }
+
+    private static final String[] QUERIES = {
+            "person=mom",
+            "person=mom AND location=paris",
+            "person=MOM location:\"new york\"",
+            "person=mom OR person=dad OR location=beach",
+            "(person=alice OR person=bob) AND NOT location=home",
+            "NOT person=carol",
+            "NOT (person=carol OR location=tokyo) AND album=\"Album 3\"",
+            "album:\"Album 1\" OR (person=erin AND location=beach AND NOT person=dave)",
+            "person=nobody AND location=paris",
+    };
+
+    @Test
+    public void queriesMatchScan() throws ParseException {
+        List<Album> albums = library(8, 2000);
+        TagIndex index = index(albums);
+        for (String text : QUERIES) {
+            TagQuery query = TagQuery.parse(text);
+            int[] ids = query.execute(index).toArray();
+            assertEquals(text, scanCount(albums, query), ids.length);
+            for (int id : ids) {
+                assertTrue(text, query.matches(index.getPhoto(id), index.getAlbums(id).get(0)));
+            }
+        }
+    }
+
+    @Test
+    public void invalidQueriesAreRejected() {
+        String[] invalid = {"", "person", "person=", "(person=mom", "person=mom)", "AND person=mom",
+                "person=mom OR", "person=\"mom", "NOT"};
+        for (String text : invalid) {
+            try {
+                TagQuery.parse(text);
+                fail("Accepted: " + text);
+            } catch (ParseException e) {
+                assertTrue(e.getErrorOffset() >= 0 && e.getErrorOffset() <= text.length());
+            }
+        }
+    }
+
+    @Test
+    public void postingListsMatchBitSets() {
+        Random random = new Random(3);
+        // Sparse and dense chunks, and ids spread over several chunks
+        int[] ranges = {300, 70000, 200000};
+        for (int range : ranges) {
+            for (int round = 0; round < 5; round++) {
+                PostingList a = new PostingList();
+                PostingList b = new PostingList();
+                BitSet sa = new BitSet();
+                BitSet sb = new BitSet();
+                int adds = random.nextInt(range);
+                for (int i = 0; i < adds; i++) {
+                    int x = random.nextInt(range);
+                    assertEquals(!sa.get(x), a.add(x));
+                    sa.set(x);
+                    int y = random.nextInt(range / 2 + 1) * 2;
+                    b.add(y);
+                    sb.set(y);
+                }
+                for (int i = 0; i < adds / 2; i++) {
+                    int x = random.nextInt(range);
+                    assertEquals(sa.get(x), a.remove(x));
+                    sa.clear(x);
+                }
+                assertArrayEquals(sa.stream().toArray(), a.toArray());
+
+                BitSet and = (BitSet) sa.clone();
+                and.and(sb);
+                BitSet or = (BitSet) sa.clone();
+                or.or(sb);
+                BitSet andNot = (BitSet) sa.clone();
+                andNot.andNot(sb);
+                assertArrayEquals(and.stream().toArray(), PostingList.and(a, b).toArray());
+                assertArrayEquals(or.stream().toArray(), PostingList.or(a, b).toArray());
+                assertArrayEquals(andNot.stream().toArray(), PostingList.andNot(a, b).toArray());
+                assertEquals(or.cardinality(), PostingList.or(a, b).size());
+            }
+        }
+    }
+}
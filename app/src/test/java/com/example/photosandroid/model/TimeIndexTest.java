@@ -0,0 +1,129 @@
+package com.example.photosandroid.model;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link TimeIndex} and date queries against a scan of every photo while the
+ * index is changed.
+ */
+public class TimeIndexTest {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+    private static final long START = 1_600_000_000_000L; // September 2020
+
+    @Test
+    public void rangesMatchScanUnderUpdates() {
+        Random random = new Random(7);
+        Album album = new Album("Timeline");
+        TagIndex index = new TagIndex();
+        for (int round = 0; round < 50; round++) {
+            // Bulk loads, single adds and removals, as albums are opened and edited
+            int adds = round % 5 == 0 ? 2000 : random.nextInt(10);
+            for (int i = 0; i < adds; i++) {
+                Photo photo = new Photo("content://media/image%3A" + round + "_" + i,
+                        START + (long) (random.nextDouble() * 1000 * DAY));
+                album.addPhoto(photo);
+                index.addPhoto(album, photo);
+            }
+            List<Photo> photos = new ArrayList<>(album.getPhotos());
+            for (int i = 0; i < photos.size() / 20; i++) {
+                Photo photo = photos.get(random.nextInt(photos.size()));
+                if (album.containsPhoto(photo)) {
+                    album.removePhoto(photo);
+                    index.removePhoto(album, photo);
+                }
+            }
+
+            long from = START + (long) (random.nextDouble() * 1000 * DAY);
+            long to = from + (long) (random.nextDouble() * 200 * DAY);
+            int expected = 0;
+            for (Photo photo : album.getPhotos()) {
+                if (photo.getDateMillis() >= from && photo.getDateMillis() < to) expected++;
+            }
+            TimeIndex time = index.getTimeIndex();
+            assertEquals(album.getPhotoCount(), time.size());
+            assertEquals(expected, time.count(from, to));
+            assertEquals(expected, index.findDates(from, to).size());
+            assertEquals(expected, album.getPhotosBetween(from, to).size());
+            index.findDates(from, to).forEach(id -> {
+                long date = index.getPhoto(id).getDateMillis();
+                assertTrue(date >= from && date < to);
+            });
+        }
+    }
+
+    @Test
+    public void monthsAndNeighboursMatchScan() {
+        TagIndex index = new TagIndex();
+        Album album = new Album("Months");
+        Random random = new Random(11);
+        for (int i = 0; i < 5000; i++) {
+            Photo photo = new Photo("content://media/image%3A" + i,
+                    START + (long) (random.nextDouble() * 700 * DAY));
+            album.addPhoto(photo);
+            index.addPhoto(album, photo);
+        }
+
+        Calendar calendar = Calendar.getInstance();
+        SortedMap<Long, Integer> expected = new TreeMap<>();
+        for (Photo photo : album.getPhotos()) {
+            expected.merge(TimeIndex.startOfPeriod(calendar, photo.getDateMillis(), Calendar.MONTH), 1, Integer::sum);
+        }
+        TimeIndex time = index.getTimeIndex();
+        assertEquals(expected, time.countBy(Calendar.MONTH, Long.MIN_VALUE, Long.MAX_VALUE));
+
+        long date = START + 300 * DAY;
+        int[] around = time.findAround(date, 25);
+        assertEquals(25, around.length);
+        long farthest = 0;
+        for (int id : around) {
+            farthest = Math.max(farthest, Math.abs(index.getPhoto(id).getDateMillis() - date));
+        }
+        int closer = 0;
+        for (Photo photo : album.getPhotos()) {
+            if (Math.abs(photo.getDateMillis() - date) < farthest) closer++;
+        }
+        assertTrue(closer < 25);
+    }
+
+    @Test
+    public void dateQueriesCombineWithTags() throws ParseException {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2024, Calendar.MAY, 17, 12, 0);
+        Photo may = new Photo("content://media/image%3A1", calendar.getTimeInMillis());
+        may.addTag("person", "mom");
+        calendar.set(2024, Calendar.JUNE, 1, 0, 0);
+        Photo june = new Photo("content://media/image%3A2", calendar.getTimeInMillis());
+        june.addTag("person", "mom");
+        Album album = new Album("Dates");
+        album.addPhoto(may);
+        album.addPhoto(june);
+        TagIndex index = new TagIndex();
+        index.addAlbum(album);
+
+        assertEquals(1, TagQuery.parse("person=mom AND date=2024-05").execute(index).size());
+        assertEquals(2, TagQuery.parse("date:2024-05-17..2024-06").execute(index).size());
+        assertEquals(1, TagQuery.parse("date=..2024-05-31").execute(index).size());
+        assertEquals(1, TagQuery.parse("NOT date=2024-05-17").execute(index).size());
+        assertEquals(0, TagQuery.parse("date=2023").execute(index).size());
+        assertTrue(TagQuery.parse("date=2024-06..").matches(june, album));
+        for (String bad : new String[]{"date=2024-13", "date=May", "date=..", "date=2024-02-30"}) {
+            try {
+                TagQuery.parse(bad);
+                fail(bad);
+            } catch (ParseException expectedError) {
+                // expected
+            }
+        }
+    }
+}